@@ -3,10 +3,18 @@ package plc.project;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
@@ -16,12 +24,18 @@ import java.util.stream.Collectors;
 public final class Analyzer implements Ast.Visitor<Void> {
 
     public Scope scope;
+    private final Scope globals;
     private Ast.Function function;
     private Environment.Type returnType;
+    private final Map<String, Ast.Function> functions = new HashMap<>();
 
     public Analyzer(Scope parent) {
         scope = new Scope(parent);
+        globals = scope;
         scope.defineFunction("print", "System.out.println", Arrays.asList(Environment.Type.ANY), Environment.Type.NIL, args -> Environment.NIL);
+        scope.defineFunction("channel", "new java.util.concurrent.ArrayBlockingQueue<Object>", Arrays.asList(Environment.Type.INTEGER), Environment.Type.CHANNEL, args -> Environment.NIL);
+        scope.defineFunction("send", "send", Arrays.asList(Environment.Type.CHANNEL, Environment.Type.ANY), Environment.Type.NIL, args -> Environment.NIL);
+        scope.defineFunction("receive", "receive", Arrays.asList(Environment.Type.CHANNEL), Environment.Type.ANY, args -> Environment.NIL);
     }
 
     public Scope getScope() {
@@ -31,6 +45,9 @@ public final class Analyzer implements Ast.Visitor<Void> {
     @Override
     public Void visit(Ast.Source ast) {
 
+        for(Ast.Function f : ast.getFunctions()) {
+            functions.put(f.getName() + "/" + f.getParameters().size(), f);
+        }
         for(Ast.Global g : ast.getGlobals()) {
             visit(g);
         }
@@ -50,6 +67,9 @@ public final class Analyzer implements Ast.Visitor<Void> {
 
         Environment.Type type = null;
         type = Environment.getType(ast.getTypeName());
+        if (ast.getValue().isPresent() && ast.getValue().get() instanceof Ast.Expression.PlcList) {
+            ((Ast.Expression.PlcList) ast.getValue().get()).setType(type);
+        }
         if (ast.getValue().isPresent()) {
 
             visit(ast.getValue().get());
@@ -59,6 +79,7 @@ public final class Analyzer implements Ast.Visitor<Void> {
             }
 
             requireAssignable(type, ast.getValue().get().getType());
+            ast.setPure(isPure(ast.getValue().get()));
         }
 
         Environment.Variable var = scope.defineVariable(ast.getName(), ast.getName(), type, ast.getMutable(), Environment.NIL);
@@ -81,12 +102,12 @@ public final class Analyzer implements Ast.Visitor<Void> {
         try {
 
             scope = new Scope(scope);
-            for (Ast.Statement stmt : ast.getStatements()) {
-                visit(stmt);
-            }
             for (int i = 0; i < ast.getParameters().size(); i++) {
                 scope.defineVariable(ast.getParameters().get(i), ast.getParameters().get(i), paramTypes.get(i), true, Environment.NIL);
             }
+            for (Ast.Statement stmt : ast.getStatements()) {
+                visit(stmt);
+            }
 
 
         } finally {
@@ -98,7 +119,7 @@ public final class Analyzer implements Ast.Visitor<Void> {
 
     @Override
     public Void visit(Ast.Statement.Expression ast) {
-        if (!(ast.getExpression() instanceof Ast.Expression.Function)) throw new RuntimeException();
+        if (!(ast.getExpression() instanceof Ast.Expression.Function) && !(ast.getExpression() instanceof Ast.Expression.Spawn) && !(ast.getExpression() instanceof Ast.Expression.Await)) throw new RuntimeException();
         visit(ast.getExpression());
         return null;
     }
@@ -167,23 +188,8 @@ public final class Analyzer implements Ast.Visitor<Void> {
         visit(ast.getCondition());
         requireAssignable(ast.getCondition().getType(), Environment.Type.BOOLEAN);
         if (ast.getThenStatements().isEmpty()) throw new RuntimeException();
-
-        for (Ast.Statement then : ast.getThenStatements()) {
-            try {
-                scope = new Scope(scope);
-                visit(then);
-            } finally {
-                scope = scope.getParent();
-            }
-        }
-        for (Ast.Statement elseStmt : ast.getElseStatements()) {
-            try {
-                scope = new Scope(scope);
-                visit(elseStmt);
-            } finally {
-                scope = scope.getParent();
-            }
-        }
+        visit(ast.getThenStatements(), ast.getThenDeclares());
+        visit(ast.getElseStatements(), ast.getElseDeclares());
         return null;
     }
 
@@ -192,29 +198,29 @@ public final class Analyzer implements Ast.Visitor<Void> {
         visit(ast.getCondition());
         List<Ast.Statement.Case> g = ast.getCases();
         for (int i = 0 ; i<g.size(); i++){
-            try {
-                scope = new Scope(scope);
-                visit(g.get(i));
-                if (g.get(i).getValue().isPresent()) {
-                    visit(g.get(i).getValue().get());
-                    requireAssignable(ast.getCondition().getType(),g.get(i).getValue().get().getType());
-                }
-                if (i == g.size()-1 && g.get(i).getValue().isPresent()) throw new RuntimeException();
-            } finally {
-                scope = scope.getParent();
+            visit(g.get(i));
+            if (g.get(i).getValue().isPresent()) {
+                visit(g.get(i).getValue().get());
+                requireAssignable(ast.getCondition().getType(),g.get(i).getValue().get().getType());
             }
+            if (i == g.size()-1 && g.get(i).getValue().isPresent()) throw new RuntimeException();
         }
+        Map<Object, Ast.Statement.Case> table = new HashMap<>();
+        for (Ast.Statement.Case c : g) {
+            if (!c.getValue().isPresent()) continue;
+            if (!isConstant(c.getValue().get())) return null;
+            Object value = ((Ast.Expression.Literal) c.getValue().get()).getObject().getValue();
+            if (table.put(value, c) != null) {
+                throw new RuntimeException("Duplicate case value " + value + ".");
+            }
+        }
+        ast.setCaseTable(Collections.unmodifiableMap(table));
         return null;
     }
 
     @Override
     public Void visit(Ast.Statement.Case ast) {
-        try{
-            scope = new Scope(scope);
-            ast.getStatements().forEach(this::visit);
-        } finally {
-            scope = scope.getParent();
-        }
+        visit(ast.getStatements(), ast.getDeclares());
         return null;
     }
 
@@ -222,9 +228,25 @@ public final class Analyzer implements Ast.Visitor<Void> {
     public Void visit(Ast.Statement.While ast) {
         visit(ast.getCondition());
         requireAssignable(Environment.Type.BOOLEAN,ast.getCondition().getType());
-        scope = new Scope(scope);
-        for (Ast.Statement stmt : ast.getStatements()) {
-            visit(stmt);
+        visit(ast.getStatements(), ast.getDeclares());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.For ast) {
+        if (ast.getList() instanceof Ast.Expression.PlcList) {
+            ((Ast.Expression.PlcList) ast.getList()).setType(Environment.Type.ANY);
+        }
+        visit(ast.getList());
+        if (ast.getParallel()) {
+            ast.setReductions(checkParallel(ast));
+        }
+        try {
+            scope = new Scope(scope);
+            ast.setVariable(scope.defineVariable(ast.getName(), ast.getName(), ast.getList().getType(), false, Environment.NIL));
+            ast.getStatements().forEach(this::visit);
+        } finally {
+            scope = scope.getParent();
         }
         return null;
     }
@@ -232,7 +254,7 @@ public final class Analyzer implements Ast.Visitor<Void> {
     @Override
     public Void visit(Ast.Statement.Return ast) {
         visit(ast.getValue());
-        requireAssignable(ast.getValue().getType(), this.returnType);
+        requireAssignable(this.returnType, ast.getValue().getType());
         return null;
     }
 
@@ -275,7 +297,7 @@ public final class Analyzer implements Ast.Visitor<Void> {
     @Override
     public Void visit(Ast.Expression.Group ast) {
         if ( ast.getExpression() instanceof Ast.Expression.Binary ){
-            visit(ast);
+            visit(ast.getExpression());
             ast.setType(ast.getExpression().getType());
             return null;
         }
@@ -292,7 +314,7 @@ public final class Analyzer implements Ast.Visitor<Void> {
                 requireAssignable(Environment.Type.BOOLEAN,ast.getRight().getType());
                 ast.setType(Environment.Type.BOOLEAN);
                 break;
-            case "<": case ">": case "==": case "!=":
+            case "<": case "<=": case ">": case ">=": case "==": case "!=":
                 requireAssignable(Environment.Type.COMPARABLE,ast.getLeft().getType());
                 requireAssignable(Environment.Type.COMPARABLE,ast.getRight().getType());
                 requireAssignable(ast.getLeft().getType(),ast.getRight().getType());
@@ -310,6 +332,7 @@ public final class Analyzer implements Ast.Visitor<Void> {
                     requireAssignable(Environment.Type.DECIMAL,ast.getRight().getType());
                     ast.setType(Environment.Type.DECIMAL);
                 }
+                else throw new RuntimeException();
                 break;
             case "-": case "*": case "/":
                 if ( ast.getLeft().getType().equals(Environment.Type.INTEGER) ){
@@ -320,6 +343,7 @@ public final class Analyzer implements Ast.Visitor<Void> {
                     requireAssignable(Environment.Type.DECIMAL,ast.getRight().getType());
                     ast.setType(Environment.Type.DECIMAL);
                 }
+                else throw new RuntimeException();
                 break;
             case "^":
                 requireAssignable(Environment.Type.INTEGER, ast.getRight().getType());
@@ -329,6 +353,7 @@ public final class Analyzer implements Ast.Visitor<Void> {
                 else if ( ast.getLeft().getType().equals(Environment.Type.DECIMAL)){
                     ast.setType(Environment.Type.DECIMAL);
                 }
+                else throw new RuntimeException();
                 break;
         }
         return null;
@@ -337,7 +362,7 @@ public final class Analyzer implements Ast.Visitor<Void> {
     @Override
     public Void visit(Ast.Expression.Access ast) {
         if (ast.getOffset().isPresent()){
-            //visit(ast);
+            visit(ast.getOffset().get());
             requireAssignable(Environment.Type.INTEGER,ast.getOffset().get().getType());
             Environment.Variable var = scope.lookupVariable(ast.getName());
             ast.setVariable(var);
@@ -363,11 +388,269 @@ public final class Analyzer implements Ast.Visitor<Void> {
     public Void visit(Ast.Expression.PlcList ast) {
         List<Ast.Expression> list = ast.getValues();
         for ( Ast.Expression elem : list){
-            requireAssignable(elem.getType(),ast.getType());
+            visit(elem);
+            requireAssignable(ast.getType(),elem.getType());
         }
         return null;
     }
 
+    @Override
+    public Void visit(Ast.Expression.Spawn ast) {
+        visit(ast.getCall());
+        checkIsolated(ast.getCall().getName() + "/" + ast.getCall().getArguments().size(), new HashSet<>());
+        ast.setType(Environment.Type.task(ast.getCall().getFunction().getReturnType()));
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Await ast) {
+        visit(ast.getTask());
+        requireAssignable(Environment.Type.TASK, ast.getTask().getType());
+        ast.setType(ast.getTask().getType().getResult());
+        return null;
+    }
+
+    /**
+     * Checks that a spawned function, and every function it calls in turn,
+     * only captures immutable globals, so a task shares nothing mutable with
+     * the rest of the program except through channels.
+     */
+    private void checkIsolated(String signature, Set<String> visited) {
+        Ast.Function callee = functions.get(signature);
+        if (callee == null || !visited.add(signature)) {
+            return;
+        }
+        for (String name : Resolver.captures(callee)) {
+            if (globals.lookupVariable(name).getMutable()) {
+                throw new RuntimeException("The spawned function " + signature + " shares the mutable variable " + name + ".");
+            }
+        }
+        for (String call : Effects.of(callee).getCalls()) {
+            checkIsolated(call, visited);
+        }
+    }
+
+    /**
+     * Checks that the iterations of a parallel loop are independent, so that
+     * they may run in any order at once, returning its reduction variables
+     * mapped to their operators. The body may not {@code RETURN}, and may
+     * only assign variables declared outside of it in reductions, which are
+     * of the form {@code x = x + a} or {@code x = x * a}, possibly with more
+     * operands, where {@code x} is not read anywhere else in the body. It
+     * also may not call a function which assigns a variable it captures,
+     * such as a global.
+     */
+    private Map<String, String> checkParallel(Ast.Statement.For ast) {
+        ParallelBody body = new ParallelBody(ast.getName());
+        body.visit(ast.getStatements());
+        for (Map.Entry<String, String> reduction : body.operators.entrySet()) {
+            String name = reduction.getKey();
+            if (!body.reads.getOrDefault(name, 0).equals(body.reductions.get(name))) {
+                throw new RuntimeException("The PARALLEL FOR reads the reduction variable " + name + " outside of a reduction.");
+            } else if (body.declared.contains(name)) {
+                throw new RuntimeException("The PARALLEL FOR declares a variable shadowing the reduction variable " + name + ".");
+            }
+        }
+        Set<String> visited = new HashSet<>();
+        for (String call : body.calls) {
+            checkCallee(call, visited);
+        }
+        return Collections.unmodifiableMap(body.operators);
+    }
+
+    /**
+     * Checks that a function called in a parallel loop, and every function it
+     * calls in turn, assigns no variables other than its own.
+     */
+    private void checkCallee(String signature, Set<String> visited) {
+        Ast.Function callee = functions.get(signature);
+        if (callee == null || !visited.add(signature)) {
+            return;
+        }
+        List<String> captures = Resolver.captures(callee);
+        Effects effects = Effects.of(callee);
+        for (String name : effects.getWrites()) {
+            if (captures.contains(name)) {
+                throw new RuntimeException("The PARALLEL FOR calls " + signature + ", which assigns the shared variable " + name + ".");
+            }
+        }
+        for (String call : effects.getCalls()) {
+            checkCallee(call, visited);
+        }
+    }
+
+    /**
+     * Collects the reductions, the reads of shared variables and the calls in
+     * the body of a parallel loop, rejecting any other assignment of a shared
+     * variable. Variables are shared unless they are declared in the body.
+     */
+    private static final class ParallelBody {
+
+        private final Deque<Set<String>> scopes = new ArrayDeque<>();
+        private final Set<String> declared = new HashSet<>();
+        private final Map<String, String> operators = new LinkedHashMap<>();
+        private final Map<String, Integer> reductions = new HashMap<>();
+        private final Map<String, Integer> reads = new HashMap<>();
+        private final Set<String> calls = new LinkedHashSet<>();
+
+        private ParallelBody(String name) {
+            scopes.push(new HashSet<>(Collections.singleton(name)));
+        }
+
+        private boolean isLocal(String name) {
+            return scopes.stream().anyMatch(scope -> scope.contains(name));
+        }
+
+        private void declare(String name) {
+            scopes.peek().add(name);
+            declared.add(name);
+        }
+
+        private void visit(List<Ast.Statement> statements) {
+            scopes.push(new HashSet<>());
+            statements.forEach(this::visit);
+            scopes.pop();
+        }
+
+        private void visit(Ast.Statement ast) {
+            if (ast instanceof Ast.Statement.Expression) {
+                visit(((Ast.Statement.Expression) ast).getExpression());
+            } else if (ast instanceof Ast.Statement.Declaration) {
+                ((Ast.Statement.Declaration) ast).getValue().ifPresent(this::visit);
+                declare(((Ast.Statement.Declaration) ast).getName());
+            } else if (ast instanceof Ast.Statement.Assignment) {
+                Ast.Statement.Assignment assignment = (Ast.Statement.Assignment) ast;
+                Ast.Expression.Access receiver = (Ast.Expression.Access) assignment.getReceiver();
+                receiver.getOffset().ifPresent(this::visit);
+                if (!isLocal(receiver.getName())) {
+                    if (receiver.getOffset().isPresent()) {
+                        throw new RuntimeException("The PARALLEL FOR assigns an element of the shared list " + receiver.getName() + ".");
+                    }
+                    String operator = reduction(receiver.getName(), assignment.getValue());
+                    if (operator == null || !operators.getOrDefault(receiver.getName(), operator).equals(operator)) {
+                        throw new RuntimeException("The PARALLEL FOR assigns the shared variable " + receiver.getName() + ".");
+                    }
+                    operators.put(receiver.getName(), operator);
+                    reductions.merge(receiver.getName(), 1, Integer::sum);
+                }
+                visit(assignment.getValue());
+            } else if (ast instanceof Ast.Statement.If) {
+                visit(((Ast.Statement.If) ast).getCondition());
+                visit(((Ast.Statement.If) ast).getThenStatements());
+                visit(((Ast.Statement.If) ast).getElseStatements());
+            } else if (ast instanceof Ast.Statement.Switch) {
+                visit(((Ast.Statement.Switch) ast).getCondition());
+                for (Ast.Statement.Case c : ((Ast.Statement.Switch) ast).getCases()) {
+                    c.getValue().ifPresent(this::visit);
+                    visit(c.getStatements());
+                }
+            } else if (ast instanceof Ast.Statement.While) {
+                visit(((Ast.Statement.While) ast).getCondition());
+                visit(((Ast.Statement.While) ast).getStatements());
+            } else if (ast instanceof Ast.Statement.For) {
+                Ast.Statement.For loop = (Ast.Statement.For) ast;
+                visit(loop.getList());
+                scopes.push(new HashSet<>());
+                declare(loop.getName());
+                visit(loop.getStatements());
+                scopes.pop();
+            } else if (ast instanceof Ast.Statement.Return) {
+                throw new RuntimeException("A PARALLEL FOR cannot RETURN.");
+            }
+        }
+
+        private void visit(Ast.Expression ast) {
+            if (ast instanceof Ast.Expression.Access) {
+                Ast.Expression.Access access = (Ast.Expression.Access) ast;
+                access.getOffset().ifPresent(this::visit);
+                if (!isLocal(access.getName())) {
+                    reads.merge(access.getName(), 1, Integer::sum);
+                }
+            } else if (ast instanceof Ast.Expression.Group) {
+                visit(((Ast.Expression.Group) ast).getExpression());
+            } else if (ast instanceof Ast.Expression.Binary) {
+                visit(((Ast.Expression.Binary) ast).getLeft());
+                visit(((Ast.Expression.Binary) ast).getRight());
+            } else if (ast instanceof Ast.Expression.Function) {
+                ((Ast.Expression.Function) ast).getArguments().forEach(this::visit);
+                calls.add(((Ast.Expression.Function) ast).getName() + "/" + ((Ast.Expression.Function) ast).getArguments().size());
+            } else if (ast instanceof Ast.Expression.PlcList) {
+                ((Ast.Expression.PlcList) ast).getValues().forEach(this::visit);
+            } else if (ast instanceof Ast.Expression.Spawn) {
+                visit(((Ast.Expression.Spawn) ast).getCall());
+            } else if (ast instanceof Ast.Expression.Await) {
+                visit(((Ast.Expression.Await) ast).getTask());
+            }
+        }
+
+        /**
+         * Returns the operator of a reduction {@code name = name op a op b},
+         * or null if the value is not one.
+         */
+        private static String reduction(String name, Ast.Expression value) {
+            if (!(value instanceof Ast.Expression.Binary)) {
+                return null;
+            }
+            String operator = ((Ast.Expression.Binary) value).getOperator();
+            if (!operator.equals("+") && !operator.equals("*")) {
+                return null;
+            }
+            Ast.Expression left = value;
+            while (left instanceof Ast.Expression.Binary && ((Ast.Expression.Binary) left).getOperator().equals(operator)) {
+                left = ((Ast.Expression.Binary) left).getLeft();
+            }
+            return left instanceof Ast.Expression.Access
+                    && ((Ast.Expression.Access) left).getName().equals(name)
+                    && !((Ast.Expression.Access) left).getOffset().isPresent() ? operator : null;
+        }
+
+    }
+
+    /**
+     * Returns true if evaluating an analyzed expression has no effects and
+     * gives the same value whenever it is evaluated, as it calls no functions
+     * and only reads immutable variables, without indexing lists whose
+     * elements may be assigned.
+     */
+    private static boolean isPure(Ast.Expression ast) {
+        if (ast instanceof Ast.Expression.Literal) {
+            return true;
+        } else if (ast instanceof Ast.Expression.Group) {
+            return isPure(((Ast.Expression.Group) ast).getExpression());
+        } else if (ast instanceof Ast.Expression.Binary) {
+            return isPure(((Ast.Expression.Binary) ast).getLeft()) && isPure(((Ast.Expression.Binary) ast).getRight());
+        } else if (ast instanceof Ast.Expression.Access) {
+            Ast.Expression.Access access = (Ast.Expression.Access) ast;
+            return !access.getOffset().isPresent() && !access.getVariable().getMutable();
+        } else if (ast instanceof Ast.Expression.PlcList) {
+            return ((Ast.Expression.PlcList) ast).getValues().stream().allMatch(Analyzer::isPure);
+        }
+        return false;
+    }
+
+    /**
+     * Visits a block, in a new scope only if the block declares a variable.
+     */
+    private void visit(List<Ast.Statement> statements, boolean declares) {
+        if (!declares) {
+            statements.forEach(this::visit);
+            return;
+        }
+        try {
+            scope = new Scope(scope);
+            statements.forEach(this::visit);
+        } finally {
+            scope = scope.getParent();
+        }
+    }
+
+    /**
+     * Returns true if the expression is a compile-time constant.
+     */
+    public static boolean isConstant(Ast.Expression expression) {
+        return expression instanceof Ast.Expression.Literal;
+    }
+
     public static void requireAssignable(Environment.Type target, Environment.Type type) {
         if (target.getJvmName().equals("Object")) return;
         if( target.getJvmName().equals("Comparable") && ( type.getJvmName().equals("String") || type.getJvmName().equals("boolean") || type.getJvmName().equals("char") || type.getJvmName().equals("double")|| type.getJvmName().equals("int"))) return;
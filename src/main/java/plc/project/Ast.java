@@ -2,6 +2,7 @@ package plc.project;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 
@@ -53,6 +54,7 @@ public abstract class Ast {
         private final boolean mutable;
         private final Optional<Ast.Expression> value;
         private Environment.Variable variable = null;
+        private boolean pure = false;
 
         public Global(String name, boolean mutable, Optional<Expression> value) {
             this(name, "Any", mutable, value);
@@ -93,6 +95,18 @@ public abstract class Ast {
             this.variable = variable;
         }
 
+        /**
+         * Returns true if the {@link Analyzer} found that the initializer has
+         * no effects and the same value whenever it is evaluated.
+         */
+        public boolean isPure() {
+            return pure;
+        }
+
+        public void setPure(boolean pure) {
+            this.pure = pure;
+        }
+
 
         @Override
         public boolean equals(Object obj) {
@@ -125,6 +139,7 @@ public abstract class Ast {
         private final Optional<String> returnTypeName;
         private final List<Statement> statements;
         private Environment.Function function = null;
+        private List<String> captures = null;
         
         public Function(String name, List<String> parameters, List<Statement> statements) {
             this(name, parameters, new ArrayList<>(), Optional.of("Any"), statements);
@@ -173,6 +188,18 @@ public abstract class Ast {
             this.function = function;
         }
 
+        /**
+         * The names of the variables this function captures as computed by the
+         * {@link Resolver}, or {@code null} if it has not been resolved.
+         */
+        public List<String> getCaptures() {
+            return captures;
+        }
+
+        public void setCaptures(List<String> captures) {
+            this.captures = captures;
+        }
+
 
         @Override
         public boolean equals(Object obj) {
@@ -202,6 +229,19 @@ public abstract class Ast {
 
     public static abstract class Statement extends Ast {
 
+        /**
+         * Returns true if a block declares a variable directly, and so needs a
+         * scope of its own when executed. Nested blocks are scoped separately.
+         */
+        public static boolean declares(List<Statement> statements) {
+            for (Statement statement : statements) {
+                if (statement instanceof Declaration) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
         public static final class Expression extends Statement {
 
             private final Ast.Expression expression;
@@ -331,12 +371,16 @@ public abstract class Ast {
             private final Ast.Expression condition;
             private final List<Statement> thenStatements;
             private final List<Statement> elseStatements;
+            private final boolean thenDeclares;
+            private final boolean elseDeclares;
 
 
             public If(Ast.Expression condition, List<Statement> thenStatements, List<Statement> elseStatements) {
                 this.condition = condition;
                 this.thenStatements = thenStatements;
                 this.elseStatements = elseStatements;
+                this.thenDeclares = declares(thenStatements);
+                this.elseDeclares = declares(elseStatements);
             }
 
             public Ast.Expression getCondition() {
@@ -351,6 +395,14 @@ public abstract class Ast {
                 return elseStatements;
             }
 
+            public boolean getThenDeclares() {
+                return thenDeclares;
+            }
+
+            public boolean getElseDeclares() {
+                return elseDeclares;
+            }
+
             @Override
             public boolean equals(Object obj) {
                 return obj instanceof If &&
@@ -374,6 +426,7 @@ public abstract class Ast {
 
             private final Ast.Expression condition;
             private final List<Ast.Statement.Case> cases;
+            private Map<Object, Ast.Statement.Case> caseTable = null;
 
             public Switch(Ast.Expression condition, List<Ast.Statement.Case> cases) {
                 this.condition = condition;
@@ -386,6 +439,18 @@ public abstract class Ast {
 
             public List<Ast.Statement.Case> getCases() { return cases; }
 
+            /**
+             * The cases keyed by their constant values, which is only present
+             * once the Analyzer has found every case value to be a constant.
+             */
+            public Optional<Map<Object, Ast.Statement.Case>> getCaseTable() {
+                return Optional.ofNullable(caseTable);
+            }
+
+            public void setCaseTable(Map<Object, Ast.Statement.Case> caseTable) {
+                this.caseTable = caseTable;
+            }
+
             @Override
             public boolean equals(Object obj) {
                 return obj instanceof Switch &&
@@ -407,10 +472,12 @@ public abstract class Ast {
 
             private final Optional<Ast.Expression> value;
             private final List<Statement> statements;
+            private final boolean declares;
 
             public Case(Optional<Ast.Expression> value, List<Statement> statements) {
                 this.value = value;
                 this.statements = statements;
+                this.declares = declares(statements);
             }
 
             public Optional<Ast.Expression> getValue() {
@@ -421,6 +488,10 @@ public abstract class Ast {
                 return statements;
             }
 
+            public boolean getDeclares() {
+                return declares;
+            }
+
             @Override
             public boolean equals(Object obj) {
                 return obj instanceof Case &&
@@ -442,10 +513,12 @@ public abstract class Ast {
 
             private final Ast.Expression condition;
             private final List<Statement> statements;
+            private final boolean declares;
 
             public While(Ast.Expression condition, List<Statement> statements) {
                 this.condition = condition;
                 this.statements = statements;
+                this.declares = declares(statements);
             }
 
             public Ast.Expression getCondition() {
@@ -456,6 +529,10 @@ public abstract class Ast {
                 return statements;
             }
 
+            public boolean getDeclares() {
+                return declares;
+            }
+
             @Override
             public boolean equals(Object obj) {
                 return obj instanceof While &&
@@ -473,6 +550,83 @@ public abstract class Ast {
 
         }
 
+        public static final class For extends Statement {
+
+            private final String name;
+            private final Ast.Expression list;
+            private final List<Statement> statements;
+            private final boolean parallel;
+            private Environment.Variable variable = null;
+            private Map<String, String> reductions = null;
+
+            public For(String name, Ast.Expression list, List<Statement> statements, boolean parallel) {
+                this.name = name;
+                this.list = list;
+                this.statements = statements;
+                this.parallel = parallel;
+            }
+
+            public String getName() {
+                return name;
+            }
+
+            public Ast.Expression getList() {
+                return list;
+            }
+
+            public List<Statement> getStatements() {
+                return statements;
+            }
+
+            public boolean getParallel() {
+                return parallel;
+            }
+
+            public Environment.Variable getVariable() {
+                if (variable == null) {
+                    throw new IllegalStateException("variable is uninitialized");
+                }
+                return variable;
+            }
+
+            public void setVariable(Environment.Variable variable) {
+                this.variable = variable;
+            }
+
+            /**
+             * The reduction variables of a parallel loop mapped to their
+             * operators, which is only present once the Analyzer has checked
+             * that the iterations are independent apart from these.
+             */
+            public Optional<Map<String, String>> getReductions() {
+                return Optional.ofNullable(reductions);
+            }
+
+            public void setReductions(Map<String, String> reductions) {
+                this.reductions = reductions;
+            }
+
+            @Override
+            public boolean equals(Object obj) {
+                return obj instanceof For &&
+                        name.equals(((For) obj).name) &&
+                        list.equals(((For) obj).list) &&
+                        statements.equals(((For) obj).statements) &&
+                        parallel == ((For) obj).parallel;
+            }
+
+            @Override
+            public String toString() {
+                return "Ast.Statement.For{" +
+                        "name='" + name + '\'' +
+                        ", list=" + list +
+                        ", statements=" + statements +
+                        ", parallel=" + parallel +
+                        '}';
+            }
+
+        }
+
         public static final class Return extends Statement {
 
             private final Ast.Expression value;
@@ -509,16 +663,25 @@ public abstract class Ast {
         public static final class Literal extends Ast.Expression {
 
             private final Object literal;
+            private final Environment.PlcObject object;
             private Environment.Type type = null;
             
             public Literal(Object literal) {
                 this.literal = literal;
+                this.object = literal == null ? Environment.NIL : Environment.create(literal);
             }
 
             public Object getLiteral() {
                 return literal;
             }
 
+            /**
+             * The runtime value of this literal, created once with the node.
+             */
+            public Environment.PlcObject getObject() {
+                return object;
+            }
+
             @Override
             public Environment.Type getType() {
                 if (type == null) {
@@ -658,6 +821,7 @@ public abstract class Ast {
             private final Optional<Ast.Expression> offset;
             private final String name;
             private Environment.Variable variable = null;
+            private int capture = -1;
 
             public Access(Optional<Ast.Expression> offset, String name) {
                 this.offset = offset;
@@ -683,6 +847,19 @@ public abstract class Ast {
                 this.variable = variable;
             }
 
+            /**
+             * The index of this variable among the captures of the enclosing
+             * function as computed by the {@link Resolver}, or {@code -1} if
+             * it is a parameter or local or has not been resolved.
+             */
+            public int getCapture() {
+                return capture;
+            }
+
+            public void setCapture(int capture) {
+                this.capture = capture;
+            }
+
             @Override
             public Environment.Type getType() {
                 return getVariable().getType();
@@ -713,6 +890,7 @@ public abstract class Ast {
             private final String name;
             private final List<Ast.Expression> arguments;
             private Environment.Function function = null;
+            private Scope.CachedFunction cachedFunction = null;
 
             public Function(String name, List<Ast.Expression> arguments) {
                 this.name = name;
@@ -738,6 +916,18 @@ public abstract class Ast {
                 this.function = function;
             }
 
+            /**
+             * The runtime target of this call site as last resolved by the
+             * Interpreter, or {@code null} if it has not been called yet.
+             */
+            public Scope.CachedFunction getCachedFunction() {
+                return cachedFunction;
+            }
+
+            public void setCachedFunction(Scope.CachedFunction cachedFunction) {
+                this.cachedFunction = cachedFunction;
+            }
+
             @Override
             public Environment.Type getType() {
                 return getFunction().getReturnType();
@@ -805,6 +995,96 @@ public abstract class Ast {
 
         }
 
+        /**
+         * {@code SPAWN f(args)}, which evaluates the arguments and then starts
+         * the call on a task of its own, evaluating to the task.
+         */
+        public static final class Spawn extends Ast.Expression {
+
+            private final Ast.Expression.Function call;
+            private Environment.Type type = Environment.Type.TASK;
+
+            public Spawn(Ast.Expression.Function call) {
+                this.call = call;
+            }
+
+            public Ast.Expression.Function getCall() {
+                return call;
+            }
+
+            /**
+             * Returns the type of the task, which records the return type of
+             * the call once analyzed.
+             */
+            @Override
+            public Environment.Type getType() {
+                return type;
+            }
+
+            public void setType(Environment.Type type) {
+                this.type = type;
+            }
+
+            @Override
+            public boolean equals(Object obj) {
+                return obj instanceof Ast.Expression.Spawn &&
+                        call.equals(((Ast.Expression.Spawn) obj).call);
+            }
+
+            @Override
+            public String toString() {
+                return "Ast.Expression.Spawn{" +
+                        "call=" + call +
+                        '}';
+            }
+
+        }
+
+        /**
+         * {@code AWAIT task}, which waits for a task to finish and evaluates
+         * to the value its call returned.
+         */
+        public static final class Await extends Ast.Expression {
+
+            private final Ast.Expression task;
+            private Environment.Type type = Environment.Type.ANY;
+
+            public Await(Ast.Expression task) {
+                this.task = task;
+            }
+
+            public Ast.Expression getTask() {
+                return task;
+            }
+
+            /**
+             * Returns the return type of the task's call, if the analyzer
+             * found it, and otherwise {@code Any}.
+             */
+            @Override
+            public Environment.Type getType() {
+                return type;
+            }
+
+            public void setType(Environment.Type type) {
+                this.type = type;
+            }
+
+            @Override
+            public boolean equals(Object obj) {
+                return obj instanceof Ast.Expression.Await &&
+                        task.equals(((Ast.Expression.Await) obj).task);
+            }
+
+            @Override
+            public String toString() {
+                return "Ast.Expression.Await{" +
+                        "task=" + task +
+                        '}';
+            }
+
+        }
+
     }
 
     public interface Visitor<T> {
@@ -830,6 +1110,8 @@ public abstract class Ast {
                 return visit((Ast.Statement.Case) ast);
             } else if (ast instanceof Ast.Statement.While) {
                 return visit((Ast.Statement.While) ast);
+            } else if (ast instanceof Ast.Statement.For) {
+                return visit((Ast.Statement.For) ast);
             } else if (ast instanceof Ast.Statement.Return) {
                 return visit((Ast.Statement.Return) ast);
             } else if (ast instanceof Ast.Expression.Literal) {
@@ -844,6 +1126,10 @@ public abstract class Ast {
                 return visit((Ast.Expression.Function) ast);
             } else if (ast instanceof Ast.Expression.PlcList) {
                 return visit((Ast.Expression.PlcList) ast);
+            } else if (ast instanceof Ast.Expression.Spawn) {
+                return visit((Ast.Expression.Spawn) ast);
+            } else if (ast instanceof Ast.Expression.Await) {
+                return visit((Ast.Expression.Await) ast);
             } else {
                 throw new AssertionError("Unimplemented AST type: " + ast.getClass().getName() + ".");
             }
@@ -869,6 +1155,8 @@ public abstract class Ast {
 
         T visit(Ast.Statement.While ast);
 
+        T visit(Ast.Statement.For ast);
+
         T visit(Ast.Statement.Return ast);
 
         T visit(Ast.Expression.Literal ast);
@@ -882,6 +1170,11 @@ public abstract class Ast {
         T visit(Ast.Expression.Function ast);
 
         T visit(Ast.Expression.PlcList ast);
+
+        T visit(Ast.Expression.Spawn ast);
+
+        T visit(Ast.Expression.Await ast);
+
     }
 
 }
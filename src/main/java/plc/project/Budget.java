@@ -0,0 +1,75 @@
+package plc.project;
+
+import java.time.Duration;
+
+/**
+ * Limits on the work a run may do. Budgets are checked at loop back edges
+ * and function entries, and exceeding one throws a
+ * {@link BudgetExceededException}, as does exceeding the memory quota when a
+ * value is created. Statements are counted a block at a time,
+ * as loop bodies and function bodies are entered, so a run may overshoot the
+ * statement limit by up to one block.
+ */
+public final class Budget {
+
+    public static final Budget UNLIMITED = new Budget(Long.MAX_VALUE, Long.MAX_VALUE, null, Long.MAX_VALUE);
+
+    private final long maxStatements;
+    private final long maxBackEdges;
+    private final Duration timeout;
+    private final long maxMemory;
+
+    private Budget(long maxStatements, long maxBackEdges, Duration timeout, long maxMemory) {
+        this.maxStatements = maxStatements;
+        this.maxBackEdges = maxBackEdges;
+        this.timeout = timeout;
+        this.maxMemory = maxMemory;
+    }
+
+    public long getMaxStatements() {
+        return maxStatements;
+    }
+
+    public long getMaxBackEdges() {
+        return maxBackEdges;
+    }
+
+    /**
+     * Returns the time a run may take from when the budget is applied, or
+     * null if it is unlimited.
+     */
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Returns the approximate number of bytes a run may allocate for the
+     * integers, decimals, strings and lists it creates. This counts every
+     * allocation, including values which are no longer reachable.
+     */
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    public Budget withMaxStatements(long maxStatements) {
+        return new Budget(maxStatements, maxBackEdges, timeout, maxMemory);
+    }
+
+    public Budget withMaxBackEdges(long maxBackEdges) {
+        return new Budget(maxStatements, maxBackEdges, timeout, maxMemory);
+    }
+
+    public Budget withTimeout(Duration timeout) {
+        return new Budget(maxStatements, maxBackEdges, timeout, maxMemory);
+    }
+
+    public Budget withMaxMemory(long maxMemory) {
+        return new Budget(maxStatements, maxBackEdges, timeout, maxMemory);
+    }
+
+    @Override
+    public String toString() {
+        return "Budget{maxStatements=" + maxStatements + ", maxBackEdges=" + maxBackEdges + ", timeout=" + timeout + ", maxMemory=" + maxMemory + "}";
+    }
+
+}
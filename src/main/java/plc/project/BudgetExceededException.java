@@ -0,0 +1,27 @@
+package plc.project;
+
+/**
+ * Thrown when a run exceeds its {@link Budget} or is cancelled.
+ */
+public final class BudgetExceededException extends RuntimeException {
+
+    public enum Reason {
+        STATEMENTS,
+        BACK_EDGES,
+        DEADLINE,
+        MEMORY,
+        CANCELLED
+    }
+
+    private final Reason reason;
+
+    public BudgetExceededException(Reason reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+}
@@ -0,0 +1,1004 @@
+package plc.project;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.IntPredicate;
+
+/**
+ * An execution engine which compiles each node once into a tree of pre-bound
+ * closures and then runs them. Operators, local variable slots and call sites
+ * are resolved while compiling, so running a program involves no visitor
+ * dispatch, operator switch or lookup of local names.
+ *
+ * Functions are scoped lexically: their parameters and locals live in the
+ * slots of a {@link Frame}, and any other name refers to a global. Statements
+ * run outside of a function declare their outermost variables in
+ * {@link #getScope()} like the {@link Interpreter}.
+ *
+ * A typed compiler requires a source which the {@link Analyzer} has checked,
+ * and uses the static types of expressions to select evaluators specialized
+ * to them, such as integer addition or string comparison. Runtime type checks
+ * then remain only where a static type is {@code Any} or {@code Comparable}.
+ *
+ * Loop back edges and function entries are charged to the budget and check
+ * for cancellation like those of the {@link Interpreter}, though the values
+ * created are not charged to the memory quota.
+ */
+public final class ClosureCompiler extends Interpreter {
+
+    /**
+     * Returned by a compiled statement which executed a {@code RETURN}, with
+     * the value or pending tail call held by the frame.
+     */
+    private static final Environment.PlcObject RETURNED = new Environment.PlcObject(Environment.Type.NIL, null, "return");
+
+    private final Scope globals;
+    private final boolean typed;
+
+    public ClosureCompiler(Scope parent) {
+        this(parent, false);
+    }
+
+    public ClosureCompiler(Scope parent, boolean typed) {
+        super(parent);
+        this.globals = getScope();
+        this.typed = typed;
+    }
+
+    public boolean isTyped() {
+        return typed;
+    }
+
+    /**
+     * A compiled node. Statements evaluate to {@link Environment#NIL}, or to
+     * {@link #RETURNED} once a {@code RETURN} has been executed.
+     */
+    @FunctionalInterface
+    interface Eval {
+        Environment.PlcObject eval(Frame frame);
+    }
+
+    /**
+     * A compiled condition.
+     */
+    @FunctionalInterface
+    interface Test {
+        boolean test(Frame frame);
+    }
+
+    /**
+     * The slots of one function invocation, or of one top level execution.
+     */
+    static final class Frame {
+
+        private final Environment.PlcObject[] slots;
+        private Environment.PlcObject result = Environment.NIL;
+        private CompiledFunction tailCall = null;
+        private Frame tailFrame = null;
+
+        private Frame(int size) {
+            this.slots = new Environment.PlcObject[size];
+        }
+
+    }
+
+    @Override
+    public Environment.PlcObject visit(Ast.Source ast) {
+        if (typed) {
+            requireAnalyzed(ast);
+        }
+        return execute(ast);
+    }
+
+    @Override
+    public Environment.PlcObject visit(Ast.Global ast) {
+        return execute(ast);
+    }
+
+    @Override
+    public Environment.PlcObject visit(Ast.Function ast) {
+        return execute(ast);
+    }
+
+    @Override
+    public Environment.PlcObject visit(Ast.Statement.Expression ast) {
+        return execute(ast);
+    }
+
+    @Override
+    public Environment.PlcObject visit(Ast.Statement.Declaration ast) {
+        return execute(ast);
+    }
+
+    @Override
+    public Environment.PlcObject visit(Ast.Statement.Assignment ast) {
+        return execute(ast);
+    }
+
+    @Override
+    public Environment.PlcObject visit(Ast.Statement.If ast) {
+        return execute(ast);
+    }
+
+    @Override
+    public Environment.PlcObject visit(Ast.Statement.Switch ast) {
+        return execute(ast);
+    }
+
+    @Override
+    public Environment.PlcObject visit(Ast.Statement.Case ast) {
+        return execute(ast);
+    }
+
+    @Override
+    public Environment.PlcObject visit(Ast.Statement.While ast) {
+        return execute(ast);
+    }
+
+    @Override
+    public Environment.PlcObject visit(Ast.Statement.For ast) {
+        return execute(ast);
+    }
+
+    @Override
+    public Environment.PlcObject visit(Ast.Statement.Return ast) {
+        return execute(ast);
+    }
+
+    @Override
+    public Environment.PlcObject visit(Ast.Expression.Literal ast) {
+        return execute(ast);
+    }
+
+    @Override
+    public Environment.PlcObject visit(Ast.Expression.Group ast) {
+        return execute(ast);
+    }
+
+    @Override
+    public Environment.PlcObject visit(Ast.Expression.Binary ast) {
+        return execute(ast);
+    }
+
+    @Override
+    public Environment.PlcObject visit(Ast.Expression.Access ast) {
+        return execute(ast);
+    }
+
+    @Override
+    public Environment.PlcObject visit(Ast.Expression.Function ast) {
+        return execute(ast);
+    }
+
+    @Override
+    public Environment.PlcObject visit(Ast.Expression.PlcList ast) {
+        return execute(ast);
+    }
+
+    @Override
+    public Environment.PlcObject visit(Ast.Expression.Spawn ast) {
+        return execute(ast);
+    }
+
+    @Override
+    public Environment.PlcObject visit(Ast.Expression.Await ast) {
+        return execute(ast);
+    }
+
+    /**
+     * Compiles a function without defining it, returning its implementation.
+     */
+    Environment.Invoker compile(Ast.Function ast) {
+        return new CompiledFunction(ast);
+    }
+
+    /**
+     * Ensures the source has been analyzed, which sets the function and
+     * variable of every global and function.
+     */
+    private static void requireAnalyzed(Ast.Source ast) {
+        try {
+            ast.getGlobals().forEach(Ast.Global::getVariable);
+            ast.getFunctions().forEach(Ast.Function::getFunction);
+        } catch (IllegalStateException e) {
+            throw new IllegalStateException("The source must be analyzed before it is compiled with types.", e);
+        }
+    }
+
+    /**
+     * Returns the static type of an analyzed expression, or {@code Any} if it
+     * has not been analyzed.
+     */
+    private static Environment.Type staticType(Ast.Expression expression) {
+        try {
+            return expression.getType();
+        } catch (IllegalStateException e) {
+            return Environment.Type.ANY;
+        }
+    }
+
+    /**
+     * Compiles a node outside of any function and runs it once.
+     */
+    private Environment.PlcObject execute(Ast ast) {
+        Translator translator = new Translator(null);
+        Eval eval = translator.visit(ast);
+        Frame frame = new Frame(translator.size);
+        Environment.PlcObject value = eval.eval(frame);
+        return value == RETURNED ? frame.result : value;
+    }
+
+    /**
+     * The names declared by a block, mapped to their slots in the frame.
+     */
+    private static final class Block {
+
+        private final Block parent;
+        private final Map<String, Integer> slots = new HashMap<>();
+
+        private Block(Block parent) {
+            this.parent = parent;
+        }
+
+    }
+
+    /**
+     * Compiles the nodes of one function, or of one top level execution,
+     * allocating a slot for every parameter and local variable.
+     */
+    private final class Translator implements Ast.Visitor<Eval> {
+
+        private final CompiledFunction function;
+        private Block block;
+        private int size = 0;
+
+        private Translator(CompiledFunction function) {
+            this.function = function;
+            this.block = function == null ? null : new Block(null);
+        }
+
+        /**
+         * Allocates a slot for a variable declared in the current block.
+         */
+        private int declare(String name) {
+            if (block.slots.containsKey(name)) {
+                throw new RuntimeException("The variable " + name + " is already defined in this scope.");
+            }
+            block.slots.put(name, size);
+            return size++;
+        }
+
+        /**
+         * Returns the slot of a local variable, or null for a global.
+         */
+        private Integer lookup(String name) {
+            for (Block b = block; b != null; b = b.parent) {
+                if (b.slots.containsKey(name)) {
+                    return b.slots.get(name);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Eval visit(Ast.Source ast) {
+            Eval[] globals = compile(ast.getGlobals());
+            Eval[] functions = compile(ast.getFunctions());
+            return frame -> {
+                for (Eval global : globals) {
+                    global.eval(frame);
+                }
+                for (Eval function : functions) {
+                    function.eval(frame);
+                }
+                return ClosureCompiler.this.globals.lookupFunction("main", 0).invoke();
+            };
+        }
+
+        @Override
+        public Eval visit(Ast.Global ast) {
+            Optional<Ast.Expression> opt = ast.getValue();
+            Eval value;
+            if (opt.isPresent() && opt.get() instanceof Ast.Expression.PlcList) {
+                value = list((Ast.Expression.PlcList) opt.get(), Environment.getType(ast.getTypeName()));
+            } else if (opt.isPresent()) {
+                value = visit(opt.get());
+            } else {
+                value = frame -> Environment.NIL;
+            }
+            return frame -> {
+                globals.defineVariable(ast.getName(), ast.getMutable(), value.eval(frame));
+                return Environment.NIL;
+            };
+        }
+
+        @Override
+        public Eval visit(Ast.Function ast) {
+            CompiledFunction compiled = new CompiledFunction(ast);
+            return frame -> {
+                globals.defineFunction(ast.getName(), ast.getParameters().size(), compiled);
+                return Environment.NIL;
+            };
+        }
+
+        @Override
+        public Eval visit(Ast.Statement.Expression ast) {
+            Eval expression = visit(ast.getExpression());
+            return frame -> {
+                expression.eval(frame);
+                return Environment.NIL;
+            };
+        }
+
+        @Override
+        public Eval visit(Ast.Statement.Declaration ast) {
+            Eval value = ast.getValue().isPresent() ? visit(ast.getValue().get()) : frame -> Environment.NIL;
+            if (block == null) { // declared in the scope, outside of any block
+                return frame -> {
+                    globals.defineVariable(ast.getName(), true, value.eval(frame));
+                    return Environment.NIL;
+                };
+            }
+            int slot = declare(ast.getName());
+            return frame -> {
+                frame.slots[slot] = value.eval(frame);
+                return Environment.NIL;
+            };
+        }
+
+        @Override
+        public Eval visit(Ast.Statement.Assignment ast) {
+            if (!(ast.getReceiver() instanceof Ast.Expression.Access)) {
+                return frame -> Environment.NIL;
+            }
+            Ast.Expression.Access receiver = (Ast.Expression.Access) ast.getReceiver();
+            Eval value = visit(ast.getValue());
+            Integer slot = lookup(receiver.getName());
+            Eval target;
+            if (slot != null) {
+                int index = slot;
+                if (!receiver.getOffset().isPresent()) {
+                    return frame -> {
+                        frame.slots[index] = value.eval(frame);
+                        return Environment.NIL;
+                    };
+                }
+                target = frame -> frame.slots[index];
+            } else {
+                Global global = new Global(receiver.getName());
+                if (!receiver.getOffset().isPresent()) {
+                    return frame -> {
+                        global.mutable().setValue(value.eval(frame));
+                        return Environment.NIL;
+                    };
+                }
+                target = frame -> global.mutable().getValue();
+            }
+            Eval offset = visit(receiver.getOffset().get());
+            return frame -> {
+                List<Object> list = requireType(List.class, target.eval(frame));
+                int index = index(list, offset.eval(frame));
+                Object element = value.eval(frame).getValue();
+                if (list instanceof Environment.PlcList) {
+                    ((Environment.PlcList) list).update(index, element);
+                } else {
+                    list.set(index, element);
+                }
+                return Environment.NIL;
+            };
+        }
+
+        @Override
+        public Eval visit(Ast.Statement.If ast) {
+            Test condition = test(ast.getCondition());
+            Eval then = block(ast.getThenStatements(), ast.getThenDeclares());
+            Eval otherwise = block(ast.getElseStatements(), ast.getElseDeclares());
+            return frame -> condition.test(frame) ? then.eval(frame) : otherwise.eval(frame);
+        }
+
+        @Override
+        public Eval visit(Ast.Statement.Switch ast) {
+            Eval condition = visit(ast.getCondition());
+            List<Ast.Statement.Case> cases = ast.getCases();
+            Eval[] bodies = new Eval[cases.size()];
+            for (int i = 0; i < bodies.length; i++) {
+                bodies[i] = block(cases.get(i).getStatements(), cases.get(i).getDeclares());
+            }
+            Eval fallback = !cases.isEmpty() && !cases.get(cases.size() - 1).getValue().isPresent()
+                    ? bodies[bodies.length - 1]
+                    : frame -> Environment.NIL;
+            Optional<Map<Object, Ast.Statement.Case>> table = ast.getCaseTable();
+            if (table.isPresent()) { // constant cases, dispatched through the table built by the Analyzer
+                Map<Object, Eval> selected = new HashMap<>();
+                table.get().forEach((key, c) -> selected.put(key, bodies[cases.indexOf(c)]));
+                return frame -> selected.getOrDefault(condition.eval(frame).getValue(), fallback).eval(frame);
+            }
+            List<Eval> values = new ArrayList<>();
+            List<Eval> matched = new ArrayList<>();
+            for (int i = 0; i < bodies.length; i++) {
+                if (cases.get(i).getValue().isPresent()) {
+                    values.add(visit(cases.get(i).getValue().get()));
+                    matched.add(bodies[i]);
+                }
+            }
+            return frame -> {
+                Object value = condition.eval(frame).getValue();
+                for (int i = 0; i < values.size(); i++) {
+                    if (value.equals(values.get(i).eval(frame).getValue())) {
+                        return matched.get(i).eval(frame);
+                    }
+                }
+                return fallback.eval(frame);
+            };
+        }
+
+        @Override
+        public Eval visit(Ast.Statement.Case ast) {
+            return visit(ast.getValue().get());
+        }
+
+        @Override
+        public Eval visit(Ast.Statement.While ast) {
+            Test condition = test(ast.getCondition());
+            Eval body = block(ast.getStatements(), ast.getDeclares());
+            int statements = ast.getStatements().size();
+            return frame -> {
+                while (condition.test(frame)) {
+                    meter(statements, 1);
+                    if (body.eval(frame) == RETURNED) {
+                        return RETURNED;
+                    }
+                }
+                return Environment.NIL;
+            };
+        }
+
+        /**
+         * Compiles a loop over a list, with the element in a slot of its own.
+         * Compiled functions run in one frame, so the iterations of a
+         * {@code PARALLEL FOR} run in order, which the Analyzer ensures is
+         * equivalent.
+         */
+        @Override
+        public Eval visit(Ast.Statement.For ast) {
+            Eval list = visit(ast.getList());
+            Block enclosing = block;
+            int slot;
+            Eval body;
+            try {
+                block = new Block(enclosing);
+                slot = declare(ast.getName());
+                body = block(ast.getStatements(), Ast.Statement.declares(ast.getStatements()));
+            } finally {
+                block = enclosing;
+            }
+            int statements = ast.getStatements().size();
+            return frame -> {
+                List<?> values = requireType(List.class, list.eval(frame));
+                for (int i = 0; i < values.size(); i++) {
+                    meter(statements, 1);
+                    frame.slots[slot] = Environment.create(values.get(i));
+                    if (body.eval(frame) == RETURNED) {
+                        return RETURNED;
+                    }
+                }
+                return Environment.NIL;
+            };
+        }
+
+        @Override
+        public Eval visit(Ast.Statement.Return ast) {
+            if (function != null && ast.getValue() instanceof Ast.Expression.Function) {
+                // a call to a compiled function in tail position is bound to a
+                // new frame, which the enclosing call then runs in its place
+                Ast.Expression.Function call = (Ast.Expression.Function) ast.getValue();
+                CallSite site = new CallSite(call.getName(), call.getArguments().size());
+                Eval[] arguments = compile(call.getArguments());
+                Eval value = visit(call);
+                return frame -> {
+                    Environment.Invoker invoker = site.resolve().getInvoker();
+                    if (invoker instanceof CompiledFunction && ((CompiledFunction) invoker).getCompiler() == ClosureCompiler.this) {
+                        CompiledFunction callee = (CompiledFunction) invoker;
+                        Frame next = callee.frame(arguments.length);
+                        for (int i = 0; i < arguments.length; i++) {
+                            next.slots[i] = arguments[i].eval(frame);
+                        }
+                        frame.tailCall = callee;
+                        frame.tailFrame = next;
+                    } else {
+                        frame.result = value.eval(frame);
+                    }
+                    return RETURNED;
+                };
+            }
+            Eval value = visit(ast.getValue());
+            return frame -> {
+                frame.result = value.eval(frame);
+                return RETURNED;
+            };
+        }
+
+        @Override
+        public Eval visit(Ast.Expression.Literal ast) {
+            Environment.PlcObject object = ast.getObject();
+            return frame -> object;
+        }
+
+        @Override
+        public Eval visit(Ast.Expression.Group ast) {
+            return visit(ast.getExpression());
+        }
+
+        @Override
+        public Eval visit(Ast.Expression.Binary ast) {
+            Eval left = visit(ast.getLeft());
+            Eval right = visit(ast.getRight());
+            Eval specialized = typed ? binary(ast, left, right) : null;
+            if (specialized != null) {
+                return specialized;
+            }
+            switch (ast.getOperator()) {
+                case "&&":
+                    return frame -> requireType(Boolean.class, left.eval(frame))
+                            ? Environment.create(requireType(Boolean.class, right.eval(frame)))
+                            : Environment.FALSE;
+                case "||":
+                    return frame -> requireType(Boolean.class, left.eval(frame))
+                            ? Environment.TRUE
+                            : Environment.create(requireType(Boolean.class, right.eval(frame)));
+                case "+":
+                    return frame -> add(left.eval(frame), right.eval(frame));
+                case "-":
+                    return frame -> subtract(left.eval(frame), right.eval(frame));
+                case "*":
+                    return frame -> multiply(left.eval(frame), right.eval(frame));
+                case "/":
+                    return frame -> divide(left.eval(frame), right.eval(frame));
+                case "==":
+                    return frame -> Environment.create(Objects.equals(left.eval(frame).getValue(), right.eval(frame).getValue()));
+                case "!=":
+                    return frame -> Environment.create(!Objects.equals(left.eval(frame).getValue(), right.eval(frame).getValue()));
+                case "<":
+                    return frame -> lessThan(left.eval(frame), right.eval(frame));
+                case "<=":
+                    return frame -> lessThanOrEqual(left.eval(frame), right.eval(frame));
+                case ">":
+                    return frame -> greaterThan(left.eval(frame), right.eval(frame));
+                case ">=":
+                    return frame -> greaterThanOrEqual(left.eval(frame), right.eval(frame));
+                case "^":
+                    return frame -> power(left.eval(frame), right.eval(frame));
+                default:
+                    return frame -> evaluate(ast.getOperator(), left.eval(frame), right.eval(frame));
+            }
+        }
+
+        /**
+         * Selects an evaluator specialized to the static types of the
+         * operands, returning null if there is none.
+         */
+        private Eval binary(Ast.Expression.Binary ast, Eval left, Eval right) {
+            Ast.Expression l = ast.getLeft();
+            Ast.Expression r = ast.getRight();
+            switch (ast.getOperator()) {
+                case "&&":
+                    if (typed(Environment.Type.BOOLEAN, l, r)) {
+                        return frame -> (Boolean) left.eval(frame).getValue() ? right.eval(frame) : Environment.FALSE;
+                    }
+                    break;
+                case "||":
+                    if (typed(Environment.Type.BOOLEAN, l, r)) {
+                        return frame -> (Boolean) left.eval(frame).getValue() ? Environment.TRUE : right.eval(frame);
+                    }
+                    break;
+                case "+":
+                    if (typed(Environment.Type.INTEGER, l, r)) {
+                        return frame -> Environment.create(integer(left, frame).add(integer(right, frame)));
+                    } else if (typed(Environment.Type.DECIMAL, l, r)) {
+                        return frame -> Environment.create(decimal(left, frame).add(decimal(right, frame)));
+                    } else if (typed(Environment.Type.STRING, l, r)) {
+                        return frame -> Environment.create((String) left.eval(frame).getValue() + right.eval(frame).getValue());
+                    }
+                    break;
+                case "-":
+                    if (typed(Environment.Type.INTEGER, l, r)) {
+                        return frame -> Environment.create(integer(left, frame).subtract(integer(right, frame)));
+                    } else if (typed(Environment.Type.DECIMAL, l, r)) {
+                        return frame -> Environment.create(decimal(left, frame).subtract(decimal(right, frame)));
+                    }
+                    break;
+                case "*":
+                    if (typed(Environment.Type.INTEGER, l, r)) {
+                        return frame -> Environment.create(integer(left, frame).multiply(integer(right, frame)));
+                    } else if (typed(Environment.Type.DECIMAL, l, r)) {
+                        return frame -> Environment.create(decimal(left, frame).multiply(decimal(right, frame)));
+                    }
+                    break;
+                case "/":
+                    if (typed(Environment.Type.INTEGER, l, r)) {
+                        return frame -> {
+                            BigInteger dividend = integer(left, frame);
+                            BigInteger divisor = integer(right, frame);
+                            if (divisor.signum() == 0) {
+                                throw new RuntimeException("Division by zero.");
+                            }
+                            return Environment.create(dividend.divide(divisor));
+                        };
+                    } else if (typed(Environment.Type.DECIMAL, l, r)) {
+                        return frame -> {
+                            BigDecimal dividend = decimal(left, frame);
+                            BigDecimal divisor = decimal(right, frame);
+                            if (divisor.signum() == 0) {
+                                throw new RuntimeException("Division by zero.");
+                            }
+                            return Environment.create(dividend.divide(divisor, RoundingMode.HALF_EVEN));
+                        };
+                    }
+                    break;
+                case "<":
+                    return comparison(l, r, left, right, c -> c < 0);
+                case "<=":
+                    return comparison(l, r, left, right, c -> c <= 0);
+                case ">":
+                    return comparison(l, r, left, right, c -> c > 0);
+                case ">=":
+                    return comparison(l, r, left, right, c -> c >= 0);
+                case "^":
+                    if (typed(Environment.Type.INTEGER, r) && typed(Environment.Type.INTEGER, l)) {
+                        return frame -> Environment.create(integer(left, frame).pow(integer(right, frame).intValue()));
+                    } else if (typed(Environment.Type.INTEGER, r) && typed(Environment.Type.DECIMAL, l)) {
+                        return frame -> Environment.create(decimal(left, frame).pow(integer(right, frame).intValue()));
+                    }
+                    break;
+            }
+            return null;
+        }
+
+        /**
+         * Selects a comparison of two operands of the same comparable type.
+         */
+        @SuppressWarnings("unchecked")
+        private Eval comparison(Ast.Expression l, Ast.Expression r, Eval left, Eval right, IntPredicate result) {
+            Environment.Type type = staticType(l);
+            if (!typed(type, r) || !(type.equals(Environment.Type.INTEGER) || type.equals(Environment.Type.DECIMAL)
+                    || type.equals(Environment.Type.STRING) || type.equals(Environment.Type.CHARACTER))) {
+                return null;
+            }
+            return frame -> Environment.create(result.test(((Comparable<Object>) left.eval(frame).getValue()).compareTo(right.eval(frame).getValue())));
+        }
+
+        /**
+         * Returns true if compiling with types and each expression has the
+         * given static type.
+         */
+        private boolean typed(Environment.Type type, Ast.Expression... expressions) {
+            if (!typed) {
+                return false;
+            }
+            for (Ast.Expression expression : expressions) {
+                if (!type.equals(staticType(expression))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Compiles a condition, which only checks that it is a boolean at
+         * runtime if it is not statically known to be one.
+         */
+        private Test test(Ast.Expression ast) {
+            Eval condition = visit(ast);
+            if (typed(Environment.Type.BOOLEAN, ast)) {
+                return frame -> (Boolean) condition.eval(frame).getValue();
+            }
+            return frame -> requireType(Boolean.class, condition.eval(frame));
+        }
+
+        @Override
+        public Eval visit(Ast.Expression.Access ast) {
+            Integer slot = lookup(ast.getName());
+            Eval variable;
+            if (slot != null) {
+                int index = slot;
+                variable = frame -> frame.slots[index];
+            } else {
+                Global global = new Global(ast.getName());
+                variable = frame -> global.get().getValue();
+            }
+            if (!ast.getOffset().isPresent()) {
+                return variable;
+            }
+            Eval offset = visit(ast.getOffset().get());
+            return frame -> {
+                List<?> list = requireType(List.class, variable.eval(frame));
+                return Environment.create(list.get(index(list, offset.eval(frame))));
+            };
+        }
+
+        @Override
+        public Eval visit(Ast.Expression.Function ast) {
+            CallSite site = new CallSite(ast.getName(), ast.getArguments().size());
+            Eval[] arguments = compile(ast.getArguments());
+            switch (arguments.length) {
+                case 0:
+                    return frame -> site.resolve().invoke();
+                case 1: {
+                    Eval a = arguments[0];
+                    return frame -> site.resolve().invoke(a.eval(frame));
+                }
+                case 2: {
+                    Eval a = arguments[0], b = arguments[1];
+                    return frame -> site.resolve().invoke(a.eval(frame), b.eval(frame));
+                }
+                case 3: {
+                    Eval a = arguments[0], b = arguments[1], c = arguments[2];
+                    return frame -> site.resolve().invoke(a.eval(frame), b.eval(frame), c.eval(frame));
+                }
+                case 4: {
+                    Eval a = arguments[0], b = arguments[1], c = arguments[2], d = arguments[3];
+                    return frame -> site.resolve().invoke(a.eval(frame), b.eval(frame), c.eval(frame), d.eval(frame));
+                }
+                default:
+                    return frame -> {
+                        Environment.Function function = site.resolve();
+                        Environment.PlcObject[] values = new Environment.PlcObject[arguments.length];
+                        for (int i = 0; i < values.length; i++) {
+                            values[i] = arguments[i].eval(frame);
+                        }
+                        return function.invoke(values);
+                    };
+            }
+        }
+
+        @Override
+        public Eval visit(Ast.Expression.PlcList ast) {
+            return list(ast, Environment.Type.ANY);
+        }
+
+        @Override
+        public Eval visit(Ast.Expression.Spawn ast) {
+            CallSite site = new CallSite(ast.getCall().getName(), ast.getCall().getArguments().size());
+            Eval[] arguments = compile(ast.getCall().getArguments());
+            return frame -> {
+                Environment.Function function = site.resolve();
+                Environment.PlcObject[] values = new Environment.PlcObject[arguments.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = arguments[i].eval(frame);
+                }
+                return spawn(function, values);
+            };
+        }
+
+        @Override
+        public Eval visit(Ast.Expression.Await ast) {
+            Eval task = visit(ast.getTask());
+            return frame -> requireType(Environment.Task.class, task.eval(frame)).await();
+        }
+
+        /**
+         * Compiles a list literal into a runtime list of the given element type.
+         */
+        private Eval list(Ast.Expression.PlcList ast, Environment.Type type) {
+            Eval[] values = compile(ast.getValues());
+            return frame -> {
+                List<Object> list = new ArrayList<>(values.length);
+                for (Eval value : values) {
+                    list.add(value.eval(frame).getValue());
+                }
+                return Environment.create(Environment.PlcList.of(type, list));
+            };
+        }
+
+        /**
+         * Compiles a block, which has names of its own only if it declares a
+         * variable.
+         */
+        private Eval block(List<Ast.Statement> statements, boolean declares) {
+            Block enclosing = block;
+            Eval[] evals;
+            try {
+                if (declares) {
+                    block = new Block(enclosing);
+                }
+                evals = compile(statements);
+            } finally {
+                block = enclosing;
+            }
+            switch (evals.length) {
+                case 0:
+                    return frame -> Environment.NIL;
+                case 1:
+                    return evals[0];
+                default:
+                    return frame -> {
+                        for (Eval eval : evals) {
+                            if (eval.eval(frame) == RETURNED) {
+                                return RETURNED;
+                            }
+                        }
+                        return Environment.NIL;
+                    };
+            }
+        }
+
+        private Eval[] compile(List<? extends Ast> asts) {
+            Eval[] evals = new Eval[asts.size()];
+            for (int i = 0; i < evals.length; i++) {
+                evals[i] = visit(asts.get(i));
+            }
+            return evals;
+        }
+
+    }
+
+    private static BigInteger integer(Eval eval, Frame frame) {
+        return (BigInteger) eval.eval(frame).getValue();
+    }
+
+    private static BigDecimal decimal(Eval eval, Frame frame) {
+        return (BigDecimal) eval.eval(frame).getValue();
+    }
+
+    /**
+     * A global variable, resolved on first use since it may be defined after
+     * the code referring to it is compiled.
+     */
+    private final class Global {
+
+        private final String name;
+        private Environment.Variable variable = null;
+
+        private Global(String name) {
+            this.name = name;
+        }
+
+        private Environment.Variable get() {
+            if (variable == null) {
+                variable = globals.lookupVariable(name);
+            }
+            return variable;
+        }
+
+        private Environment.Variable mutable() {
+            Environment.Variable variable = get();
+            if (!variable.getMutable()) throw new RuntimeException("The variable " + variable.getName() + " is immutable.");
+            return variable;
+        }
+
+    }
+
+    /**
+     * The target of a call, resolved from the global scope and kept until
+     * another function is defined.
+     */
+    private final class CallSite {
+
+        private final String name;
+        private final int arity;
+        private Scope.CachedFunction cached = null;
+
+        private CallSite(String name, int arity) {
+            this.name = name;
+            this.arity = arity;
+        }
+
+        private Environment.Function resolve() {
+            if (cached == null || !cached.isValid(globals)) {
+                cached = globals.cacheFunction(name, arity);
+            }
+            return cached.getFunction();
+        }
+
+    }
+
+    /**
+     * The invoker of a compiled function, binding arguments to the first
+     * slots of a new frame.
+     */
+    private final class CompiledFunction extends Environment.Invoker {
+
+        private final Ast.Function function;
+        private final Eval body;
+        private final int size;
+
+        private CompiledFunction(Ast.Function function) {
+            this.function = function;
+            Translator translator = new Translator(this);
+            for (String parameter : function.getParameters()) {
+                translator.declare(parameter);
+            }
+            this.body = translator.block(function.getStatements(), false);
+            this.size = translator.size;
+        }
+
+        private ClosureCompiler getCompiler() {
+            return ClosureCompiler.this;
+        }
+
+        @Override
+        public Environment.PlcObject invoke(Environment.PlcObject[] arguments) {
+            Frame frame = frame(arguments.length);
+            System.arraycopy(arguments, 0, frame.slots, 0, arguments.length);
+            return call(frame);
+        }
+
+        @Override
+        public Environment.PlcObject invoke() {
+            return call(frame(0));
+        }
+
+        @Override
+        public Environment.PlcObject invoke(Environment.PlcObject a) {
+            Frame frame = frame(1);
+            frame.slots[0] = a;
+            return call(frame);
+        }
+
+        @Override
+        public Environment.PlcObject invoke(Environment.PlcObject a, Environment.PlcObject b) {
+            Frame frame = frame(2);
+            frame.slots[0] = a;
+            frame.slots[1] = b;
+            return call(frame);
+        }
+
+        @Override
+        public Environment.PlcObject invoke(Environment.PlcObject a, Environment.PlcObject b, Environment.PlcObject c) {
+            Frame frame = frame(3);
+            frame.slots[0] = a;
+            frame.slots[1] = b;
+            frame.slots[2] = c;
+            return call(frame);
+        }
+
+        @Override
+        public Environment.PlcObject invoke(Environment.PlcObject a, Environment.PlcObject b, Environment.PlcObject c, Environment.PlcObject d) {
+            Frame frame = frame(4);
+            frame.slots[0] = a;
+            frame.slots[1] = b;
+            frame.slots[2] = c;
+            frame.slots[3] = d;
+            return call(frame);
+        }
+
+        private Frame frame(int arity) {
+            if (arity != function.getParameters().size()) {
+                throw new RuntimeException("Expected " + function.getParameters().size() + " arguments, received " + arity + ".");
+            }
+            return new Frame(size);
+        }
+
+        /**
+         * Runs the body in the given frame, looping on tail calls so a chain
+         * of them uses constant Java stack.
+         */
+        private Environment.PlcObject call(Frame frame) {
+            CompiledFunction compiled = this;
+            while (true) {
+                meter(compiled.function.getStatements().size(), 0);
+                if (compiled.body.eval(frame) != RETURNED) {
+                    return Environment.NIL;
+                } else if (frame.tailCall == null) {
+                    return frame.result;
+                }
+                compiled = frame.tailCall;
+                frame = frame.tailFrame;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "CompiledFunction{" + function.getName() + "/" + function.getParameters().size() + "}";
+        }
+
+    }
+
+}
@@ -0,0 +1,646 @@
+package plc.project;
+
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * An interpreter which keeps PLC frames, pending work and intermediate values
+ * on the heap instead of the Java stack. Each node is evaluated by pushing
+ * {@link Continuation}s onto an explicit stack, so recursion depth is bounded
+ * only by {@link #getMaxFrames()} and a running program can be suspended with
+ * {@link #suspend()} at any statement boundary and resumed with {@link #run()}.
+ *
+ * The semantics match {@link Interpreter}, which it shares operators with.
+ */
+public final class ContinuationInterpreter {
+
+    private final Scope globals;
+    private final int maxFrames;
+    private final List<Continuation> continuations = new ArrayList<>();
+    private final List<Environment.PlcObject> values = new ArrayList<>();
+    private Scope scope;
+    private int frames = 0;
+    private volatile boolean suspended = false;
+    private Environment.PlcObject result = null;
+    private PrintStream out = null;
+
+    public ContinuationInterpreter(Scope parent) {
+        this(parent, 1_000_000);
+    }
+
+    public ContinuationInterpreter(Scope parent, int maxFrames) {
+        this.scope = new Scope(parent);
+        this.globals = scope;
+        this.maxFrames = maxFrames;
+        scope.defineFunction("print", value -> {
+            (out != null ? out : System.out).println(value.getValue());
+            return Environment.NIL;
+        });
+        Interpreter.defineChannels(scope);
+    }
+
+    /**
+     * Creates an interpreter for a task spawned by another, sharing its
+     * globals but with continuations and values of its own.
+     */
+    private ContinuationInterpreter(ContinuationInterpreter parent) {
+        this.scope = parent.globals;
+        this.globals = parent.globals;
+        this.maxFrames = parent.maxFrames;
+    }
+
+    public Scope getScope() {
+        return scope;
+    }
+
+    public int getMaxFrames() {
+        return maxFrames;
+    }
+
+    /**
+     * Sets the stream {@code print} writes to, which is {@link System#out}
+     * at the time of the call if it is null, as by default.
+     */
+    public void setOutput(PrintStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Evaluates the given node to completion, returning its value.
+     */
+    public Environment.PlcObject execute(Ast ast) {
+        load(ast);
+        while (!run()) {
+            // suspension was requested by another thread, but this call must complete
+        }
+        return getResult();
+    }
+
+    /**
+     * Prepares the given node to be evaluated by {@link #run()}.
+     */
+    public void load(Ast ast) {
+        if (!isFinished()) {
+            throw new IllegalStateException("The interpreter is still running another program.");
+        }
+        result = null;
+        suspended = false;
+        push(new Result());
+        if (ast instanceof Ast.Statement) {
+            push(() -> pushValue(Environment.NIL));
+        }
+        push(ast);
+    }
+
+    /**
+     * Runs the loaded program until it completes, returning true, or until it
+     * is suspended at a statement boundary, returning false. A suspended
+     * program continues where it left off on the next call, which always
+     * makes progress before suspending again.
+     */
+    public boolean run() {
+        try {
+            boolean resumed = false;
+            while (!continuations.isEmpty()) {
+                Continuation next = continuations.get(continuations.size() - 1);
+                if (next instanceof Statement && suspended && resumed) {
+                    suspended = false;
+                    return false;
+                }
+                continuations.remove(continuations.size() - 1);
+                next.resume();
+                resumed = true;
+            }
+            return true;
+        } catch (RuntimeException e) {
+            continuations.clear();
+            values.clear();
+            scope = globals;
+            frames = 0;
+            throw e;
+        }
+    }
+
+    /**
+     * Requests the running program to stop before its next statement. This
+     * may be called from any thread.
+     */
+    public void suspend() {
+        suspended = true;
+    }
+
+    public boolean isFinished() {
+        return continuations.isEmpty();
+    }
+
+    public Environment.PlcObject getResult() {
+        if (result == null) {
+            throw new IllegalStateException("result is uninitialized");
+        }
+        return result;
+    }
+
+    private void push(Continuation continuation) {
+        continuations.add(continuation);
+    }
+
+    private void push(Ast ast) {
+        if (ast instanceof Ast.Statement) {
+            push(new Statement((Ast.Statement) ast));
+        } else {
+            push(() -> evaluate(ast));
+        }
+    }
+
+    private void pushValue(Environment.PlcObject value) {
+        values.add(value);
+    }
+
+    private Environment.PlcObject pop() {
+        return values.remove(values.size() - 1);
+    }
+
+    /**
+     * Pushes the statements of a block to run in order, in a new scope only
+     * if the block declares a variable.
+     */
+    private void pushBlock(List<Ast.Statement> statements, boolean declares) {
+        if (declares) {
+            push(new Exit());
+        }
+        for (int i = statements.size() - 1; i >= 0; i--) {
+            push(statements.get(i));
+        }
+        if (declares) {
+            push(() -> scope = new Scope(scope));
+        }
+    }
+
+    private void evaluate(Ast ast) {
+        if (ast instanceof Ast.Source) {
+            Ast.Source source = (Ast.Source) ast;
+            push(() -> invoke(globals.lookupFunction("main", 0), new Environment.PlcObject[0]));
+            for (int i = source.getFunctions().size() - 1; i >= 0; i--) {
+                push(() -> pop());
+                push(source.getFunctions().get(i));
+            }
+            for (int i = source.getGlobals().size() - 1; i >= 0; i--) {
+                push(() -> pop());
+                push(source.getGlobals().get(i));
+            }
+        } else if (ast instanceof Ast.Global) {
+            Ast.Global global = (Ast.Global) ast;
+            push(() -> {
+                scope.defineVariable(global.getName(), global.getMutable(), pop());
+                pushValue(Environment.NIL);
+            });
+            if (global.getValue().isPresent() && global.getValue().get() instanceof Ast.Expression.PlcList) {
+                pushList((Ast.Expression.PlcList) global.getValue().get(), Environment.getType(global.getTypeName()));
+            } else if (global.getValue().isPresent()) {
+                push(global.getValue().get());
+            } else {
+                pushValue(Environment.NIL);
+            }
+        } else if (ast instanceof Ast.Function) {
+            Ast.Function function = (Ast.Function) ast;
+            scope.defineFunction(function.getName(), function.getParameters().size(), new Closure(function));
+            pushValue(Environment.NIL);
+        } else if (ast instanceof Ast.Expression.Literal) {
+            pushValue(((Ast.Expression.Literal) ast).getObject());
+        } else if (ast instanceof Ast.Expression.Group) {
+            push(((Ast.Expression.Group) ast).getExpression());
+        } else if (ast instanceof Ast.Expression.Binary) {
+            evaluate((Ast.Expression.Binary) ast);
+        } else if (ast instanceof Ast.Expression.Access) {
+            Ast.Expression.Access access = (Ast.Expression.Access) ast;
+            if (access.getOffset().isPresent()) {
+                push(() -> {
+                    int index = index(pop());
+                    List<?> list = Interpreter.requireType(List.class, scope.lookupVariable(access.getName()).getValue());
+                    pushValue(Environment.create(list.get(check(list, index))));
+                });
+                push(access.getOffset().get());
+            } else {
+                pushValue(scope.lookupVariable(access.getName()).getValue());
+            }
+        } else if (ast instanceof Ast.Expression.Function) {
+            Ast.Expression.Function call = (Ast.Expression.Function) ast;
+            int arity = call.getArguments().size();
+            push(() -> {
+                Environment.PlcObject[] arguments = new Environment.PlcObject[arity];
+                for (int i = arity - 1; i >= 0; i--) {
+                    arguments[i] = pop();
+                }
+                invoke(globals.lookupFunction(call.getName(), arity), arguments);
+            });
+            for (int i = arity - 1; i >= 0; i--) {
+                push(call.getArguments().get(i));
+            }
+        } else if (ast instanceof Ast.Expression.PlcList) {
+            pushList((Ast.Expression.PlcList) ast, Environment.Type.ANY);
+        } else if (ast instanceof Ast.Expression.Spawn) {
+            Ast.Expression.Function call = ((Ast.Expression.Spawn) ast).getCall();
+            int arity = call.getArguments().size();
+            push(() -> {
+                Environment.PlcObject[] arguments = new Environment.PlcObject[arity];
+                for (int i = arity - 1; i >= 0; i--) {
+                    arguments[i] = Interpreter.isolate(pop());
+                }
+                Environment.Function function = globals.lookupFunction(call.getName(), arity);
+                ContinuationInterpreter task = new ContinuationInterpreter(this);
+                pushValue(Environment.create(Environment.Task.spawn(() -> task.call(function, arguments))));
+            });
+            for (int i = arity - 1; i >= 0; i--) {
+                push(call.getArguments().get(i));
+            }
+        } else if (ast instanceof Ast.Expression.Await) {
+            push(() -> pushValue(Interpreter.requireType(Environment.Task.class, pop()).await()));
+            push(((Ast.Expression.Await) ast).getTask());
+        } else {
+            throw new AssertionError("Unimplemented AST type: " + ast.getClass().getName() + ".");
+        }
+    }
+
+    private void evaluate(Ast.Expression.Binary ast) {
+        switch (ast.getOperator()) {
+            case "&&":
+                push(() -> {
+                    if (Interpreter.requireType(Boolean.class, pop())) {
+                        push(() -> pushValue(Environment.create(Interpreter.requireType(Boolean.class, pop()))));
+                        push(ast.getRight());
+                    } else {
+                        pushValue(Environment.FALSE);
+                    }
+                });
+                break;
+            case "||":
+                push(() -> {
+                    if (Interpreter.requireType(Boolean.class, pop())) {
+                        pushValue(Environment.TRUE);
+                    } else {
+                        push(() -> pushValue(Environment.create(Interpreter.requireType(Boolean.class, pop()))));
+                        push(ast.getRight());
+                    }
+                });
+                break;
+            default:
+                push(() -> {
+                    Environment.PlcObject right = pop();
+                    pushValue(Interpreter.evaluate(ast.getOperator(), pop(), right));
+                });
+                push(ast.getRight());
+        }
+        push(ast.getLeft());
+    }
+
+    private void pushList(Ast.Expression.PlcList ast, Environment.Type type) {
+        int size = ast.getValues().size();
+        push(() -> {
+            Object[] elements = new Object[size];
+            for (int i = size - 1; i >= 0; i--) {
+                elements[i] = pop().getValue();
+            }
+            pushValue(Environment.create(Environment.PlcList.of(type, java.util.Arrays.asList(elements))));
+        });
+        for (int i = size - 1; i >= 0; i--) {
+            push(ast.getValues().get(i));
+        }
+    }
+
+    private void execute(Ast.Statement ast) {
+        if (ast instanceof Ast.Statement.Expression) {
+            push(() -> pop());
+            push(((Ast.Statement.Expression) ast).getExpression());
+        } else if (ast instanceof Ast.Statement.Declaration) {
+            Ast.Statement.Declaration declaration = (Ast.Statement.Declaration) ast;
+            push(() -> scope.defineVariable(declaration.getName(), true, pop()));
+            if (declaration.getValue().isPresent()) {
+                push(declaration.getValue().get());
+            } else {
+                pushValue(Environment.NIL);
+            }
+        } else if (ast instanceof Ast.Statement.Assignment) {
+            execute((Ast.Statement.Assignment) ast);
+        } else if (ast instanceof Ast.Statement.If) {
+            Ast.Statement.If branch = (Ast.Statement.If) ast;
+            push(() -> {
+                if (Interpreter.requireType(Boolean.class, pop())) {
+                    pushBlock(branch.getThenStatements(), branch.getThenDeclares());
+                } else {
+                    pushBlock(branch.getElseStatements(), branch.getElseDeclares());
+                }
+            });
+            push(branch.getCondition());
+        } else if (ast instanceof Ast.Statement.Switch) {
+            execute((Ast.Statement.Switch) ast);
+        } else if (ast instanceof Ast.Statement.Case) {
+            push(((Ast.Statement.Case) ast).getValue().get());
+        } else if (ast instanceof Ast.Statement.While) {
+            loop((Ast.Statement.While) ast);
+        } else if (ast instanceof Ast.Statement.For) {
+            Ast.Statement.For loop = (Ast.Statement.For) ast;
+            push(() -> iterate(loop, Interpreter.requireType(List.class, pop()), 0));
+            push(loop.getList());
+        } else if (ast instanceof Ast.Statement.Return) {
+            push(() -> {
+                Environment.PlcObject value = pop();
+                Continuation continuation = continuations.remove(continuations.size() - 1);
+                while (!(continuation instanceof Frame) && !(continuation instanceof Result)) {
+                    continuation = continuations.remove(continuations.size() - 1); // unwind to the enclosing call
+                }
+                if (continuation instanceof Frame) {
+                    ((Frame) continuation).exit(value);
+                } else { // a RETURN outside of any function completes the program
+                    scope = globals;
+                    push(continuation);
+                    pushValue(value);
+                }
+            });
+            push(((Ast.Statement.Return) ast).getValue());
+        } else {
+            throw new AssertionError("Unimplemented AST type: " + ast.getClass().getName() + ".");
+        }
+    }
+
+    private void execute(Ast.Statement.Assignment ast) {
+        if (!(ast.getReceiver() instanceof Ast.Expression.Access)) {
+            return;
+        }
+        Ast.Expression.Access receiver = (Ast.Expression.Access) ast.getReceiver();
+        Environment.Variable variable = scope.lookupVariable(receiver.getName());
+        if (!variable.getMutable()) throw new RuntimeException("The variable " + variable.getName() + " is immutable.");
+        if (receiver.getOffset().isPresent()) {
+            List<Object> list = Interpreter.requireType(List.class, variable.getValue());
+            push(() -> {
+                int index = check(list, index(pop()));
+                push(() -> {
+                    if (list instanceof Environment.PlcList) {
+                        ((Environment.PlcList) list).update(index, pop().getValue());
+                    } else {
+                        list.set(index, pop().getValue());
+                    }
+                });
+                push(ast.getValue());
+            });
+            push(receiver.getOffset().get());
+        } else {
+            push(() -> variable.setValue(pop()));
+            push(ast.getValue());
+        }
+    }
+
+    private void execute(Ast.Statement.Switch ast) {
+        push(() -> {
+            Object condition = pop().getValue();
+            Optional<Map<Object, Ast.Statement.Case>> table = ast.getCaseTable();
+            if (table.isPresent()) {
+                select(ast, table.get().get(condition));
+            } else {
+                match(ast, condition, 0);
+            }
+        });
+        push(ast.getCondition());
+    }
+
+    /**
+     * Compares the condition against each non-constant case value in turn.
+     */
+    private void match(Ast.Statement.Switch ast, Object condition, int index) {
+        List<Ast.Statement.Case> cases = ast.getCases();
+        if (index >= cases.size() || !cases.get(index).getValue().isPresent()) {
+            select(ast, null);
+            return;
+        }
+        push(() -> {
+            if (condition.equals(pop().getValue())) {
+                select(ast, cases.get(index));
+            } else {
+                match(ast, condition, index + 1);
+            }
+        });
+        push(cases.get(index).getValue().get());
+    }
+
+    private void select(Ast.Statement.Switch ast, Ast.Statement.Case selected) {
+        List<Ast.Statement.Case> cases = ast.getCases();
+        if (selected == null && !cases.isEmpty() && !cases.get(cases.size() - 1).getValue().isPresent()) {
+            selected = cases.get(cases.size() - 1); // default
+        }
+        if (selected != null) {
+            pushBlock(selected.getStatements(), selected.getDeclares());
+        }
+    }
+
+    private void loop(Ast.Statement.While ast) {
+        push(() -> {
+            if (Interpreter.requireType(Boolean.class, pop())) {
+                push(() -> loop(ast));
+                pushBlock(ast.getStatements(), ast.getDeclares());
+            }
+        });
+        push(ast.getCondition());
+    }
+
+    /**
+     * Runs the iterations of a loop over a list from the given index, each in
+     * a new scope holding its element. Parallel loops run in order here.
+     */
+    private void iterate(Ast.Statement.For ast, List<?> list, int index) {
+        if (index < list.size()) {
+            push(() -> iterate(ast, list, index + 1));
+            push(new Exit());
+            for (int i = ast.getStatements().size() - 1; i >= 0; i--) {
+                push(ast.getStatements().get(i));
+            }
+            push(() -> {
+                scope = new Scope(scope);
+                scope.defineVariable(ast.getName(), false, Environment.create(list.get(index)));
+            });
+        }
+    }
+
+    /**
+     * Runs a call to completion as the whole program of a spawned task.
+     */
+    private Environment.PlcObject call(Environment.Function function, Environment.PlcObject[] arguments) {
+        push(new Result());
+        invoke(function, arguments);
+        while (!run()) {
+            // only the interpreter spawning this one could suspend it
+        }
+        return getResult();
+    }
+
+    /**
+     * Calls a function with evaluated arguments, pushing a frame for source
+     * functions of this interpreter, or of another sharing its globals as
+     * spawned tasks do, and invoking any other function directly.
+     */
+    private void invoke(Environment.Function function, Environment.PlcObject[] arguments) {
+        Environment.Invoker invoker = function.getInvoker();
+        if (invoker instanceof Closure && ((Closure) invoker).getInterpreter().globals == globals) {
+            enter((Closure) invoker, arguments);
+        } else {
+            pushValue(function.invoke(arguments));
+        }
+    }
+
+    private void enter(Closure closure, Environment.PlcObject[] arguments) {
+        Ast.Function function = closure.function;
+        if (arguments.length != function.getParameters().size()) {
+            throw new RuntimeException("Expected " + function.getParameters().size() + " arguments, received " + arguments.length + ".");
+        } else if (frames >= maxFrames) {
+            throw new RuntimeException("Exceeded the maximum of " + maxFrames + " frames.");
+        }
+        push(new Frame(scope, values.size()));
+        frames++;
+        scope = new Scope(closure.definition);
+        for (int i = 0; i < arguments.length; i++) {
+            scope.defineVariable(function.getParameters().get(i), true, arguments[i]);
+        }
+        pushBlock(function.getStatements(), false);
+    }
+
+    private static int index(Environment.PlcObject value) {
+        BigInteger index = Interpreter.requireType(BigInteger.class, value);
+        return index.bitLength() < 32 ? index.intValue() : -1;
+    }
+
+    private static int check(List<?> list, int index) {
+        if (index < 0 || index >= list.size()) {
+            throw new RuntimeException("The index " + index + " is out of bounds for a list of size " + list.size() + ".");
+        }
+        return index;
+    }
+
+    /**
+     * A unit of pending work.
+     */
+    @FunctionalInterface
+    private interface Continuation {
+        void resume();
+    }
+
+    /**
+     * Takes the value of the loaded program, which is also where a
+     * {@code RETURN} outside of any function unwinds to.
+     */
+    private final class Result implements Continuation {
+
+        @Override
+        public void resume() {
+            result = pop();
+        }
+
+    }
+
+    /**
+     * Executes a statement, marking a point where the program may suspend.
+     */
+    private final class Statement implements Continuation {
+
+        private final Ast.Statement statement;
+
+        private Statement(Ast.Statement statement) {
+            this.statement = statement;
+        }
+
+        @Override
+        public void resume() {
+            execute(statement);
+        }
+
+    }
+
+    /**
+     * Restores the scope in place when a block was entered.
+     */
+    private final class Exit implements Continuation {
+
+        @Override
+        public void resume() {
+            scope = scope.getParent();
+        }
+
+    }
+
+    /**
+     * Marks the bottom of a call, which is reached when the body completes
+     * without a {@code RETURN} or which a {@code RETURN} unwinds to.
+     */
+    private final class Frame implements Continuation {
+
+        private final Scope caller;
+        private final int height;
+
+        private Frame(Scope caller, int height) {
+            this.caller = caller;
+            this.height = height;
+        }
+
+        @Override
+        public void resume() {
+            exit(Environment.NIL);
+        }
+
+        private void exit(Environment.PlcObject value) {
+            scope = caller;
+            frames--;
+            while (values.size() > height) {
+                values.remove(values.size() - 1);
+            }
+            pushValue(value);
+        }
+
+    }
+
+    /**
+     * The invoker of a function defined in source, which calls from within
+     * this interpreter enter as a heap frame.
+     */
+    private final class Closure extends Environment.Invoker {
+
+        private final Ast.Function function;
+        private final Scope definition;
+
+        private Closure(Ast.Function function) {
+            this.function = function;
+            this.definition = scope;
+        }
+
+        private ContinuationInterpreter getInterpreter() {
+            return ContinuationInterpreter.this;
+        }
+
+        /**
+         * Runs a call made from outside of this interpreter, such as by a
+         * builtin, to completion. Suspension waits until such calls return.
+         */
+        @Override
+        public Environment.PlcObject invoke(Environment.PlcObject[] arguments) {
+            int base = continuations.size();
+            int height = values.size();
+            int depth = frames;
+            Scope caller = scope;
+            try {
+                enter(this, arguments);
+                while (continuations.size() > base) {
+                    continuations.remove(continuations.size() - 1).resume();
+                }
+                return pop();
+            } catch (RuntimeException e) { // discard the state of the failed call
+                continuations.subList(base, continuations.size()).clear();
+                values.subList(height, values.size()).clear();
+                frames = depth;
+                scope = caller;
+                throw e;
+            }
+        }
+
+    }
+
+}
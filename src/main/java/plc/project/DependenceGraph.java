@@ -0,0 +1,218 @@
+package plc.project;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The dependences between the statements of a block, found from the
+ * variables each reads and writes. A statement which declares or assigns a
+ * variable (but not an element of a list) with a value that only calls pure
+ * functions, as found by {@link Purity}, has no effect until its write, so
+ * the values of several such statements can be evaluated at once and then
+ * written in order. Between them, only a true dependence, where a statement
+ * reads a variable an earlier one writes, forces an order. Every other
+ * statement depends on all of those around it.
+ *
+ * <p>Each statement also has an estimated cost, which is its size in nodes
+ * plus the sizes of the functions it calls, directly or not. A call to a
+ * function with a loop or recursion may run for any time, and so costs
+ * {@link #UNBOUNDED}.
+ */
+final class DependenceGraph {
+
+    static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    private final List<Ast.Statement> statements;
+    private final List<String> targets = new ArrayList<>();
+    private final List<Set<String>> reads = new ArrayList<>();
+    private final List<Integer> costs = new ArrayList<>();
+    private final Map<String, Ast.Function> functions;
+    private final Set<Ast.Function> pure;
+    private final Map<Ast.Function, Integer> calleeCosts = new HashMap<>();
+
+    private DependenceGraph(List<Ast.Statement> statements, Map<String, Ast.Function> functions, Set<Ast.Function> pure) {
+        this.statements = statements;
+        this.functions = functions;
+        this.pure = pure;
+    }
+
+    /**
+     * Builds the graph of a block, with functions called by the statements
+     * looked up by {@code name/arity} and only those in {@code pure} pure.
+     */
+    static DependenceGraph of(List<Ast.Statement> statements, Map<String, Ast.Function> functions, Set<Ast.Function> pure) {
+        DependenceGraph graph = new DependenceGraph(statements, functions, pure);
+        for (Ast.Statement statement : statements) {
+            String target = null;
+            Ast.Expression value = null;
+            if (statement instanceof Ast.Statement.Declaration && ((Ast.Statement.Declaration) statement).getValue().isPresent()) {
+                target = ((Ast.Statement.Declaration) statement).getName();
+                value = ((Ast.Statement.Declaration) statement).getValue().get();
+            } else if (statement instanceof Ast.Statement.Assignment
+                    && ((Ast.Statement.Assignment) statement).getReceiver() instanceof Ast.Expression.Access
+                    && !((Ast.Expression.Access) ((Ast.Statement.Assignment) statement).getReceiver()).getOffset().isPresent()) {
+                target = ((Ast.Expression.Access) ((Ast.Statement.Assignment) statement).getReceiver()).getName();
+                value = ((Ast.Statement.Assignment) statement).getValue();
+            }
+            Effects effects = Effects.of(statement);
+            if (value != null && !graph.isPure(value)) {
+                target = null;
+            }
+            graph.targets.add(target);
+            graph.reads.add(value != null ? Effects.of(value).getReads() : effects.getReads());
+            int cost = effects.getSize();
+            for (String call : effects.getCalls()) {
+                Ast.Function callee = functions.get(call);
+                cost = add(cost, callee != null ? graph.cost(callee, new HashSet<>()) : 1);
+            }
+            graph.costs.add(cost);
+        }
+        return graph;
+    }
+
+    int size() {
+        return statements.size();
+    }
+
+    /**
+     * Returns true if the value of a statement may be evaluated at the same
+     * time as those of other such statements.
+     */
+    boolean isIndependent(int statement) {
+        return targets.get(statement) != null;
+    }
+
+    int getCost(int statement) {
+        return costs.get(statement);
+    }
+
+    /**
+     * Returns true if the later statement must run after the earlier one,
+     * rather than having its value evaluated at the same time.
+     */
+    boolean dependsOn(int later, int earlier) {
+        return !isIndependent(later) || !isIndependent(earlier) || reads.get(later).contains(targets.get(earlier));
+    }
+
+    /**
+     * Splits the block into batches in order. A batch is either a single
+     * statement or several independent statements, at least two of which
+     * cost at least the threshold, and none of which depends on another.
+     */
+    List<Batch> schedule(int threshold) {
+        List<Batch> batches = new ArrayList<>();
+        int start = 0;
+        for (int end = 1; end <= statements.size(); end++) {
+            if (end < statements.size() && !dependsOnAny(end, start)) {
+                continue;
+            }
+            int expensive = 0;
+            for (int i = start; i < end; i++) {
+                if (costs.get(i) >= threshold) {
+                    expensive++;
+                }
+            }
+            if (expensive >= 2) {
+                boolean[] forked = new boolean[end - start];
+                for (int i = start; i < end; i++) {
+                    forked[i - start] = costs.get(i) >= threshold;
+                }
+                batches.add(new Batch(statements.subList(start, end), forked));
+            } else {
+                for (int i = start; i < end; i++) {
+                    batches.add(new Batch(Collections.singletonList(statements.get(i)), new boolean[1]));
+                }
+            }
+            start = end;
+        }
+        return batches;
+    }
+
+    private boolean dependsOnAny(int statement, int start) {
+        for (int i = start; i < statement; i++) {
+            if (dependsOn(statement, i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if evaluating an expression has no effects, so that it
+     * only reads variables and calls pure functions.
+     */
+    private boolean isPure(Ast.Expression ast) {
+        if (ast instanceof Ast.Expression.Literal) {
+            return true;
+        } else if (ast instanceof Ast.Expression.Group) {
+            return isPure(((Ast.Expression.Group) ast).getExpression());
+        } else if (ast instanceof Ast.Expression.Binary) {
+            return isPure(((Ast.Expression.Binary) ast).getLeft()) && isPure(((Ast.Expression.Binary) ast).getRight());
+        } else if (ast instanceof Ast.Expression.Access) {
+            return ((Ast.Expression.Access) ast).getOffset().map(this::isPure).orElse(true);
+        } else if (ast instanceof Ast.Expression.Function) {
+            Ast.Expression.Function call = (Ast.Expression.Function) ast;
+            Ast.Function callee = functions.get(call.getName() + "/" + call.getArguments().size());
+            return callee != null && pure.contains(callee) && call.getArguments().stream().allMatch(this::isPure);
+        } else if (ast instanceof Ast.Expression.PlcList) {
+            return ((Ast.Expression.PlcList) ast).getValues().stream().allMatch(this::isPure);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the estimated cost of calling a function, which is unbounded
+     * if it has a loop or is reached again while estimating it.
+     */
+    private int cost(Ast.Function function, Set<Ast.Function> visiting) {
+        Integer known = calleeCosts.get(function);
+        if (known != null) {
+            return known;
+        } else if (!visiting.add(function)) {
+            return UNBOUNDED;
+        }
+        Effects effects = Effects.of(function);
+        int cost = effects.getLoops() > 0 ? UNBOUNDED : effects.getSize();
+        for (String call : effects.getCalls()) {
+            Ast.Function callee = functions.get(call);
+            cost = add(cost, callee != null ? cost(callee, visiting) : 1);
+        }
+        visiting.remove(function);
+        calleeCosts.put(function, cost);
+        return cost;
+    }
+
+    private static int add(int cost, int other) {
+        return cost > UNBOUNDED - other ? UNBOUNDED : cost + other;
+    }
+
+    /**
+     * Statements of a block which run together, with those expensive enough
+     * to be evaluated on another thread marked.
+     */
+    static final class Batch {
+
+        private final List<Ast.Statement> statements;
+        private final boolean[] expensive;
+
+        private Batch(List<Ast.Statement> statements, boolean[] expensive) {
+            this.statements = statements;
+            this.expensive = expensive;
+        }
+
+        List<Ast.Statement> getStatements() {
+            return statements;
+        }
+
+        boolean isExpensive(int statement) {
+            return expensive[statement];
+        }
+
+    }
+
+}
@@ -0,0 +1,222 @@
+package plc.project;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Summarizes the variables an AST reads and writes and the functions it
+ * calls, by name, along with its size in nodes and number of loops as a
+ * rough cost. Declaring a variable writes it, and assigning an element of a
+ * list both reads and writes the list. The names are those used in the
+ * source, so locals of nested blocks are included even though they may
+ * shadow other variables, which only ever adds to what the AST appears to
+ * depend on.
+ */
+final class Effects implements Ast.Visitor<Void> {
+
+    private final Set<String> reads = new LinkedHashSet<>();
+    private final Set<String> writes = new LinkedHashSet<>();
+    private final Set<String> calls = new LinkedHashSet<>();
+    private int size = 0;
+    private int loops = 0;
+
+    private Effects() {}
+
+    static Effects of(Ast ast) {
+        Effects effects = new Effects();
+        effects.visit(ast);
+        return effects;
+    }
+
+    /**
+     * Returns the names of the variables read, in order of first use.
+     */
+    Set<String> getReads() {
+        return Collections.unmodifiableSet(reads);
+    }
+
+    Set<String> getWrites() {
+        return Collections.unmodifiableSet(writes);
+    }
+
+    /**
+     * Returns the functions called, as {@code name/arity}.
+     */
+    Set<String> getCalls() {
+        return Collections.unmodifiableSet(calls);
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    int getLoops() {
+        return loops;
+    }
+
+    @Override
+    public Void visit(Ast.Source ast) {
+        size++;
+        ast.getGlobals().forEach(this::visit);
+        ast.getFunctions().forEach(this::visit);
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Global ast) {
+        size++;
+        ast.getValue().ifPresent(this::visit);
+        writes.add(ast.getName());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Function ast) {
+        size++;
+        ast.getStatements().forEach(this::visit);
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.Expression ast) {
+        size++;
+        visit(ast.getExpression());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.Declaration ast) {
+        size++;
+        ast.getValue().ifPresent(this::visit);
+        writes.add(ast.getName());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.Assignment ast) {
+        size++;
+        if (ast.getReceiver() instanceof Ast.Expression.Access) {
+            Ast.Expression.Access receiver = (Ast.Expression.Access) ast.getReceiver();
+            receiver.getOffset().ifPresent(offset -> {
+                visit(offset);
+                reads.add(receiver.getName());
+            });
+            writes.add(receiver.getName());
+        } else {
+            visit(ast.getReceiver());
+        }
+        visit(ast.getValue());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.If ast) {
+        size++;
+        visit(ast.getCondition());
+        ast.getThenStatements().forEach(this::visit);
+        ast.getElseStatements().forEach(this::visit);
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.Switch ast) {
+        size++;
+        visit(ast.getCondition());
+        ast.getCases().forEach(this::visit);
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.Case ast) {
+        size++;
+        ast.getValue().ifPresent(this::visit);
+        ast.getStatements().forEach(this::visit);
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.While ast) {
+        size++;
+        loops++;
+        visit(ast.getCondition());
+        ast.getStatements().forEach(this::visit);
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.For ast) {
+        size++;
+        loops++;
+        visit(ast.getList());
+        writes.add(ast.getName());
+        ast.getStatements().forEach(this::visit);
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.Return ast) {
+        size++;
+        visit(ast.getValue());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Literal ast) {
+        size++;
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Group ast) {
+        size++;
+        visit(ast.getExpression());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Binary ast) {
+        size++;
+        visit(ast.getLeft());
+        visit(ast.getRight());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Access ast) {
+        size++;
+        ast.getOffset().ifPresent(this::visit);
+        reads.add(ast.getName());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Function ast) {
+        size++;
+        ast.getArguments().forEach(this::visit);
+        calls.add(ast.getName() + "/" + ast.getArguments().size());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.PlcList ast) {
+        size++;
+        ast.getValues().forEach(this::visit);
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Spawn ast) {
+        size++;
+        visit(ast.getCall());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Await ast) {
+        size++;
+        visit(ast.getTask());
+        return null;
+    }
+
+}
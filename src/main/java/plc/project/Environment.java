@@ -1,18 +1,69 @@
 package plc.project;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Supplier;
 
 public final class Environment {
 
+    /**
+     * Wraps a runtime value, reusing the shared instances for booleans and
+     * small integers so that most intermediate results allocate nothing.
+     */
     public static PlcObject create(Object value) {
-        return new PlcObject(new Scope(null), value);
+        if (value instanceof Boolean) {
+            return (Boolean) value ? TRUE : FALSE;
+        } else if (value instanceof BigInteger && ((BigInteger) value).bitLength() < 32) {
+            int i = ((BigInteger) value).intValue();
+            if (i >= INTEGER_CACHE_LOW && i <= INTEGER_CACHE_HIGH) {
+                return INTEGERS[i - INTEGER_CACHE_LOW];
+            }
+        }
+        Type type = typeOf(value);
+        return new PlcObject(type, type.getScope(), value);
+    }
+
+    /**
+     * Returns the runtime type of a value without allocating; values which are
+     * not one of the builtin types (such as lists) are typed as {@code Any}.
+     */
+    public static Type typeOf(Object value) {
+        if (value instanceof BigInteger) {
+            return Type.INTEGER;
+        } else if (value instanceof String) {
+            return Type.STRING;
+        } else if (value instanceof Boolean) {
+            return Type.BOOLEAN;
+        } else if (value instanceof BigDecimal) {
+            return Type.DECIMAL;
+        } else if (value instanceof Character) {
+            return Type.CHARACTER;
+        } else if (value instanceof Task) {
+            return Type.TASK;
+        } else if (value instanceof Channel) {
+            return Type.CHANNEL;
+        } else {
+            return Type.ANY;
+        }
     }
 
-    public static final PlcObject NIL = new PlcObject(Type.NIL, new Scope(null), new Object() {
+    public static final PlcObject NIL = new PlcObject(Type.NIL, Type.NIL.getScope(), new Object() {
 
         @Override
         public String toString() {
@@ -21,6 +72,19 @@ public final class Environment {
 
     });
 
+    public static final PlcObject TRUE = new PlcObject(Type.BOOLEAN, Type.BOOLEAN.getScope(), Boolean.TRUE);
+    public static final PlcObject FALSE = new PlcObject(Type.BOOLEAN, Type.BOOLEAN.getScope(), Boolean.FALSE);
+
+    private static final int INTEGER_CACHE_LOW = -128;
+    private static final int INTEGER_CACHE_HIGH = 1024;
+    private static final PlcObject[] INTEGERS = new PlcObject[INTEGER_CACHE_HIGH - INTEGER_CACHE_LOW + 1];
+
+    static {
+        for (int i = 0; i < INTEGERS.length; i++) {
+            INTEGERS[i] = new PlcObject(Type.INTEGER, Type.INTEGER.getScope(), BigInteger.valueOf(i + INTEGER_CACHE_LOW));
+        }
+    }
+
     private static final Map<String, Type> TYPES = new HashMap<>();
 
     public static Type getType(String name) {
@@ -47,15 +111,39 @@ public final class Environment {
         public static final Type DECIMAL = new Type("Decimal", "double", new Scope(COMPARABLE.scope));
         public static final Type CHARACTER = new Type("Character", "char", new Scope(COMPARABLE.scope));
         public static final Type STRING = new Type("String", "String", new Scope(COMPARABLE.scope));
+        public static final Type TASK = new Type("Task", "java.util.concurrent.CompletableFuture<Object>", new Scope(ANY.scope));
+        public static final Type CHANNEL = new Type("Channel", "java.util.concurrent.BlockingQueue<Object>", new Scope(ANY.scope));
 
         private final String name;
         private final String jvmName;
         private final Scope scope;
+        private final Type result;
 
         public Type(String name, String jvmName, Scope scope) {
+            this(name, jvmName, scope, null);
+        }
+
+        private Type(String name, String jvmName, Scope scope, Type result) {
             this.name = name;
             this.jvmName = jvmName;
             this.scope = scope;
+            this.result = result;
+        }
+
+        /**
+         * Returns the type of a task whose call returns the given type, which
+         * is assignable to and from {@link #TASK} like any other task type.
+         */
+        public static Type task(Type result) {
+            return result == ANY ? TASK : new Type(TASK.name, TASK.jvmName, TASK.scope, result);
+        }
+
+        /**
+         * Returns the type awaiting a task of this type evaluates to, which is
+         * {@code Any} if the call of the task is not known.
+         */
+        public Type getResult() {
+            return result != null ? result : ANY;
         }
 
         public String getName() {
@@ -84,6 +172,7 @@ public final class Environment {
                     "name='" + name + '\'' +
                     ", jvmName='" + jvmName + '\'' +
                     ", scope='" + scope + '\'' +
+                    (result != null ? ", result=" + result.name : "") +
                     '}';
         }
 
@@ -96,7 +185,7 @@ public final class Environment {
         private final Object value;
 
         public PlcObject(Scope scope, Object value) {
-            this(new Type("Unknown", "Unknown", scope), scope, value);
+            this(typeOf(value), scope, value);
         }
 
         public PlcObject(Type type, Scope scope, Object value) {
@@ -124,6 +213,308 @@ public final class Environment {
 
     }
 
+    /**
+     * A function call running concurrently, started by {@code SPAWN} and
+     * joined by {@code AWAIT}. Each task runs on a virtual thread of its own
+     * when the runtime has virtual threads, and otherwise on a platform
+     * thread of a shared pool which grows as needed, since tasks may block
+     * on channels or on each other.
+     */
+    public static final class Task {
+
+        private static final ExecutorService EXECUTOR = executor();
+
+        private final CompletableFuture<PlcObject> future;
+
+        private Task(CompletableFuture<PlcObject> future) {
+            this.future = future;
+        }
+
+        private static ExecutorService executor() {
+            ExecutorService executor = ScriptExecutor.newVirtualThreadPerTaskExecutor();
+            if (executor != null) {
+                return executor;
+            }
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "plc-task-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        /**
+         * Starts running a call on a thread of its own.
+         */
+        public static Task spawn(Supplier<PlcObject> call) {
+            return new Task(CompletableFuture.supplyAsync(call, EXECUTOR));
+        }
+
+        /**
+         * Waits for the call to finish, returning its value or throwing the
+         * exception it threw.
+         */
+        public PlcObject await() {
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                } else if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        public boolean isDone() {
+            return future.isDone();
+        }
+
+        @Override
+        public String toString() {
+            return "Task{done=" + future.isDone() + "}";
+        }
+
+    }
+
+    /**
+     * A bounded queue of values for tasks to communicate through. Sending
+     * blocks while the channel is full, and receiving while it is empty.
+     */
+    public static final class Channel {
+
+        private final BlockingQueue<PlcObject> queue;
+        private final int capacity;
+
+        public Channel(int capacity) {
+            if (capacity <= 0) {
+                throw new RuntimeException("The capacity of a channel must be positive, received " + capacity + ".");
+            }
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.capacity = capacity;
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        public void send(PlcObject value) {
+            try {
+                queue.put(value);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while sending on a channel.", e);
+            }
+        }
+
+        public PlcObject receive() {
+            try {
+                return queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while receiving from a channel.", e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Channel{capacity=" + capacity + ", size=" + queue.size() + "}";
+        }
+
+    }
+
+    /**
+     * The runtime representation of a list, supporting O(1) indexed reads and
+     * in-place writes. Lists of integers, decimals and characters are backed by
+     * a primitive array when every element fits, and are widened to a more
+     * general backing array if an assignment stores a value which does not.
+     * A list may share its backing array with another until it is written.
+     */
+    public static final class PlcList extends AbstractList<Object> implements RandomAccess {
+
+        private Object elements;
+        private boolean shared = false;
+
+        private PlcList(Object elements) {
+            this.elements = elements;
+        }
+
+        /**
+         * Creates a list of the given element type, choosing the most compact
+         * backing array which can represent all of the values exactly.
+         */
+        public static PlcList of(Type type, List<?> values) {
+            int size = values.size();
+            if (type == Type.INTEGER && values.stream().allMatch(PlcList::isInt)) {
+                int[] ints = new int[size];
+                for (int i = 0; i < size; i++) {
+                    ints[i] = ((BigInteger) values.get(i)).intValue();
+                }
+                return new PlcList(ints);
+            } else if (type == Type.INTEGER && values.stream().allMatch(PlcList::isLong)) {
+                long[] longs = new long[size];
+                for (int i = 0; i < size; i++) {
+                    longs[i] = ((BigInteger) values.get(i)).longValue();
+                }
+                return new PlcList(longs);
+            } else if (type == Type.DECIMAL && values.stream().allMatch(PlcList::isDouble)) {
+                double[] doubles = new double[size];
+                for (int i = 0; i < size; i++) {
+                    doubles[i] = ((BigDecimal) values.get(i)).doubleValue();
+                }
+                return new PlcList(doubles);
+            } else if (type == Type.CHARACTER && values.stream().allMatch(value -> value instanceof Character)) {
+                char[] chars = new char[size];
+                for (int i = 0; i < size; i++) {
+                    chars[i] = (Character) values.get(i);
+                }
+                return new PlcList(chars);
+            }
+            return new PlcList(values.toArray());
+        }
+
+        @Override
+        public int size() {
+            if (elements instanceof int[]) {
+                return ((int[]) elements).length;
+            } else if (elements instanceof long[]) {
+                return ((long[]) elements).length;
+            } else if (elements instanceof double[]) {
+                return ((double[]) elements).length;
+            } else if (elements instanceof char[]) {
+                return ((char[]) elements).length;
+            }
+            return ((Object[]) elements).length;
+        }
+
+        @Override
+        public Object get(int index) {
+            checkIndex(index);
+            if (elements instanceof int[]) {
+                return BigInteger.valueOf(((int[]) elements)[index]);
+            } else if (elements instanceof long[]) {
+                return BigInteger.valueOf(((long[]) elements)[index]);
+            } else if (elements instanceof double[]) {
+                return BigDecimal.valueOf(((double[]) elements)[index]);
+            } else if (elements instanceof char[]) {
+                return ((char[]) elements)[index];
+            }
+            return ((Object[]) elements)[index];
+        }
+
+        @Override
+        public Object set(int index, Object value) {
+            Object previous = get(index);
+            update(index, value);
+            return previous;
+        }
+
+        /**
+         * Stores a value in place like {@link #set(int, Object)}, without
+         * materializing the previous element.
+         */
+        public void update(int index, Object value) {
+            checkIndex(index);
+            if (shared) {
+                elements = copy(elements);
+                shared = false;
+            }
+            if (elements instanceof int[] && isInt(value)) {
+                ((int[]) elements)[index] = ((BigInteger) value).intValue();
+            } else if (elements instanceof long[] && isLong(value)) {
+                ((long[]) elements)[index] = ((BigInteger) value).longValue();
+            } else if (elements instanceof double[] && isDouble(value)) {
+                ((double[]) elements)[index] = ((BigDecimal) value).doubleValue();
+            } else if (elements instanceof char[] && value instanceof Character) {
+                ((char[]) elements)[index] = (Character) value;
+            } else {
+                if (!(elements instanceof Object[])) {
+                    elements = toArray();
+                }
+                ((Object[]) elements)[index] = value;
+            }
+        }
+
+        /**
+         * Returns a copy of this list which shares its backing array until the
+         * copy is written, so this list must not be written afterwards. Nested
+         * lists are shared the same way, and the copies of lists which have
+         * been shared before are reused so that aliasing is preserved.
+         */
+        PlcList share(Map<PlcList, PlcList> copies) {
+            PlcList copy = copies.get(this);
+            if (copy == null) {
+                copy = new PlcList(elements);
+                copy.shared = true;
+                copies.put(this, copy);
+                if (elements instanceof Object[] && Arrays.stream((Object[]) elements).anyMatch(element -> element instanceof PlcList)) {
+                    Object[] nested = ((Object[]) elements).clone();
+                    for (int i = 0; i < nested.length; i++) {
+                        if (nested[i] instanceof PlcList) {
+                            nested[i] = ((PlcList) nested[i]).share(copies);
+                        }
+                    }
+                    copy.elements = nested;
+                    copy.shared = false;
+                }
+            }
+            return copy;
+        }
+
+        /**
+         * Returns a copy of this list which shares nothing with it, copying
+         * nested lists the same way, so either may be written afterwards.
+         */
+        PlcList snapshot() {
+            Map<PlcList, PlcList> copies = new IdentityHashMap<>();
+            PlcList snapshot = share(copies);
+            for (PlcList copy : copies.values()) {
+                if (copy.shared) {
+                    copy.elements = copy(copy.elements);
+                    copy.shared = false;
+                }
+            }
+            return snapshot;
+        }
+
+        private static Object copy(Object elements) {
+            if (elements instanceof int[]) {
+                return ((int[]) elements).clone();
+            } else if (elements instanceof long[]) {
+                return ((long[]) elements).clone();
+            } else if (elements instanceof double[]) {
+                return ((double[]) elements).clone();
+            } else if (elements instanceof char[]) {
+                return ((char[]) elements).clone();
+            }
+            return ((Object[]) elements).clone();
+        }
+
+        private void checkIndex(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("The index " + index + " is out of bounds for a list of size " + size() + ".");
+            }
+        }
+
+        private static boolean isInt(Object value) {
+            return value instanceof BigInteger && ((BigInteger) value).bitLength() < 32;
+        }
+
+        private static boolean isLong(Object value) {
+            return value instanceof BigInteger && ((BigInteger) value).bitLength() < 64;
+        }
+
+        /**
+         * Decimals are only stored as doubles when the conversion round trips,
+         * including the scale, so reads return a value equal to the one written.
+         */
+        private static boolean isDouble(Object value) {
+            return value instanceof BigDecimal && BigDecimal.valueOf(((BigDecimal) value).doubleValue()).equals(value);
+        }
+
+    }
+
     public static final class Variable {
 
         private final String name;
@@ -131,6 +522,7 @@ public final class Environment {
         private final boolean mutable;
         private final Type type;
         private PlcObject value;
+        private final Thunk thunk;
 
         public Variable(String name, boolean mutable, PlcObject value) {
             this(name, name, Type.ANY, mutable, value);
@@ -142,6 +534,23 @@ public final class Environment {
             this.type = type;
             this.mutable = mutable;
             this.value = value;
+            this.thunk = null;
+        }
+
+        /**
+         * Creates a variable whose value is computed by the initializer when
+         * it is first read, unless it is assigned first. The initializer runs
+         * at most once while holding the lock, which should be shared by all
+         * initializers that may read each other's variables, and its result
+         * is safely published to readers on any thread.
+         */
+        Variable(String name, String jvmName, Type type, boolean mutable, Supplier<PlcObject> initializer, Object lock) {
+            this.name = name;
+            this.jvmName = jvmName;
+            this.type = type;
+            this.mutable = mutable;
+            this.value = null;
+            this.thunk = new Thunk(initializer, lock);
         }
 
         public Type getType() {
@@ -161,13 +570,22 @@ public final class Environment {
         }
 
         public PlcObject getValue() {
-            return value;
+            PlcObject value = this.value;
+            return value != null || thunk == null ? value : thunk.get();
         }
 
         public void setValue(PlcObject value) {
             this.value = value;
         }
 
+        /**
+         * Returns true if the variable is lazy and its initializer has not
+         * run, as it has been neither read nor assigned.
+         */
+        boolean isPending() {
+            return value == null && thunk != null && !thunk.isDone();
+        }
+
         @Override
         public boolean equals(Object obj) {
             return obj instanceof Variable &&
@@ -190,13 +608,247 @@ public final class Environment {
 
     }
 
+    /**
+     * The initializer of a lazy {@link Variable}, which is run once by the
+     * first reader. The result is held in a volatile field, so readers which
+     * see it also see the value it refers to.
+     */
+    private static final class Thunk {
+
+        private final Object lock;
+        private Supplier<PlcObject> initializer;
+        private volatile PlcObject value;
+
+        private Thunk(Supplier<PlcObject> initializer, Object lock) {
+            this.initializer = initializer;
+            this.lock = lock;
+        }
+
+        private PlcObject get() {
+            PlcObject result = value;
+            if (result == null) {
+                synchronized (lock) {
+                    result = value;
+                    if (result == null) {
+                        result = initializer.get();
+                        value = result;
+                        initializer = null;
+                    }
+                }
+            }
+            return result;
+        }
+
+        private boolean isDone() {
+            return value != null;
+        }
+
+    }
+
+    /**
+     * The implementation of a function. Calls with up to four arguments are
+     * passed directly to the arity-specific {@code invoke} methods, so an
+     * implementation overriding those allocates nothing for argument passing;
+     * larger calls pass an array. Every method defaults to the array form.
+     */
+    public static abstract class Invoker {
+
+        private static final PlcObject[] NO_ARGUMENTS = new PlcObject[0];
+
+        public abstract PlcObject invoke(PlcObject[] arguments);
+
+        public PlcObject invoke(List<PlcObject> arguments) {
+            return invoke(arguments.toArray(NO_ARGUMENTS));
+        }
+
+        public PlcObject invoke() {
+            return invoke(NO_ARGUMENTS);
+        }
+
+        public PlcObject invoke(PlcObject a) {
+            return invoke(new PlcObject[] {a});
+        }
+
+        public PlcObject invoke(PlcObject a, PlcObject b) {
+            return invoke(new PlcObject[] {a, b});
+        }
+
+        public PlcObject invoke(PlcObject a, PlcObject b, PlcObject c) {
+            return invoke(new PlcObject[] {a, b, c});
+        }
+
+        public PlcObject invoke(PlcObject a, PlcObject b, PlcObject c, PlcObject d) {
+            return invoke(new PlcObject[] {a, b, c, d});
+        }
+
+        @FunctionalInterface
+        public interface Nullary {
+            PlcObject invoke();
+        }
+
+        @FunctionalInterface
+        public interface Unary {
+            PlcObject invoke(PlcObject a);
+        }
+
+        @FunctionalInterface
+        public interface Binary {
+            PlcObject invoke(PlcObject a, PlcObject b);
+        }
+
+        @FunctionalInterface
+        public interface Ternary {
+            PlcObject invoke(PlcObject a, PlcObject b, PlcObject c);
+        }
+
+        @FunctionalInterface
+        public interface Quaternary {
+            PlcObject invoke(PlcObject a, PlcObject b, PlcObject c, PlcObject d);
+        }
+
+        @FunctionalInterface
+        public interface Variadic {
+            PlcObject invoke(PlcObject[] arguments);
+        }
+
+        public static Invoker of(Nullary function) {
+            return new Invoker() {
+
+                @Override
+                public PlcObject invoke(PlcObject[] arguments) {
+                    requireArity(0, arguments);
+                    return function.invoke();
+                }
+
+                @Override
+                public PlcObject invoke() {
+                    return function.invoke();
+                }
+
+            };
+        }
+
+        public static Invoker of(Unary function) {
+            return new Invoker() {
+
+                @Override
+                public PlcObject invoke(PlcObject[] arguments) {
+                    requireArity(1, arguments);
+                    return function.invoke(arguments[0]);
+                }
+
+                @Override
+                public PlcObject invoke(PlcObject a) {
+                    return function.invoke(a);
+                }
+
+            };
+        }
+
+        public static Invoker of(Binary function) {
+            return new Invoker() {
+
+                @Override
+                public PlcObject invoke(PlcObject[] arguments) {
+                    requireArity(2, arguments);
+                    return function.invoke(arguments[0], arguments[1]);
+                }
+
+                @Override
+                public PlcObject invoke(PlcObject a, PlcObject b) {
+                    return function.invoke(a, b);
+                }
+
+            };
+        }
+
+        public static Invoker of(Ternary function) {
+            return new Invoker() {
+
+                @Override
+                public PlcObject invoke(PlcObject[] arguments) {
+                    requireArity(3, arguments);
+                    return function.invoke(arguments[0], arguments[1], arguments[2]);
+                }
+
+                @Override
+                public PlcObject invoke(PlcObject a, PlcObject b, PlcObject c) {
+                    return function.invoke(a, b, c);
+                }
+
+            };
+        }
+
+        public static Invoker of(Quaternary function) {
+            return new Invoker() {
+
+                @Override
+                public PlcObject invoke(PlcObject[] arguments) {
+                    requireArity(4, arguments);
+                    return function.invoke(arguments[0], arguments[1], arguments[2], arguments[3]);
+                }
+
+                @Override
+                public PlcObject invoke(PlcObject a, PlcObject b, PlcObject c, PlcObject d) {
+                    return function.invoke(a, b, c, d);
+                }
+
+            };
+        }
+
+        public static Invoker variadic(Variadic function) {
+            return new Invoker() {
+
+                @Override
+                public PlcObject invoke(PlcObject[] arguments) {
+                    return function.invoke(arguments);
+                }
+
+            };
+        }
+
+        /**
+         * Adapts a function taking its arguments as a list.
+         */
+        public static Invoker adapt(java.util.function.Function<List<PlcObject>, PlcObject> function) {
+            return new Invoker() {
+
+                @Override
+                public PlcObject invoke(PlcObject[] arguments) {
+                    return function.apply(Arrays.asList(arguments));
+                }
+
+                @Override
+                public PlcObject invoke(List<PlcObject> arguments) {
+                    return function.apply(arguments);
+                }
+
+                @Override
+                public String toString() {
+                    return function.toString();
+                }
+
+            };
+        }
+
+        private static void requireArity(int arity, PlcObject[] arguments) {
+            if (arguments.length != arity) {
+                throw new RuntimeException("Expected " + arity + " arguments, received " + arguments.length + ".");
+            }
+        }
+
+    }
+
     public static final class Function {
 
         private final String name;
         private final String jvmName;
         private final List<Type> parameterTypes;
         private final Type returnType;
-        private final java.util.function.Function<List<PlcObject>, PlcObject> function;
+        private volatile Invoker invoker;
+
+        private static final AtomicReferenceFieldUpdater<Function, Invoker> INVOKER =
+                AtomicReferenceFieldUpdater.newUpdater(Function.class, Invoker.class, "invoker");
 
         public Function(String name, int arity, java.util.function.Function<List<PlcObject>, PlcObject> function) {
             this(name, name, new ArrayList<>(), Type.ANY, function);
@@ -206,11 +858,15 @@ public final class Environment {
         }
 
         public Function(String name, String jvmName, List<Type> parameterTypes, Type returnType, java.util.function.Function<List<PlcObject>, PlcObject> function) {
+            this(name, jvmName, parameterTypes, returnType, Invoker.adapt(function));
+        }
+
+        public Function(String name, String jvmName, List<Type> parameterTypes, Type returnType, Invoker invoker) {
             this.name = name;
             this.jvmName = jvmName;
             this.parameterTypes = parameterTypes;
             this.returnType = returnType;
-            this.function = function;
+            this.invoker = invoker;
         }
 
         public String getName() {
@@ -234,8 +890,46 @@ public final class Environment {
             return parameterTypes.size();
         }
 
+        public Invoker getInvoker() {
+            return invoker;
+        }
+
+        /**
+         * Atomically replaces the implementation of this function, such as
+         * with a compiled version, if it is still the expected one. Calls
+         * made afterwards use the replacement, including through call sites
+         * which have cached this function.
+         */
+        public boolean replaceInvoker(Invoker expected, Invoker replacement) {
+            return INVOKER.compareAndSet(this, expected, replacement);
+        }
+
         public PlcObject invoke(List<PlcObject> arguments) {
-            return function.apply(arguments);
+            return invoker.invoke(arguments);
+        }
+
+        public PlcObject invoke(PlcObject[] arguments) {
+            return invoker.invoke(arguments);
+        }
+
+        public PlcObject invoke() {
+            return invoker.invoke();
+        }
+
+        public PlcObject invoke(PlcObject a) {
+            return invoker.invoke(a);
+        }
+
+        public PlcObject invoke(PlcObject a, PlcObject b) {
+            return invoker.invoke(a, b);
+        }
+
+        public PlcObject invoke(PlcObject a, PlcObject b, PlcObject c) {
+            return invoker.invoke(a, b, c);
+        }
+
+        public PlcObject invoke(PlcObject a, PlcObject b, PlcObject c, PlcObject d) {
+            return invoker.invoke(a, b, c, d);
         }
 
         @Override
@@ -255,7 +949,7 @@ public final class Environment {
                     ", arity=" + parameterTypes.size() +
                     ", parameterTypes=" + parameterTypes +
                     ", returnType=" + returnType +
-                    ", function=" + function +
+                    ", function=" + invoker +
                     '}';
         }
 
@@ -270,6 +964,8 @@ public final class Environment {
         registerType(Type.DECIMAL);
         registerType(Type.CHARACTER);
         registerType(Type.STRING);
+        registerType(Type.TASK);
+        registerType(Type.CHANNEL);
         Type.ANY.scope.defineFunction("stringify", "toString", Arrays.asList(), Type.STRING, args -> Environment.NIL);
         Type.COMPARABLE.scope.defineFunction("compare", "compareTo", Arrays.asList(Type.ANY, Type.COMPARABLE), Type.COMPARABLE, args -> Environment.NIL);
         Type.INTEGER.scope.defineFunction("compare", "compareTo", Arrays.asList(Type.ANY, Type.INTEGER), Type.INTEGER, args -> Environment.NIL);
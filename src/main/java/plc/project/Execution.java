@@ -0,0 +1,88 @@
+package plc.project;
+
+/**
+ * A single run of a {@link Program}. All of the mutable state of the run,
+ * such as its scopes, globals and call sites, belongs to the execution's own
+ * {@link Interpreter}, so executions of one program are independent of each
+ * other. An execution is run once, on one thread.
+ */
+public final class Execution {
+
+    private final Program program;
+    private final Interpreter interpreter;
+    private final Scope prototype;
+    private Budget budget = Budget.UNLIMITED;
+    private boolean started = false;
+
+    Execution(Program program) {
+        this(program, null);
+    }
+
+    /**
+     * Creates an execution whose globals are forked from the scope of a
+     * {@link Prototype}, or are initialized when it runs if that is null.
+     */
+    Execution(Program program, Scope prototype) {
+        this.program = program;
+        this.interpreter = new Interpreter(new Scope(null));
+        this.prototype = prototype;
+        interpreter.isolateCallSites();
+        if (prototype != null) {
+            interpreter.getScope().fork(prototype);
+        }
+    }
+
+    public Program getProgram() {
+        return program;
+    }
+
+    /**
+     * Returns the interpreter of this execution, which may be configured
+     * before it runs.
+     */
+    public Interpreter getInterpreter() {
+        return interpreter;
+    }
+
+    /**
+     * Sets the budget of this execution, whose timeout starts when it runs.
+     */
+    public void setBudget(Budget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Cancels this execution from any thread, so that it throws a
+     * {@link BudgetExceededException} at its next loop back edge or function
+     * entry, or as soon as it starts if it has not yet.
+     */
+    public void cancel() {
+        interpreter.cancel();
+    }
+
+    /**
+     * Returns the scope holding the globals of this execution.
+     */
+    public Scope getGlobals() {
+        return interpreter.getScope();
+    }
+
+    /**
+     * Initializes the globals and functions of the program and calls main,
+     * returning its result. The globals of a fork are already initialized.
+     * Tasks still running when main returns are cancelled and waited for.
+     */
+    public Environment.PlcObject run() {
+        if (started) {
+            throw new IllegalStateException("The execution has already been run.");
+        }
+        started = true;
+        interpreter.setBudget(budget);
+        try {
+            return prototype != null ? interpreter.start(program.getAst()) : interpreter.visit(program.getAst());
+        } finally {
+            interpreter.stopTasks();
+        }
+    }
+
+}
@@ -1,11 +1,51 @@
 package plc.project;
 
 import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public final class Generator implements Ast.Visitor<Void> {
 
+    /**
+     * The methods generated code uses for tasks and channels, which are only
+     * added to the class if it uses them. Each task runs on a thread of its
+     * own, like the virtual threads of the interpreter.
+     */
+    private static final Map<String, List<String>> HELPERS = new LinkedHashMap<>();
+
+    static {
+        HELPERS.put("spawn", Arrays.asList(
+                "java.util.concurrent.CompletableFuture<Object> spawn(java.util.function.Function<Object[], Object> call, Object... arguments) {",
+                "    return java.util.concurrent.CompletableFuture.supplyAsync(() -> call.apply(arguments), runnable -> new Thread(runnable).start());",
+                "}"
+        ));
+        HELPERS.put("send", Arrays.asList(
+                "Void send(java.util.concurrent.BlockingQueue<Object> channel, Object value) {",
+                "    try {",
+                "        channel.put(value);",
+                "        return null;",
+                "    } catch (InterruptedException e) {",
+                "        throw new IllegalStateException(e);",
+                "    }",
+                "}"
+        ));
+        HELPERS.put("receive", Arrays.asList(
+                "Object receive(java.util.concurrent.BlockingQueue<Object> channel) {",
+                "    try {",
+                "        return channel.take();",
+                "    } catch (InterruptedException e) {",
+                "        throw new IllegalStateException(e);",
+                "    }",
+                "}"
+        ));
+    }
+
     private final PrintWriter writer;
+    private final Set<String> helpers = new HashSet<>();
     private int indent = 0;
 
     public Generator(PrintWriter writer) {
@@ -48,6 +88,17 @@ public final class Generator implements Ast.Visitor<Void> {
             newline(indent);
             print(method);
         }
+        for (Map.Entry<String, List<String>> helper : HELPERS.entrySet()) {
+            if (helpers.contains(helper.getKey())) {
+                newline(0);
+                newline(indent);
+                for (int i = 0; i < helper.getValue().size(); i++) {
+                    String line = helper.getValue().get(i);
+                    if (i != 0) newline(indent + (line.length() - line.trim().length()) / 4);
+                    print(line.trim());
+                }
+            }
+        }
         newline(--indent);
         newline(indent);
         print("}");
@@ -137,7 +188,7 @@ public final class Generator implements Ast.Visitor<Void> {
     public Void visit(Ast.Statement.Switch ast) {
         print("switch (",ast.getCondition(),") {");
         ast.getCases().forEach(this::print);
-        newline(--indent);
+        newline(indent);
         print("}");
         return null;
     }
@@ -154,6 +205,10 @@ public final class Generator implements Ast.Visitor<Void> {
             print(st);
             if(!st.equals(ast.getStatements().get(ast.getStatements().size()-1))) newline(indent);
         }
+        if (ast.getValue().isPresent()) { // cases do not fall through
+            if (!ast.getStatements().isEmpty()) newline(indent);
+            print("break;");
+        }
         indent = indent -2;
         return null;
     }
@@ -173,6 +228,22 @@ public final class Generator implements Ast.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visit(Ast.Statement.For ast) {
+        // the generated program is single threaded, so a PARALLEL FOR runs in order
+        print("for (", ast.getVariable().getType().getJvmName(), " ", ast.getName(), " : ", ast.getList(), ") {");
+        if (!ast.getStatements().isEmpty()) {
+            newline(++indent);
+            for (int i = 0; i < ast.getStatements().size(); i++){
+                print(ast.getStatements().get(i));
+                if (i != ast.getStatements().size()-1) newline(indent);
+            }
+            newline(--indent);
+        }
+        print("}");
+        return null;
+    }
+
     @Override
     public Void visit(Ast.Statement.Return ast) {
         print("return ",ast.getValue(),";");
@@ -227,6 +298,10 @@ public final class Generator implements Ast.Visitor<Void> {
 
     @Override
     public Void visit(Ast.Expression.Function ast) {
+        List<Environment.Type> types = ast.getFunction().getParameterTypes();
+        if (HELPERS.containsKey(ast.getFunction().getJvmName()) && !types.isEmpty() && types.get(0) == Environment.Type.CHANNEL) {
+            helpers.add(ast.getFunction().getJvmName());
+        }
         print(ast.getFunction().getJvmName(),"(");
         for ( int i=0; i<ast.getArguments().size(); i++){
             visit(ast.getArguments().get(i));
@@ -249,4 +324,41 @@ public final class Generator implements Ast.Visitor<Void> {
         return null;
     }
 
+    /**
+     * Generates {@code spawn(a$ -> f((T) a$[0], ...), args...)}, which passes
+     * the arguments evaluated by the caller to the call on the new thread.
+     */
+    @Override
+    public Void visit(Ast.Expression.Spawn ast) {
+        helpers.add("spawn");
+        Ast.Expression.Function call = ast.getCall();
+        List<Environment.Type> types = call.getFunction().getParameterTypes();
+        boolean nil = call.getFunction().getReturnType() == Environment.Type.NIL;
+        print("spawn(a$ -> ", nil ? "{ " : "", call.getFunction().getJvmName(), "(");
+        for (int i = 0; i < types.size(); i++) {
+            print("(", types.get(i).getJvmName(), ") a$[", i, "]");
+            if (i != types.size() - 1) print(", ");
+        }
+        print(")", nil ? "; return null; }" : "");
+        for (Ast.Expression argument : call.getArguments()) {
+            print(", ", argument);
+        }
+        print(")");
+        return null;
+    }
+
+    /**
+     * Generates {@code task.join()}, cast to the return type of the task's
+     * call if it is known, as the future itself holds any object.
+     */
+    @Override
+    public Void visit(Ast.Expression.Await ast) {
+        if (ast.getType() == Environment.Type.ANY || ast.getType() == Environment.Type.NIL) {
+            print(ast.getTask(), ".join()");
+        } else {
+            print("((", ast.getType().getJvmName(), ") ", ast.getTask(), ".join())");
+        }
+        return null;
+    }
+
 }
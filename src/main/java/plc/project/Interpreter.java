@@ -1,73 +1,471 @@
 package plc.project;
 
+import java.io.PrintStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.math.RoundingMode;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
 import java.util.stream.Collectors;
 
 public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
 
+    /**
+     * Returned by a statement which executed a {@code RETURN}, instead of the
+     * usual {@link Environment#NIL}. The value being returned, or the pending
+     * tail call, is held by the interpreter until the enclosing call takes it.
+     */
+    private static final Environment.PlcObject RETURNED = new Environment.PlcObject(Environment.Type.NIL, null, "return");
+
     private Scope scope = new Scope(null);
+    private final Scope globals;
+    private int depth = 0;
+    private Environment.PlcObject returnValue = null;
+    private Closure tailCall = null;
+    private Scope tailScope = null;
+    private Closure active = null;
+    private int compileThreshold = 0;
+    private ClosureCompiler compiler = null;
+    private int traceThreshold = 0;
+    private final Map<Ast.Statement.While, Loop> loops = new IdentityHashMap<>();
+    private Map<Ast.Expression.Binary, Class<?>[]> observedTypes = null;
+    private Map<Ast.Statement.If, Boolean> observedBranches = null;
+    private long traceHits = 0;
+    private long guardFailures = 0;
+    private long tracesCompiled = 0;
+    private final Map<Ast.Statement.While, Optional<CountedLoop>> countedLoops = new IdentityHashMap<>();
+    private MemoCache memoCache = null;
+    private Map<Ast.Expression.Function, Environment.Function> callSites = null;
+    private PrintStream out = null;
+    private volatile boolean cancelled = false;
+    private Budget budget = null;
+    private long deadline = 0;
+    private int clock = 0;
+    private final AtomicLong statementCount;
+    private final AtomicLong backEdgeCount;
+    private final AtomicLong allocatedBytes;
+    private boolean lazyGlobals = false;
+    private ForkJoinPool globalPool = null;
+    private ForkJoinPool loopPool = ForkJoinPool.commonPool();
+    private Interpreter origin = null;
+    private Map<Environment.Function, Environment.Function> rebound = null;
+    private Map<String, String> reductions = null;
+    private Map<String, Environment.PlcObject> partials = null;
+    private final Set<Interpreter> tasks = ConcurrentHashMap.newKeySet();
+    private volatile Environment.Task spawned = null;
+    private Thread thread = null;
+    private ForkJoinPool statementPool = null;
+    private Map<String, Ast.Function> sourceFunctions = Collections.emptyMap();
+    private Set<Ast.Function> pureFunctions = Collections.emptySet();
+    private final Map<List<Ast.Statement>, List<DependenceGraph.Batch>> schedules = new IdentityHashMap<>();
+
+    /**
+     * The total size in nodes of the initializers which may run in parallel
+     * below which they are run in order instead, as forking would cost more.
+     */
+    private static final int PARALLEL_GLOBALS_SIZE = 256;
+
+    /**
+     * The estimated cost of a statement, as by {@link DependenceGraph}, below
+     * which it is not worth evaluating on another thread.
+     */
+    private static final int PARALLEL_STATEMENT_COST = 256;
+
+    /**
+     * Compiles hot functions in the background, shared by all interpreters.
+     */
+    private static final ExecutorService COMPILER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "plc-compiler");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public Interpreter(Scope parent) {
         scope = new Scope(parent);
-        scope.defineFunction("print", 1, args -> {
-            System.out.println(args.get(0).getValue());
+        globals = scope;
+        statementCount = new AtomicLong();
+        backEdgeCount = new AtomicLong();
+        allocatedBytes = new AtomicLong();
+        scope.defineFunction("print", value -> {
+            (out != null ? out : System.out).println(value.getValue());
+            return Environment.NIL;
+        });
+        defineChannels(scope);
+    }
+
+    /**
+     * Defines the builtins for channels, {@code channel(capacity)}, {@code
+     * send(channel, value)} and {@code receive(channel)}.
+     */
+    static void defineChannels(Scope scope) {
+        scope.defineFunction("channel", capacity -> {
+            BigInteger value = requireType(BigInteger.class, capacity);
+            if (value.bitLength() >= 32) {
+                throw new RuntimeException("The capacity of a channel must be positive, received " + value + ".");
+            }
+            return Environment.create(new Environment.Channel(value.intValue()));
+        });
+        scope.defineFunction("send", (channel, value) -> {
+            requireType(Environment.Channel.class, channel).send(value);
             return Environment.NIL;
         });
+        scope.defineFunction("receive", channel -> requireType(Environment.Channel.class, channel).receive());
+    }
+
+    /**
+     * Returns a value to pass to a task, copying lists so that the task
+     * shares none with its caller.
+     */
+    static Environment.PlcObject isolate(Environment.PlcObject value) {
+        if (value.getValue() instanceof Environment.PlcList) {
+            return new Environment.PlcObject(value.getType(), value.getType().getScope(), ((Environment.PlcList) value.getValue()).snapshot());
+        } else if (value.getValue() instanceof List) {
+            return new Environment.PlcObject(value.getType(), value.getType().getScope(), new ArrayList<>((List<?>) value.getValue()));
+        }
+        return value;
+    }
+
+    /**
+     * Creates an interpreter for some of the iterations of a parallel loop
+     * run by another, or for a spawned task, reading the variables of the
+     * given scope. Source functions are called through copies bound to this
+     * interpreter, and assignments to the loop's reduction variables are
+     * accumulated here. A task has the budget of the interpreter spawning it,
+     * and charges it to the same counts, so spawning tasks gets no more work
+     * done than running the calls in order. It is cancelled along with it.
+     */
+    private Interpreter(Interpreter origin, Scope scope, Map<String, String> reductions) {
+        this.origin = origin.origin != null ? origin.origin : origin;
+        this.scope = scope;
+        this.globals = origin.globals;
+        this.out = origin.out;
+        this.statementCount = this.origin.statementCount;
+        this.backEdgeCount = this.origin.backEdgeCount;
+        this.allocatedBytes = this.origin.allocatedBytes;
+        this.callSites = new IdentityHashMap<>();
+        this.rebound = new IdentityHashMap<>();
+        this.reductions = reductions;
+        this.partials = new LinkedHashMap<>();
     }
 
     public Scope getScope() {
         return scope;
     }
 
+    /**
+     * Sets the stream {@code print} writes to, which is {@link System#out}
+     * at the time of the call if it is null, as by default.
+     */
+    public void setOutput(PrintStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Limits the work done by this interpreter from now on, resetting the
+     * counts and starting the clock for the budget's timeout. A null budget
+     * is unlimited. Functions compiled in the background are not metered, so
+     * they are not compiled while there is a budget.
+     */
+    public void setBudget(Budget budget) {
+        if (budget == null) {
+            budget = Budget.UNLIMITED;
+        }
+        this.budget = budget == Budget.UNLIMITED ? null : budget;
+        this.statementCount.set(0);
+        this.backEdgeCount.set(0);
+        this.allocatedBytes.set(0);
+        this.deadline = budget.getTimeout() != null ? System.nanoTime() + budget.getTimeout().toNanos() : 0;
+    }
+
+    /**
+     * Cancels the current run, which may be on another thread. The run throws
+     * a {@link BudgetExceededException} at its next loop back edge or
+     * function entry, and so does any later one.
+     */
+    public void cancel() {
+        cancelled = true;
+        tasks.forEach(Interpreter::cancel);
+        if (origin != null) {
+            synchronized (this) { // a task waiting on a channel only stops if interrupted
+                if (thread != null) {
+                    thread.interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancels the tasks still running once a run has ended, and waits for
+     * them to stop, so that none outlive it. The run itself is cancelled as
+     * well, so a task cannot spawn another meanwhile.
+     */
+    void stopTasks() {
+        cancel();
+        for (Interpreter task : tasks) {
+            if (task.spawned != null) {
+                try {
+                    task.spawned.await();
+                } catch (RuntimeException e) {
+                    // the task was cancelled, or failed without being awaited
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of statements counted against the budget.
+     */
+    public long getStatementCount() {
+        return statementCount.get();
+    }
+
+    /**
+     * Returns the number of loop back edges counted against the budget.
+     */
+    public long getBackEdgeCount() {
+        return backEdgeCount.get();
+    }
+
+    /**
+     * Returns the approximate number of bytes allocated for values while
+     * there was a budget, including by spawned tasks.
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * Enables lazy globals, whose initializers run when they are first read
+     * rather than in order at startup, and never if they are assigned first.
+     * Only the initializers the {@link Analyzer} found pure are deferred, so
+     * this does not change what a program does, except that an initializer
+     * which fails, such as by dividing by zero, fails when it is first read.
+     */
+    public void setLazyGlobals(boolean lazyGlobals) {
+        this.lazyGlobals = lazyGlobals;
+    }
+
+    /**
+     * Evaluates the initializers of globals on a pool where they are
+     * independent, as found from the globals they read. An initializer which
+     * calls a function, which may have effects such as printing, runs in
+     * order on the calling thread, as does any which reads a global such an
+     * initializer defines or a lazy global. All of the globals are still
+     * defined in order. A null pool, the default, evaluates every initializer
+     * in order, as does a run with a budget, since the pool is not metered.
+     */
+    public void setGlobalPool(ForkJoinPool globalPool) {
+        this.globalPool = globalPool;
+    }
+
+    /**
+     * Sets the pool on which independent statements of the functions of a
+     * source run at the same time. Consecutive statements which declare or
+     * assign variables with values calling only pure functions, and which do
+     * not read each other's variables, have their values evaluated at once
+     * and are then written in order, if at least two of them are estimated
+     * to be expensive. A null pool, the default, runs every statement in
+     * order, as does a run with a budget, since the pool is not metered.
+     */
+    public void setStatementPool(ForkJoinPool statementPool) {
+        this.statementPool = statementPool;
+    }
+
+    /**
+     * Sets the pool the iterations of a {@code PARALLEL FOR} run on, which
+     * is {@link ForkJoinPool#commonPool()} by default. Parallel loops run in
+     * order if there is a budget, since the pool is not metered.
+     */
+    public void setLoopPool(ForkJoinPool loopPool) {
+        this.loopPool = loopPool;
+    }
+
+    /**
+     * Keeps resolved call sites in this interpreter rather than on the AST,
+     * so the AST can be run by interpreters on other threads at once. This
+     * is for an {@link Execution}, whose functions are all defined before
+     * any are called.
+     */
+    void isolateCallSites() {
+        callSites = new IdentityHashMap<>();
+    }
+
+    /**
+     * Enables tiered execution. Each function counts its invocations and the
+     * iterations of its loops, and once their sum reaches the threshold it is
+     * compiled by a {@link ClosureCompiler} on a background thread. Later
+     * calls then run the compiled function, which replaces the interpreted
+     * one atomically. A threshold of zero, the default, disables tiering.
+     */
+    public void setCompileThreshold(int threshold) {
+        this.compileThreshold = threshold;
+    }
+
+    /**
+     * Enables tracing of hot loops. Once a {@code WHILE} loop has iterated
+     * this many times, the types and branches observed in its next iteration
+     * are recorded, and later iterations run a trace specialized to them.
+     * Each specialization is guarded, falling back to the interpreter when
+     * the guard fails. A threshold of zero, the default, disables tracing.
+     */
+    public void setTraceThreshold(int threshold) {
+        this.traceThreshold = threshold;
+    }
+
+    /**
+     * Enables memoization of the functions of a source which {@link Purity}
+     * finds to be pure, caching their results in the given cache. Calls with
+     * list arguments or results are not cached, since lists are mutable.
+     * Calls in tail position only read the cache and remain tail calls, so a
+     * chain of them caches the result of the call which started it.
+     */
+    public void setMemoCache(MemoCache cache) {
+        this.memoCache = cache;
+    }
+
+    /**
+     * Returns the number of loop iterations which ran on a trace.
+     */
+    public long getTraceHits() {
+        return traceHits;
+    }
+
+    /**
+     * Returns the number of times a trace fell back to the interpreter.
+     */
+    public long getGuardFailures() {
+        return guardFailures;
+    }
+
+    /**
+     * Returns the number of traces compiled, which is at most one per loop.
+     */
+    public long getTracesCompiled() {
+        return tracesCompiled;
+    }
+
     @Override
     public Environment.PlcObject visit(Ast.Source ast) {
 
-        for(Ast.Global g : ast.getGlobals()) {
-            visit(g);
-        }
+        initialize(ast.getGlobals());
+        return start(ast);
+    }
+
+    /**
+     * Defines the functions of a source and calls main, assuming its globals
+     * have already been initialized, such as by a {@link Prototype}.
+     */
+    Environment.PlcObject start(Ast.Source ast) {
         for(Ast.Function f : ast.getFunctions()) {
             visit(f);
         }
+        if (statementPool != null) {
+            sourceFunctions = new HashMap<>();
+            for (Ast.Function f : ast.getFunctions()) {
+                sourceFunctions.put(f.getName() + "/" + f.getParameters().size(), f);
+            }
+            pureFunctions = Purity.analyze(ast.getFunctions(), scope);
+        }
+        if (memoCache != null) {
+            for (Ast.Function f : Purity.analyze(ast.getFunctions(), scope)) {
+                Environment.Function function = scope.lookupFunction(f.getName(), f.getParameters().size());
+                Environment.Invoker invoker = function.getInvoker();
+                if (invoker instanceof Closure) {
+                    ((Closure) invoker).queued = true; // the cache is kept over compiling
+                    function.replaceInvoker(invoker, new Memoized((Closure) invoker, memoCache));
+                }
+            }
+        }
 
         return scope.lookupFunction("main", 0).invoke(Collections.emptyList());
     }
 
     @Override
     public Environment.PlcObject visit(Ast.Global ast) {
-            Optional<Ast.Expression> opt = ast.getValue();
-            if (opt.isPresent()) {
-                scope.defineVariable(ast.getName(), ast.getMutable(), visit(opt.get()));
-            }
-            else  {
-            scope.defineVariable(ast.getName(), ast.getMutable(), Environment.NIL);
+        if (lazyGlobals && ast.isPure()) {
+            Scope definition = scope; // the first read may be on another thread, so it evaluates on an interpreter of its own
+            scope.defineVariable(ast.getName(), ast.getName(), Environment.Type.ANY, ast.getMutable(), () -> new Interpreter(definition).initialize(ast), this);
+        } else {
+            scope.defineVariable(ast.getName(), ast.getMutable(), initialize(ast));
         }
         return Environment.NIL;
     }
 
-    @Override
-    public Environment.PlcObject visit(Ast.Function ast) {
-
-        scope.defineFunction(ast.getName(), ast.getParameters().size(), args -> {
-            try {
-                scope = new Scope(scope);
-                for(int i = 0; i < args.size(); i++) { // define arguments
-                    scope.defineVariable(ast.getParameters().get(i),true, args.get(i));
-                }
-                for(Ast.Statement stmt : ast.getStatements()) { // evaluate statements
-                    visit(stmt);
-                }
+    /**
+     * Defines the globals of a source in order, evaluating the independent
+     * initializers in parallel if there is a pool for them.
+     */
+    void initialize(List<Ast.Global> globals) {
+        if (globalPool == null || budget != null || cancelled) {
+            globals.forEach(this::visit);
+            return;
+        }
+        Map<String, Initializer> tasks = new HashMap<>();
+        int size = 0;
+        for (Ast.Global global : globals) {
+            if (!global.getValue().isPresent() || (lazyGlobals && global.isPure())) {
+                continue;
             }
-            catch(Return r) {
-                return r.value;
+            Effects effects = Effects.of(global.getValue().get());
+            if (effects.getCalls().isEmpty() && effects.getReads().stream().allMatch(tasks::containsKey)) {
+                List<Initializer> inputs = new ArrayList<>();
+                effects.getReads().forEach(name -> inputs.add(tasks.get(name)));
+                tasks.put(global.getName(), new Initializer(global, inputs));
+                size += effects.getSize();
             }
-            finally { // restore scope
-                scope = scope.getParent();
+        }
+        if (tasks.size() < 2 || size < PARALLEL_GLOBALS_SIZE) {
+            globals.forEach(this::visit);
+            return;
+        }
+        tasks.values().forEach(task -> globalPool.execute(task));
+        for (Ast.Global global : globals) {
+            Initializer task = tasks.get(global.getName());
+            if (task != null) {
+                scope.defineVariable(global.getName(), global.getMutable(), task.result());
+            } else {
+                visit(global);
+            }
+        }
+    }
+
+    /**
+     * Evaluates the initializer of a global in the global scope. A lazy
+     * global is instead evaluated by a new interpreter over that scope.
+     */
+    private Environment.PlcObject initialize(Ast.Global ast) {
+        Scope current = scope;
+        Closure caller = active;
+        scope = globals;
+        active = null;
+        try {
+            Optional<Ast.Expression> opt = ast.getValue();
+            if (opt.isPresent() && opt.get() instanceof Ast.Expression.PlcList) {
+                Environment.Type type = Environment.getType(ast.getTypeName());
+                return list((Ast.Expression.PlcList) opt.get(), type);
+            } else if (opt.isPresent()) {
+                return visit(opt.get());
             }
             return Environment.NIL;
-        });
+        } finally {
+            scope = current;
+            active = caller;
+        }
+    }
+
+    @Override
+    public Environment.PlcObject visit(Ast.Function ast) {
+        Closure closure = new Closure(ast);
+        scope.defineFunction(ast.getName(), ast.getParameters().size(), closure);
+        closure.defined = scope.lookupFunction(ast.getName(), ast.getParameters().size());
         return Environment.NIL;
     }
 
@@ -91,73 +489,94 @@ public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
     public Environment.PlcObject visit(Ast.Statement.Assignment ast) {
         Ast.Expression receiver = ast.getReceiver();
         Ast.Expression value = ast.getValue();
+        if (reductions != null && depth == 0 && receiver instanceof Ast.Expression.Access && reductions.containsKey(((Ast.Expression.Access) receiver).getName())) {
+            String operator = reductions.get(((Ast.Expression.Access) receiver).getName());
+            partials.merge(((Ast.Expression.Access) receiver).getName(), contribution((Ast.Expression.Binary) value), (a, b) -> evaluate(operator, a, b));
+            return Environment.NIL;
+        }
         if (receiver instanceof Ast.Expression.Access) {
-            Environment.Variable variable = scope.lookupVariable(((Ast.Expression.Access) receiver).getName());
-            if (!variable.getMutable()) throw new RuntimeException();
-            if (!(((Ast.Expression.Access) receiver).getOffset().equals(Optional.empty()))) {
-                Ast.Expression.PlcList plclist = new Ast.Expression.PlcList((List<Ast.Expression>) variable.getValue().getValue());
-                int off = ((BigInteger) ((Ast.Expression.Literal) ((Ast.Expression.Access) receiver).getOffset().get()).getLiteral()).intValue();
-                List<Object> alist = new ArrayList<>();
-                List<Object> newlist = new ArrayList<>();
-                newlist.addAll(plclist.getValues());
-                for (Object a : newlist){
-                    alist.add(a);
-                }
-                alist.set(off,((Ast.Expression.Literal) value).getLiteral());
-                variable.setValue(Environment.create(alist));
-            } else variable.setValue(visit(ast.getValue()));
+            Environment.Variable variable = lookup((Ast.Expression.Access) receiver);
+            if (!variable.getMutable()) throw new RuntimeException("The variable " + variable.getName() + " is immutable.");
+            Optional<Ast.Expression> offset = ((Ast.Expression.Access) receiver).getOffset();
+            if (offset.isPresent()) {
+                List<Object> list = requireType(List.class, variable.getValue());
+                int index = index(list, offset.get());
+                Object element = visit(value).getValue();
+                if (list instanceof Environment.PlcList) {
+                    ((Environment.PlcList) list).update(index, element);
+                } else {
+                    list.set(index, element);
+                }
+            } else if (observedTypes == null && isIncrement(((Ast.Expression.Access) receiver).getName(), value)) { // x = x + c
+                Ast.Expression.Binary binary = (Ast.Expression.Binary) value;
+                variable.setValue(allocate(evaluate(binary.getOperator(), variable.getValue(), ((Ast.Expression.Literal) binary.getRight()).getObject())));
+            } else variable.setValue(visit(value));
         }
         return Environment.NIL;
     }
 
+    /**
+     * Evaluates what an iteration contributes to a reduction {@code x = x op
+     * a op b}, which is {@code a op b} as the operator is associative.
+     */
+    private Environment.PlcObject contribution(Ast.Expression.Binary ast) {
+        Environment.PlcObject right = visit(ast.getRight());
+        if (!(ast.getLeft() instanceof Ast.Expression.Binary)) {
+            return right;
+        }
+        return evaluate(ast.getOperator(), contribution((Ast.Expression.Binary) ast.getLeft()), right);
+    }
+
+    /**
+     * Returns true if the value is {@code name + c} or {@code name - c} for an
+     * integer literal {@code c}, which is assigned without looking up the
+     * variable a second time.
+     */
+    private static boolean isIncrement(String name, Ast.Expression value) {
+        if (!(value instanceof Ast.Expression.Binary)) return false;
+        Ast.Expression.Binary binary = (Ast.Expression.Binary) value;
+        return (binary.getOperator().equals("+") || binary.getOperator().equals("-"))
+                && binary.getLeft() instanceof Ast.Expression.Access
+                && ((Ast.Expression.Access) binary.getLeft()).getName().equals(name)
+                && !((Ast.Expression.Access) binary.getLeft()).getOffset().isPresent()
+                && binary.getRight() instanceof Ast.Expression.Literal
+                && ((Ast.Expression.Literal) binary.getRight()).getLiteral() instanceof BigInteger;
+    }
+
     @Override
     public Environment.PlcObject visit(Ast.Statement.If ast) {
-        if(requireType(Boolean.class, visit(ast.getCondition())) != null) {
-            //try {
-                if((Boolean) visit(ast.getCondition()).getValue()) {
-                    for (Ast.Statement st : ast.getThenStatements()){
-                        try{
-                            scope = new Scope(scope);
-                            visit(st);
-                        }
-                        finally{
-                            scope = scope.getParent();
-                        }
-                    }
-                } else {
-                    for (Ast.Statement st : ast.getElseStatements()){
-                        try{
-                            scope = new Scope(scope);
-                            visit(st);
-                        }
-                        finally{
-                            scope = scope.getParent();
-                        }
-                    }
-                }
-            //} finally {
-            //    scope = scope.getParent();
-            //}
+        boolean condition = test(ast.getCondition());
+        if (observedBranches != null) {
+            observedBranches.putIfAbsent(ast, condition);
+        }
+        if (condition) {
+            return execute(ast.getThenStatements(), ast.getThenDeclares());
+        } else {
+            return execute(ast.getElseStatements(), ast.getElseDeclares());
         }
-        return Environment.NIL;
     }
 
     @Override
     public Environment.PlcObject visit(Ast.Statement.Switch ast) {
-        try{
-            scope = new Scope(scope);
-
-                for (Ast.Statement.Case c : ast.getCases()) {
-                    if(c.getValue().isPresent()){
-                        Ast.Expression expr = c.getValue().get();
-                        if (visit(ast.getCondition()).getValue().equals(visit(expr).getValue())) {
-                            c.getStatements().forEach(this::visit);
-                        }
-                    }
-
+        Object condition = visit(ast.getCondition()).getValue();
+        List<Ast.Statement.Case> cases = ast.getCases();
+        Ast.Statement.Case selected = null;
+        Optional<Map<Object, Ast.Statement.Case>> table = ast.getCaseTable();
+        if (table.isPresent()) { // constant cases, dispatched through the table built by the Analyzer
+            selected = table.get().get(condition);
+        } else {
+            for (Ast.Statement.Case c : cases) {
+                if (c.getValue().isPresent() && condition.equals(visit(c.getValue().get()).getValue())) {
+                    selected = c;
+                    break;
                 }
-        } finally{
-            scope = scope.getParent();
+            }
+        }
+        if (selected == null && !cases.isEmpty() && !cases.get(cases.size() - 1).getValue().isPresent()) {
+            selected = cases.get(cases.size() - 1); // default
+        }
+        if (selected != null) {
+            return execute(selected.getStatements(), selected.getDeclares());
         }
         return Environment.NIL;
     }
@@ -172,260 +591,821 @@ public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
 
     @Override
     public Environment.PlcObject visit(Ast.Statement.While ast) {
-        while(requireType(Boolean.class, visit(ast.getCondition()))) {
-            try { // enter new scope
-                scope = new Scope(scope);
-                ast.getStatements().forEach(this::visit);
-            } finally { // restore scope
-                scope = scope.getParent();
+        Loop loop = traceThreshold > 0 ? loops.computeIfAbsent(ast, Loop::new) : null;
+        if (loop != null && loop.types != null) {
+            return trace(ast, loop).run();
+        }
+        CountedLoop counted = loop == null ? countedLoops.computeIfAbsent(ast, CountedLoop::match).orElse(null) : null;
+        if (counted != null) {
+            Environment.PlcObject result = count(ast, counted);
+            if (result != null) return result;
+        }
+        while (true) {
+            if (loop != null && loop.traceable && loop.iterations + 1 >= traceThreshold && observedTypes == null) {
+                loop.iterations++;
+                return record(ast, loop);
             }
+            if (!test(ast.getCondition())) break;
+            backEdge(ast.getStatements().size());
+            if (loop != null && loop.traceable) loop.iterations++;
+            if (execute(ast.getStatements(), ast.getDeclares()) == RETURNED) return RETURNED;
         }
         return Environment.NIL;
     }
 
     @Override
-    public Environment.PlcObject visit(Ast.Statement.Return ast) {
-        Environment.PlcObject value = visit(ast.getValue());
-        throw new Return(value);
+    public Environment.PlcObject visit(Ast.Statement.For ast) {
+        List<?> list = requireType(List.class, visit(ast.getList()));
+        Optional<Map<String, String>> reductions = ast.getReductions();
+        if (ast.getParallel() && reductions.isPresent() && origin == null && budget == null && !cancelled && list.size() > 1) {
+            return parallel(ast, list, reductions.get());
+        }
+        for (int i = 0; i < list.size(); i++) {
+            backEdge(ast.getStatements().size());
+            if (iterate(ast, list.get(i)) == RETURNED) return RETURNED;
+        }
+        return Environment.NIL;
     }
 
-    @Override
-    public Environment.PlcObject visit(Ast.Expression.Literal ast) {
-        if(ast.getLiteral() == null) {
-            return Environment.NIL;
+    /**
+     * Runs one iteration of a loop in a new scope holding the element.
+     */
+    private Environment.PlcObject iterate(Ast.Statement.For ast, Object element) {
+        try {
+            scope = new Scope(scope);
+            scope.defineVariable(ast.getName(), false, Environment.create(element));
+            return execute(ast.getStatements());
+        } finally {
+            scope = scope.getParent();
         }
-        return Environment.create(ast.getLiteral());
     }
 
-    @Override
-    public Environment.PlcObject visit(Ast.Expression.Group ast) {
-        return visit(ast.getExpression());
+    /**
+     * Runs the iterations of an analyzed parallel loop on the loop pool and
+     * then applies the reductions, combined in the order of the iterations.
+     * Nested parallel loops run in order within their iteration.
+     */
+    private Environment.PlcObject parallel(Ast.Statement.For ast, List<?> list, Map<String, String> reductions) {
+        int grain = Math.max(1, list.size() / (8 * loopPool.getParallelism()));
+        Map<String, Environment.PlcObject> partials;
+        try {
+            partials = loopPool.invoke(new Iterations(ast, list, 0, list.size(), grain, reductions, scope));
+        } catch (RuntimeException e) { // thrown as it is rather than as copied by the pool
+            throw e.getCause() != null && e.getCause().getClass() == e.getClass() ? (RuntimeException) e.getCause() : e;
+        }
+        for (Map.Entry<String, Environment.PlcObject> partial : partials.entrySet()) {
+            Environment.Variable variable = scope.lookupVariable(partial.getKey());
+            if (!variable.getMutable()) throw new RuntimeException("The variable " + variable.getName() + " is immutable.");
+            variable.setValue(allocate(evaluate(reductions.get(partial.getKey()), variable.getValue(), partial.getValue())));
+        }
+        return Environment.NIL;
     }
 
-    @Override
-    public Environment.PlcObject visit(Ast.Expression.Binary ast) {
-        Environment.PlcObject left = visit(ast.getLeft());
-
-        switch (ast.getOperator()) {
-            case "+":
-                if(left.getValue() instanceof BigInteger) { // integer addition
-                    if(visit(ast.getRight()).getValue() instanceof BigInteger) {
-                        return Environment.create(
-                                requireType(BigInteger.class, left).add(requireType(BigInteger.class, visit(ast.getRight())))
-                        );
-                    }
-                    throw new RuntimeException();
+    /**
+     * Runs a counted loop on a primitive counter, only boxing the counter into
+     * its variable each iteration if the body may read it. Returns null if the
+     * loop has to continue on the interpreter, with the variable up to date.
+     */
+    private Environment.PlcObject count(Ast.Statement.While ast, CountedLoop counted) {
+        Environment.Variable variable = scope.lookupVariable(counted.name);
+        Environment.PlcObject boxed = variable.getValue();
+        if (!variable.getMutable() || !isLong(boxed.getValue())) {
+            return null;
+        }
+        long counter = ((BigInteger) boxed.getValue()).longValue();
+        try {
+            while (counted.test(counter, this)) {
+                backEdge(counted.body.size() + 1);
+                if (counted.escapes) {
+                    boxed = allocate(Environment.create(BigInteger.valueOf(counter)));
+                    variable.setValue(boxed);
                 }
-                if(left.getValue() instanceof BigDecimal) { // decimal addition
-                    if(visit(ast.getRight()).getValue() instanceof BigDecimal) {
-                        return Environment.create(
-                                requireType(BigDecimal.class, left).add(requireType(BigDecimal.class, visit(ast.getRight())))
-                        );
+                if (execute(counted.body, ast.getDeclares()) == RETURNED) return RETURNED;
+                if (counted.escapes && variable.getValue() != boxed) { // assigned by a call
+                    boxed = variable.getValue();
+                    if (!isLong(boxed.getValue())) {
+                        variable.setValue(add(boxed, Environment.create(BigInteger.valueOf(counted.step))));
+                        return null;
                     }
-                    throw new RuntimeException();
+                    counter = ((BigInteger) boxed.getValue()).longValue();
                 }
-                if(left.getValue() instanceof String) {
-                    if(visit(ast.getRight()).getValue() instanceof String) { // string concatenation
-                        return Environment.create(
-                                requireType(String.class, left) + requireType(String.class, visit(ast.getRight()))
-                        );
-                    }
-                    throw new RuntimeException();
+                long next = counter + counted.step;
+                if (((counter ^ next) & (counted.step ^ next)) < 0) { // overflow
+                    variable.setValue(Environment.create(BigInteger.valueOf(counter).add(BigInteger.valueOf(counted.step))));
+                    return null;
                 }
-                break;
+                counter = next;
+            }
+            return Environment.NIL;
+        } finally {
+            if (variable.getValue() == boxed) {
+                variable.setValue(Environment.create(BigInteger.valueOf(counter)));
+            }
+        }
+    }
 
-            case "-":
-                if(left.getValue() instanceof BigInteger) {
-                    if(visit(ast.getRight()).getValue() instanceof BigInteger) { // integer subtraction
-                        return Environment.create(
-                                requireType(BigInteger.class, left).subtract(requireType(BigInteger.class, visit(ast.getRight())))
-                        );
-                    }
-                    throw new RuntimeException();
-                }
-                if(left.getValue() instanceof BigDecimal) {
-                    if(visit(ast.getRight()).getValue() instanceof BigDecimal) {
-                        return Environment.create(
-                                requireType(BigDecimal.class, left).subtract(requireType(BigDecimal.class, visit(ast.getRight())))
-                        );
-                    }
-                    throw new RuntimeException();
-                }
-                break;
+    private static boolean isLong(Object value) {
+        return value instanceof BigInteger && ((BigInteger) value).bitLength() < Long.SIZE;
+    }
 
-            case "*":
-                if(left.getValue() instanceof BigInteger) { // integer multiplication
-                    if(visit(ast.getRight()).getValue() instanceof BigInteger) {
-                        return Environment.create(
-                                requireType(BigInteger.class, left).multiply(requireType(BigInteger.class, visit(ast.getRight())))
-                        );
-                    }
-                    throw new RuntimeException();
-                }
-                if(left.getValue() instanceof BigDecimal) { // decimal multiplication
-                    if(visit(ast.getRight()).getValue() instanceof BigDecimal) {
-                        return Environment.create(
-                                requireType(BigDecimal.class, left).multiply(requireType(BigDecimal.class, visit(ast.getRight())))
-                        );
-                    }
-                    throw new RuntimeException();
+    /**
+     * Evaluates a condition, comparing integers directly rather than through a
+     * boxed boolean.
+     */
+    private boolean test(Ast.Expression condition) {
+        if (condition instanceof Ast.Expression.Binary && observedTypes == null) {
+            Ast.Expression.Binary binary = (Ast.Expression.Binary) condition;
+            String operator = binary.getOperator();
+            if (operator.equals("<") || operator.equals("<=") || operator.equals(">") || operator.equals(">=")) {
+                Environment.PlcObject left = visit(binary.getLeft());
+                Environment.PlcObject right = visit(binary.getRight());
+                if (left.getValue() instanceof BigInteger && right.getValue() instanceof BigInteger) {
+                    return compare(operator, ((BigInteger) left.getValue()).compareTo((BigInteger) right.getValue()));
                 }
-                break;
+                return requireType(Boolean.class, evaluate(operator, left, right));
+            }
+        }
+        return requireType(Boolean.class, visit(condition));
+    }
 
-            case "/":
-                if(left.getValue() instanceof BigInteger) { // integer division
-                    if(visit(ast.getRight()).getValue() instanceof BigInteger) {
-                        if(((BigInteger) visit(ast.getRight()).getValue()).intValue() == 0) {
-                            throw new RuntimeException();
-                        }
-                        return Environment.create(
-                                requireType(BigInteger.class, left).divide(requireType(BigInteger.class, visit(ast.getRight())))
-                        );
-                    }
-                    throw new RuntimeException();
-                }
-                if(left.getValue() instanceof BigDecimal) { // decimal division
-                    if(visit(ast.getRight()).getValue() instanceof BigDecimal) {
-                        if(((BigDecimal) visit(ast.getRight()).getValue()).doubleValue() == 0) { // divide by 0 error
-                            throw new RuntimeException();
-                        }
-                        return Environment.create(
-                                requireType(BigDecimal.class, left).divide(requireType(BigDecimal.class, visit(ast.getRight())), RoundingMode.HALF_EVEN)
-                        );
-                    }
-                    throw new RuntimeException();
-                }
-                break;
+    private static boolean compare(String operator, int comparison) {
+        switch (operator) {
+            case "<": return comparison < 0;
+            case "<=": return comparison <= 0;
+            case ">": return comparison > 0;
+            case ">=": return comparison >= 0;
+            default: return comparison != 0;
+        }
+    }
 
-            case "&&":
-                if(left.getValue() instanceof Boolean && !(Boolean)left.getValue()) {
-                    return Environment.create(false);
-                }
-                if(visit(ast.getRight()).getValue() instanceof Boolean && !(Boolean)visit(ast.getRight()).getValue()) {
-                    return Environment.create(false);
-                }
-                if(left.getValue() instanceof Boolean) {
-                    if(visit(ast.getRight()).getValue() instanceof Boolean) {
-                        return Environment.create(true);
-                    }
-                    throw new RuntimeException();
-                }
-                break;
+    /**
+     * Takes a loop back edge, charging the budget and counting the back edge
+     * towards compiling the active function.
+     */
+    private void backEdge(int statements) {
+        if (cancelled || budget != null) {
+            charge(statements, 1);
+        }
+        if (active != null && compileThreshold > 0) {
+            active.backEdges++;
+            profile(active);
+        }
+    }
 
-            case "||":
-                if(left.getValue() instanceof Boolean && (Boolean)left.getValue()) {
-                    return Environment.create(true);
-                }
-                if(visit(ast.getRight()).getValue() instanceof Boolean && (Boolean)visit(ast.getRight()).getValue()) {
-                    return Environment.create(true);
-                }
-                if(left.getValue() instanceof Boolean) {
-                    if(visit(ast.getRight()).getValue() instanceof Boolean) {
-                        return Environment.create(false);
-                    }
-                    throw new RuntimeException();
-                }
-                break;
+    /**
+     * Charges a function entry or loop back edge of an engine which compiles
+     * the program rather than visiting it, if there is a budget or the run
+     * has been cancelled.
+     */
+    final void meter(int statements, int backEdges) {
+        if (cancelled || budget != null) {
+            charge(statements, backEdges);
+        }
+    }
 
-            case "==":
-                return Environment.create(
-                        Objects.equals(left.getValue(), visit(ast.getRight()).getValue())
-                );
+    /**
+     * Charges statements and back edges to the budget, throwing if it is
+     * exceeded or the run was cancelled. The deadline is only checked every
+     * 1024 charges, since reading the clock is comparatively slow.
+     */
+    private void charge(int statements, int backEdges) {
+        if (cancelled) {
+            throw new BudgetExceededException(BudgetExceededException.Reason.CANCELLED, "The run was cancelled.");
+        } else if (budget == null) {
+            return;
+        }
+        if (statementCount.addAndGet(statements) > budget.getMaxStatements()) {
+            throw new BudgetExceededException(BudgetExceededException.Reason.STATEMENTS, "Exceeded the maximum of " + budget.getMaxStatements() + " statements.");
+        } else if (backEdges != 0 && backEdgeCount.addAndGet(backEdges) > budget.getMaxBackEdges()) {
+            throw new BudgetExceededException(BudgetExceededException.Reason.BACK_EDGES, "Exceeded the maximum of " + budget.getMaxBackEdges() + " loop iterations.");
+        } else if (deadline != 0 && (++clock & 1023) == 0 && System.nanoTime() - deadline > 0) {
+            throw new BudgetExceededException(BudgetExceededException.Reason.DEADLINE, "Exceeded the timeout of " + budget.getTimeout() + ".");
+        }
+    }
 
-            case "!=":
-                return Environment.create(
-                        !Objects.equals(left.getValue(), visit(ast.getRight()).getValue())
-                );
+    /**
+     * Charges the approximate size of a newly created value to the memory
+     * quota, returning the value.
+     */
+    private Environment.PlcObject allocate(Environment.PlcObject object) {
+        if (budget != null) {
+            if (allocatedBytes.addAndGet(sizeOf(object.getValue())) > budget.getMaxMemory()) {
+                throw new BudgetExceededException(BudgetExceededException.Reason.MEMORY, "Exceeded the quota of " + budget.getMaxMemory() + " bytes.");
+            }
+        }
+        return object;
+    }
 
-            case "<":
-                if(left.getValue() instanceof Comparable) {
-                    Environment.PlcObject right = visit(ast.getRight());
-                    if(requireType(left.getValue().getClass(), right) != null) {
-                        return Environment.create(((Comparable) left.getValue()).compareTo(right.getValue()) < 0);
-                    }
-                }
-                break;
+    /**
+     * Estimates the bytes used by a value and the object holding it, though
+     * not by the elements of a list, which are charged when they are created.
+     */
+    private static long sizeOf(Object value) {
+        if (value instanceof BigInteger) {
+            return 64 + ((BigInteger) value).bitLength() / 8;
+        } else if (value instanceof BigDecimal) {
+            return 96 + ((BigDecimal) value).unscaledValue().bitLength() / 8;
+        } else if (value instanceof String) {
+            return 64 + ((String) value).length();
+        } else if (value instanceof List) {
+            return 64 + 8L * ((List<?>) value).size();
+        }
+        return 24;
+    }
 
-            case "<=":
-                if(left.getValue() instanceof Comparable) {
-                    Environment.PlcObject right = visit(ast.getRight());
-                    if(requireType(left.getValue().getClass(), right) != null) {
-                        return Environment.create(((Comparable) left.getValue()).compareTo(right.getValue()) <= 0);
-                    }
-                }
-                break;
+    /**
+     * Runs one iteration of a hot loop, recording the types of operands and
+     * the branches taken in its condition and body for its trace, and then
+     * runs the rest of the loop on the trace.
+     */
+    private Environment.PlcObject record(Ast.Statement.While ast, Loop loop) {
+        observedTypes = new IdentityHashMap<>();
+        observedBranches = new IdentityHashMap<>();
+        try {
+            if (!test(ast.getCondition())) {
+                return Environment.NIL;
+            }
+            backEdge(ast.getStatements().size());
+            if (execute(ast.getStatements()) == RETURNED) {
+                return RETURNED;
+            }
+        } finally {
+            loop.types = observedTypes;
+            loop.branches = observedBranches;
+            observedTypes = null;
+            observedBranches = null;
+        }
+        return trace(ast, loop).run();
+    }
 
-            case ">":
-                if(left.getValue() instanceof Comparable) {
-                    Environment.PlcObject right = visit(ast.getRight());
-                    if(requireType(left.getValue().getClass(), right) != null) {
-                        return Environment.create(((Comparable) left.getValue()).compareTo(right.getValue()) > 0);
-                    }
+    /**
+     * Returns the trace of a loop, compiling it the first time the loop is
+     * entered after being recorded.
+     */
+    private Trace trace(Ast.Statement.While ast, Loop loop) {
+        if (loop.trace == null) {
+            loop.trace = new Trace(ast, loop);
+            tracesCompiled++;
+        }
+        return loop.trace;
+    }
+
+    @Override
+    public Environment.PlcObject visit(Ast.Statement.Return ast) {
+        if (depth > 0 && ast.getValue() instanceof Ast.Expression.Function) {
+            // a call to a source function in tail position is not made here,
+            // but bound to a new frame which the enclosing call then runs
+            Ast.Expression.Function call = (Ast.Expression.Function) ast.getValue();
+            Environment.Invoker invoker = resolve(call).getInvoker();
+            Memoized memoized = null;
+            if (invoker instanceof Memoized) { // only the result of the call starting the chain is cached
+                memoized = (Memoized) invoker;
+                invoker = memoized.closure;
+            }
+            if (invoker instanceof Closure && ((Closure) invoker).getInterpreter() == this) {
+                Closure closure = (Closure) invoker;
+                Scope body = closure.frame(call.getArguments().size());
+                Environment.PlcObject[] arguments = new Environment.PlcObject[call.getArguments().size()];
+                for (int i = 0; i < arguments.length; i++) {
+                    arguments[i] = visit(call.getArguments().get(i));
+                    closure.bind(body, i, arguments[i]);
+                }
+                Environment.PlcObject cached = memoized != null ? memoized.lookup(arguments) : null;
+                if (cached != null) {
+                    returnValue = cached;
+                    return RETURNED;
                 }
-                break;
+                tailCall = closure;
+                tailScope = body;
+                return RETURNED;
+            }
+        }
+        returnValue = visit(ast.getValue());
+        return RETURNED;
+    }
 
-            case ">=":
-                if(left.getValue() instanceof Comparable) {
-                    Environment.PlcObject right = visit(ast.getRight());
-                    if(requireType(left.getValue().getClass(), right) != null) {
-                        return Environment.create(((Comparable) left.getValue()).compareTo(right.getValue()) >= 0);
-                    }
+    @Override
+    public Environment.PlcObject visit(Ast.Expression.Literal ast) {
+        return ast.getObject();
+    }
+
+    @Override
+    public Environment.PlcObject visit(Ast.Expression.Group ast) {
+        return visit(ast.getExpression());
+    }
+
+    @Override
+    public Environment.PlcObject visit(Ast.Expression.Binary ast) {
+        Environment.PlcObject left = visit(ast.getLeft());
+        switch (ast.getOperator()) {
+            case "&&":
+                if (requireType(Boolean.class, left)) {
+                    return Environment.create(requireType(Boolean.class, visit(ast.getRight())));
                 }
-                break;
+                return Environment.FALSE;
+            case "||":
+                if (requireType(Boolean.class, left)) {
+                    return Environment.TRUE;
+                }
+                return Environment.create(requireType(Boolean.class, visit(ast.getRight())));
+            default:
+                Environment.PlcObject right = visit(ast.getRight());
+                if (observedTypes != null) {
+                    observedTypes.putIfAbsent(ast, new Class<?>[] {left.getValue().getClass(), right.getValue().getClass()});
+                }
+                return allocate(evaluate(ast.getOperator(), left, right));
+        }
+    }
 
+    /**
+     * Applies a binary operator to already evaluated operands. Each operand is
+     * evaluated exactly once by the caller, so this performs no visits of its
+     * own; {@code &&} and {@code ||} are only short circuited by the caller.
+     */
+    static Environment.PlcObject evaluate(String operator, Environment.PlcObject left, Environment.PlcObject right) {
+        switch (operator) {
+            case "+":
+                return add(left, right);
+            case "-":
+                return subtract(left, right);
+            case "*":
+                return multiply(left, right);
+            case "/":
+                return divide(left, right);
+            case "&&":
+                return Environment.create(requireType(Boolean.class, left) && requireType(Boolean.class, right));
+            case "||":
+                return Environment.create(requireType(Boolean.class, left) || requireType(Boolean.class, right));
+            case "==":
+                return Environment.create(Objects.equals(left.getValue(), right.getValue()));
+            case "!=":
+                return Environment.create(!Objects.equals(left.getValue(), right.getValue()));
+            case "<":
+                return lessThan(left, right);
+            case "<=":
+                return lessThanOrEqual(left, right);
+            case ">":
+                return greaterThan(left, right);
+            case ">=":
+                return greaterThanOrEqual(left, right);
             case "^":
-                if(left.getValue() instanceof Comparable) {
-                    Environment.PlcObject right = visit(ast.getRight());
-                    requireType(BigInteger.class,right);
-                    if (left.getValue() instanceof BigInteger){
-                        return Environment.create(((BigInteger)left.getValue()).pow(((BigInteger) right.getValue()).intValue()));
-                    }
-                    if (left.getValue() instanceof BigDecimal){
-                        return Environment.create(((BigDecimal)left.getValue()).pow(((BigInteger) right.getValue()).intValue()));
-                    }
-                }
+                return power(left, right);
+        }
+        return Environment.NIL;
+    }
+
+    static Environment.PlcObject add(Environment.PlcObject left, Environment.PlcObject right) {
+        Object lhs = left.getValue();
+        if (lhs instanceof BigInteger) { // integer addition
+            return Environment.create(((BigInteger) lhs).add(requireType(BigInteger.class, right)));
+        }
+        if (lhs instanceof BigDecimal) { // decimal addition
+            return Environment.create(((BigDecimal) lhs).add(requireType(BigDecimal.class, right)));
+        }
+        if (lhs instanceof String) { // string concatenation
+            return Environment.create((String) lhs + requireType(String.class, right));
+        }
+        return Environment.NIL;
+    }
+
+    static Environment.PlcObject subtract(Environment.PlcObject left, Environment.PlcObject right) {
+        Object lhs = left.getValue();
+        if (lhs instanceof BigInteger) { // integer subtraction
+            return Environment.create(((BigInteger) lhs).subtract(requireType(BigInteger.class, right)));
+        }
+        if (lhs instanceof BigDecimal) { // decimal subtraction
+            return Environment.create(((BigDecimal) lhs).subtract(requireType(BigDecimal.class, right)));
+        }
+        return Environment.NIL;
+    }
+
+    static Environment.PlcObject multiply(Environment.PlcObject left, Environment.PlcObject right) {
+        Object lhs = left.getValue();
+        if (lhs instanceof BigInteger) { // integer multiplication
+            return Environment.create(((BigInteger) lhs).multiply(requireType(BigInteger.class, right)));
+        }
+        if (lhs instanceof BigDecimal) { // decimal multiplication
+            return Environment.create(((BigDecimal) lhs).multiply(requireType(BigDecimal.class, right)));
+        }
+        return Environment.NIL;
+    }
+
+    static Environment.PlcObject divide(Environment.PlcObject left, Environment.PlcObject right) {
+        Object lhs = left.getValue();
+        if (lhs instanceof BigInteger) { // integer division
+            BigInteger rhs = requireType(BigInteger.class, right);
+            if (rhs.signum() == 0) {
+                throw new RuntimeException("Division by zero.");
+            }
+            return Environment.create(((BigInteger) lhs).divide(rhs));
+        }
+        if (lhs instanceof BigDecimal) { // decimal division
+            BigDecimal rhs = requireType(BigDecimal.class, right);
+            if (rhs.signum() == 0) {
+                throw new RuntimeException("Division by zero.");
+            }
+            return Environment.create(((BigDecimal) lhs).divide(rhs, RoundingMode.HALF_EVEN));
+        }
+        return Environment.NIL;
+    }
+
+    static Environment.PlcObject lessThan(Environment.PlcObject left, Environment.PlcObject right) {
+        return left.getValue() instanceof Comparable ? Environment.create(compare(left, right) < 0) : Environment.NIL;
+    }
+
+    static Environment.PlcObject lessThanOrEqual(Environment.PlcObject left, Environment.PlcObject right) {
+        return left.getValue() instanceof Comparable ? Environment.create(compare(left, right) <= 0) : Environment.NIL;
+    }
+
+    static Environment.PlcObject greaterThan(Environment.PlcObject left, Environment.PlcObject right) {
+        return left.getValue() instanceof Comparable ? Environment.create(compare(left, right) > 0) : Environment.NIL;
+    }
+
+    static Environment.PlcObject greaterThanOrEqual(Environment.PlcObject left, Environment.PlcObject right) {
+        return left.getValue() instanceof Comparable ? Environment.create(compare(left, right) >= 0) : Environment.NIL;
+    }
+
+    static Environment.PlcObject power(Environment.PlcObject left, Environment.PlcObject right) {
+        Object lhs = left.getValue();
+        int exponent = requireType(BigInteger.class, right).intValue();
+        if (lhs instanceof BigInteger) {
+            return Environment.create(((BigInteger) lhs).pow(exponent));
+        }
+        if (lhs instanceof BigDecimal) {
+            return Environment.create(((BigDecimal) lhs).pow(exponent));
         }
         return Environment.NIL;
     }
 
+    /**
+     * Compares two values of the same comparable type.
+     */
+    @SuppressWarnings("unchecked")
+    private static int compare(Environment.PlcObject left, Environment.PlcObject right) {
+        return ((Comparable<Object>) left.getValue()).compareTo(requireType(left.getValue().getClass(), right));
+    }
+
     @Override
     public Environment.PlcObject visit(Ast.Expression.Access ast) {
+        Environment.PlcObject value = lookup(ast).getValue();
+        if (ast.getOffset().isPresent()) {
+            List<?> list = requireType(List.class, value);
+            return Environment.create(list.get(index(list, ast.getOffset().get())));
+        }
+        return value;
+    }
 
-        if ( !ast.getOffset().equals(Optional.empty()) ) {
-            Object list = scope.lookupVariable(ast.getName()).getValue().getValue();
-            Ast.Expression.PlcList plclist = new Ast.Expression.PlcList((List<Ast.Expression>) list);
-            List<Object> alist = new ArrayList<>(plclist.getValues());
-            int off = ((BigInteger) ((Ast.Expression.Literal) ast.getOffset().get()).getLiteral()).intValue();
-            return Environment.create(alist.get(off));
-
+    /**
+     * Resolves the variable of an access, directly from the captures of the
+     * active function if it was captured and otherwise from the current scope.
+     */
+    private Environment.Variable lookup(Ast.Expression.Access ast) {
+        if (ast.getCapture() >= 0 && active != null) {
+            return active.capture(ast.getCapture(), ast.getName());
         }
-        return scope.lookupVariable(ast.getName()).getValue();
+        return scope.lookupVariable(ast.getName());
     }
 
     @Override
     public Environment.PlcObject visit(Ast.Expression.Function ast) {
-        List<Environment.PlcObject> arguments = new ArrayList<>();
-        for (Ast.Expression argument : ast.getArguments()) {
-            arguments.add(visit(argument));
+        Environment.Function function = resolve(ast);
+        List<Ast.Expression> arguments = ast.getArguments();
+        switch (arguments.size()) {
+            case 0:
+                return function.invoke();
+            case 1:
+                return function.invoke(visit(arguments.get(0)));
+            case 2:
+                return function.invoke(visit(arguments.get(0)), visit(arguments.get(1)));
+            case 3:
+                return function.invoke(visit(arguments.get(0)), visit(arguments.get(1)), visit(arguments.get(2)));
+            case 4:
+                return function.invoke(visit(arguments.get(0)), visit(arguments.get(1)), visit(arguments.get(2)), visit(arguments.get(3)));
+            default:
+                Environment.PlcObject[] values = new Environment.PlcObject[arguments.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = visit(arguments.get(i));
+                }
+                return function.invoke(values);
         }
-        //scope = new Scope(scope);
-        Environment.Function function = scope.lookupFunction(ast.getName(), ast.getArguments().size());
-        return function.invoke(arguments);
+    }
+
+    /**
+     * Resolves the target of a call. Functions are only defined globally, so
+     * call sites resolve from the global scope and keep the result until
+     * another function is defined.
+     */
+    private Environment.Function resolve(Ast.Expression.Function ast) {
+        if (callSites != null) {
+            Environment.Function function = callSites.get(ast);
+            if (function == null) {
+                function = globals.lookupFunction(ast.getName(), ast.getArguments().size());
+                if (origin != null) {
+                    function = rebound.computeIfAbsent(function, this::rebind);
+                }
+                callSites.put(ast, function);
+            }
+            return function;
+        }
+        Scope.CachedFunction cached = ast.getCachedFunction();
+        if (cached == null || !cached.isValid(globals)) {
+            cached = globals.cacheFunction(ast.getName(), ast.getArguments().size());
+            ast.setCachedFunction(cached);
+        }
+        return cached.getFunction();
+    }
+
+    /**
+     * Returns a copy of a source function bound to this interpreter, or the
+     * function itself if it is not one or has been compiled, as compiled
+     * functions keep no state between calls. A memoized function stays
+     * memoized in the same cache, which is synchronized.
+     */
+    private Environment.Function rebind(Environment.Function function) {
+        Environment.Invoker invoker = function.getInvoker();
+        Memoized memoized = null;
+        if (invoker instanceof Memoized) {
+            memoized = (Memoized) invoker;
+            invoker = memoized.closure;
+        }
+        if (!(invoker instanceof Closure)) {
+            return function;
+        }
+        Closure closure = (Closure) invoker;
+        Closure copy = new Closure(closure.function, closure.definition);
+        copy.queued = closure.queued;
+        copy.defined = new Environment.Function(function.getName(), function.getJvmName(), function.getParameterTypes(), function.getReturnType(),
+                memoized != null ? new Memoized(copy, memoized.cache, memoized.key) : copy);
+        return copy.defined;
     }
 
     @Override
     public Environment.PlcObject visit(Ast.Expression.PlcList ast) {
-        List<Object> list = new ArrayList<>();
+        return list(ast, Environment.Type.ANY);
+    }
+
+    /**
+     * Evaluates the arguments and starts the call on a new task, with its
+     * own interpreter. Lists are copied rather than shared with the task.
+     */
+    @Override
+    public Environment.PlcObject visit(Ast.Expression.Spawn ast) {
+        Ast.Expression.Function call = ast.getCall();
+        Environment.Function function = globals.lookupFunction(call.getName(), call.getArguments().size());
+        Environment.PlcObject[] arguments = new Environment.PlcObject[call.getArguments().size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = visit(call.getArguments().get(i));
+        }
+        return spawn(function, arguments);
+    }
+
+    /**
+     * Starts a call of the function on a new task, which calls source
+     * functions through copies bound to an interpreter of its own.
+     */
+    Environment.PlcObject spawn(Environment.Function function, Environment.PlcObject[] arguments) {
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = isolate(arguments[i]);
+        }
+        Interpreter task = new Interpreter(this, new Scope(globals), null);
+        task.budget = budget;
+        task.deadline = deadline;
+        Interpreter root = task.origin;
+        root.tasks.add(task);
+        if (root.cancelled) {
+            task.cancel();
+        }
+        Environment.Function target = task.rebind(function);
+        task.spawned = Environment.Task.spawn(() -> {
+            synchronized (task) {
+                task.thread = Thread.currentThread();
+            }
+            try {
+                return target.invoke(arguments);
+            } finally {
+                synchronized (task) { // so a late cancel does not interrupt whatever runs on the thread next
+                    task.thread = null;
+                }
+                root.tasks.remove(task);
+            }
+        });
+        return allocate(Environment.create(task.spawned));
+    }
+
+    @Override
+    public Environment.PlcObject visit(Ast.Expression.Await ast) {
+        return requireType(Environment.Task.class, visit(ast.getTask())).await();
+    }
+
+    /**
+     * Evaluates a list literal into a runtime list of the given element type,
+     * which allows primitive backing storage for typed lists.
+     */
+    private Environment.PlcObject list(Ast.Expression.PlcList ast, Environment.Type type) {
+        List<Object> values = new ArrayList<>(ast.getValues().size());
         for (Ast.Expression a : ast.getValues()){
-            list.add(visit(a).getValue());
+            values.add(visit(a).getValue());
+        }
+        return allocate(Environment.create(Environment.PlcList.of(type, values)));
+    }
+
+    /**
+     * Evaluates a list offset and checks that it is within the bounds of the list.
+     */
+    private int index(List<?> list, Ast.Expression offset) {
+        return index(list, visit(offset));
+    }
+
+    /**
+     * Checks that an evaluated list offset is within the bounds of the list.
+     */
+    static int index(List<?> list, Environment.PlcObject offset) {
+        BigInteger index = requireType(BigInteger.class, offset);
+        if (index.signum() < 0 || index.bitLength() >= 32 || index.intValue() >= list.size()) {
+            throw new RuntimeException("The index " + index + " is out of bounds for a list of size " + list.size() + ".");
+        }
+        return index.intValue();
+    }
+
+    /**
+     * Executes statements in order, stopping early if one of them returns.
+     */
+    private Environment.PlcObject execute(List<Ast.Statement> statements) {
+        if (statementPool != null && statements.size() > 1 && budget == null && reductions == null && !cancelled) {
+            List<DependenceGraph.Batch> schedule = schedules.computeIfAbsent(statements, block -> DependenceGraph.of(block, sourceFunctions, pureFunctions).schedule(PARALLEL_STATEMENT_COST));
+            if (schedule.size() < statements.size()) {
+                for (DependenceGraph.Batch batch : schedule) {
+                    if (batch.getStatements().size() > 1) {
+                        execute(batch);
+                    } else if (visit(batch.getStatements().get(0)) == RETURNED) {
+                        return RETURNED;
+                    }
+                }
+                return Environment.NIL;
+            }
+        }
+        for (Ast.Statement statement : statements) {
+            if (visit(statement) == RETURNED) {
+                return RETURNED;
+            }
+        }
+        return Environment.NIL;
+    }
+
+    /**
+     * Executes a batch of independent statements from a schedule of the
+     * {@link DependenceGraph}, evaluating the values of those which are
+     * expensive on the statement pool while evaluating the rest here, and
+     * then writing them in order. Each expensive value has a worker of its
+     * own, and when a value fails the workers of later ones are cancelled,
+     * so the first failure in order is thrown, as it would have been if the
+     * statements had run in order, even if a later value would not finish.
+     */
+    private void execute(DependenceGraph.Batch batch) {
+        List<Ast.Statement> statements = batch.getStatements();
+        int size = statements.size();
+        int last = size - 1; // the last expensive value is evaluated here rather than waiting idle
+        while (!batch.isExpensive(last)) {
+            last--;
+        }
+        Interpreter root = origin != null ? origin : this;
+        Interpreter[] workers = new Interpreter[size];
+        List<ForkJoinTask<Environment.PlcObject>> forked = new ArrayList<>(Collections.nCopies(size, null));
+        Environment.PlcObject[] values = new Environment.PlcObject[size];
+        RuntimeException[] failures = new RuntimeException[size];
+        try {
+            for (int i = 0; i < size; i++) {
+                if (batch.isExpensive(i)) {
+                    workers[i] = new Interpreter(this, scope, null);
+                    root.tasks.add(workers[i]);
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                if (workers[i] != null && i != last) {
+                    int index = i;
+                    Ast.Expression value = value(statements.get(i));
+                    forked.set(i, statementPool.submit(() -> evaluate(workers, failures, index, value)));
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                if (forked.get(i) == null) {
+                    values[i] = evaluate(workers, failures, i, value(statements.get(i)));
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                if (forked.get(i) != null) {
+                    values[i] = join(forked.get(i));
+                }
+                if (failures[i] != null) {
+                    throw failures[i];
+                }
+            }
+        } finally {
+            for (Interpreter worker : workers) {
+                if (worker != null) {
+                    root.tasks.remove(worker);
+                }
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            Ast.Statement statement = statements.get(i);
+            if (statement instanceof Ast.Statement.Declaration) {
+                scope.defineVariable(((Ast.Statement.Declaration) statement).getName(), true, values[i]);
+            } else {
+                Environment.Variable variable = lookup((Ast.Expression.Access) ((Ast.Statement.Assignment) statement).getReceiver());
+                if (!variable.getMutable()) throw new RuntimeException("The variable " + variable.getName() + " is immutable.");
+                variable.setValue(values[i]);
+            }
+        }
+    }
+
+    /**
+     * Evaluates the value of a statement of a batch, on its worker if it has
+     * one, cancelling the workers of the later statements if it fails. The
+     * failure is recorded rather than thrown, as the statement pool would
+     * throw a copy of it.
+     */
+    private Environment.PlcObject evaluate(Interpreter[] workers, RuntimeException[] failures, int index, Ast.Expression value) {
+        try {
+            return (workers[index] != null ? workers[index] : this).visit(value);
+        } catch (RuntimeException | Error e) {
+            for (int i = index + 1; i < workers.length; i++) {
+                if (workers[i] != null) {
+                    workers[i].cancel();
+                }
+            }
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+            failures[index] = (RuntimeException) e;
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value of a statement the {@link DependenceGraph} found to
+     * be independent, which is a declaration or assignment of a variable.
+     */
+    private static Ast.Expression value(Ast.Statement statement) {
+        if (statement instanceof Ast.Statement.Declaration) {
+            return ((Ast.Statement.Declaration) statement).getValue().get();
+        }
+        return ((Ast.Statement.Assignment) statement).getValue();
+    }
+
+    /**
+     * Waits for a value evaluated on the statement pool, throwing what the
+     * evaluation threw as it is rather than wrapped.
+     */
+    private static Environment.PlcObject join(ForkJoinTask<Environment.PlcObject> task) {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BudgetExceededException(BudgetExceededException.Reason.CANCELLED, "The run was interrupted.");
+        }
+    }
+
+    /**
+     * Executes a block, in a new scope only if the block declares a variable.
+     */
+    private Environment.PlcObject execute(List<Ast.Statement> statements, boolean declares) {
+        if (!declares) {
+            return execute(statements);
+        }
+        try { // enter new scope
+            scope = new Scope(scope);
+            return execute(statements);
+        } finally { // restore scope
+            scope = scope.getParent();
+        }
+    }
+
+    /**
+     * Queues a function for compilation once it has become hot.
+     */
+    private void profile(Closure closure) {
+        if (!closure.queued && closure.invocations + closure.backEdges >= compileThreshold && closure.defined != null && budget == null) {
+            closure.queued = true;
+            if (compiler == null) {
+                compiler = new ClosureCompiler(globals);
+            }
+            ClosureCompiler compiler = this.compiler;
+            COMPILER.execute(() -> closure.defined.replaceInvoker(closure, compiler.compile(closure.function)));
         }
-        return new Environment.PlcObject(scope, list);
     }
 
     /**
      * Helper function to ensure an object is of the appropriate type.
      */
-    private static <T> T requireType(Class<T> type, Environment.PlcObject object) {
+    static <T> T requireType(Class<T> type, Environment.PlcObject object) {
         if (type.isInstance(object.getValue())) {
             return type.cast(object.getValue());
         } else {
@@ -434,14 +1414,820 @@ public class Interpreter implements Ast.Visitor<Environment.PlcObject> {
     }
 
     /**
-     * Exception class for returning values.
+     * A loop of the form {@code WHILE i < n DO ... i = i + c; END}, where the
+     * rest of the body does not assign {@code i} and {@code n} does not depend
+     * on it. The comparison may be any of
+     * {@code <}, {@code <=}, {@code >}, {@code >=} or {@code !=}, and the step
+     * may also subtract.
+     */
+    private static final class CountedLoop {
+
+        private final String name;
+        private final String comparison;
+        private final Ast.Expression bound;
+        private final long step;
+        private final List<Ast.Statement> body;
+        private final boolean escapes;
+
+        private CountedLoop(String name, String comparison, Ast.Expression bound, long step, List<Ast.Statement> body, boolean escapes) {
+            this.name = name;
+            this.comparison = comparison;
+            this.bound = bound;
+            this.step = step;
+            this.body = body;
+            this.escapes = escapes;
+        }
+
+        private static Optional<CountedLoop> match(Ast.Statement.While ast) {
+            if (!(ast.getCondition() instanceof Ast.Expression.Binary) || ast.getStatements().isEmpty()) {
+                return Optional.empty();
+            }
+            Ast.Expression.Binary condition = (Ast.Expression.Binary) ast.getCondition();
+            List<Ast.Statement> statements = ast.getStatements();
+            Ast.Statement last = statements.get(statements.size() - 1);
+            if (!Arrays.asList("<", "<=", ">", ">=", "!=").contains(condition.getOperator())
+                    || !(condition.getLeft() instanceof Ast.Expression.Access)
+                    || ((Ast.Expression.Access) condition.getLeft()).getOffset().isPresent()
+                    || !(last instanceof Ast.Statement.Assignment)
+                    || !(((Ast.Statement.Assignment) last).getReceiver() instanceof Ast.Expression.Access)) {
+                return Optional.empty();
+            }
+            String name = ((Ast.Expression.Access) condition.getLeft()).getName();
+            Ast.Statement.Assignment increment = (Ast.Statement.Assignment) last;
+            Ast.Expression.Access receiver = (Ast.Expression.Access) increment.getReceiver();
+            if (!receiver.getName().equals(name) || receiver.getOffset().isPresent() || !isIncrement(name, increment.getValue())) {
+                return Optional.empty();
+            }
+            Ast.Expression.Binary value = (Ast.Expression.Binary) increment.getValue();
+            BigInteger step = (BigInteger) ((Ast.Expression.Literal) value.getRight()).getLiteral();
+            if (step.bitLength() >= Long.SIZE - 1) {
+                return Optional.empty();
+            }
+            List<Ast.Statement> body = statements.subList(0, statements.size() - 1);
+            Usage limit = new Usage(name);
+            limit.visit(condition.getRight());
+            Usage usage = new Usage(name);
+            body.forEach(usage::visit);
+            if (limit.read || usage.assigned) {
+                return Optional.empty();
+            }
+            long delta = value.getOperator().equals("+") ? step.longValue() : -step.longValue();
+            return Optional.of(new CountedLoop(name, condition.getOperator(), condition.getRight(), delta, body, usage.read));
+        }
+
+        private boolean test(long counter, Interpreter interpreter) {
+            Environment.PlcObject limit = interpreter.visit(bound);
+            Object value = limit.getValue();
+            if (isLong(value)) {
+                return compare(comparison, Long.compare(counter, ((BigInteger) value).longValue()));
+            } else if (value instanceof BigInteger) {
+                return compare(comparison, BigInteger.valueOf(counter).compareTo((BigInteger) value));
+            }
+            return requireType(Boolean.class, evaluate(comparison, Environment.create(BigInteger.valueOf(counter)), limit));
+        }
+
+    }
+
+    /**
+     * Evaluates the initializer of a global on a pool, in an interpreter of
+     * its own whose only variables are the globals it reads, once the tasks
+     * evaluating those have finished.
+     */
+    private static final class Initializer extends RecursiveTask<Environment.PlcObject> {
+
+        private final Ast.Global global;
+        private final List<Initializer> inputs;
+
+        private Initializer(Ast.Global global, List<Initializer> inputs) {
+            this.global = global;
+            this.inputs = inputs;
+        }
+
+        @Override
+        protected Environment.PlcObject compute() {
+            Scope scope = new Scope(null);
+            for (Initializer input : inputs) {
+                scope.defineVariable(input.global.getName(), input.global.getMutable(), input.join());
+            }
+            return new Interpreter(scope).initialize(global);
+        }
+
+        /**
+         * Waits for the result, throwing the exception the initializer threw
+         * as it is rather than as copied by {@link #join()}.
+         */
+        private Environment.PlcObject result() {
+            try {
+                return get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BudgetExceededException(BudgetExceededException.Reason.CANCELLED, "The run was interrupted while initializing its globals.");
+            }
+        }
+
+    }
+
+    /**
+     * Runs a range of the iterations of a parallel loop, splitting it in
+     * half until it is no larger than the grain. Each range of the grain runs
+     * on an interpreter of its own, and the result is what it contributed to
+     * each reduction, combined with those of later ranges in order.
+     */
+    private final class Iterations extends RecursiveTask<Map<String, Environment.PlcObject>> {
+
+        private final Ast.Statement.For ast;
+        private final List<?> list;
+        private final int from;
+        private final int to;
+        private final int grain;
+        private final Map<String, String> reductions;
+        private final Scope shared;
+
+        private Iterations(Ast.Statement.For ast, List<?> list, int from, int to, int grain, Map<String, String> reductions, Scope shared) {
+            this.ast = ast;
+            this.list = list;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.reductions = reductions;
+            this.shared = shared;
+        }
+
+        @Override
+        protected Map<String, Environment.PlcObject> compute() {
+            if (to - from <= grain) {
+                Interpreter worker = new Interpreter(Interpreter.this, new Scope(shared), reductions);
+                for (int i = from; i < to; i++) {
+                    if (cancelled) {
+                        throw new BudgetExceededException(BudgetExceededException.Reason.CANCELLED, "The run was cancelled.");
+                    } else if (worker.iterate(ast, list.get(i)) == RETURNED) {
+                        throw new RuntimeException("A PARALLEL FOR cannot RETURN.");
+                    }
+                }
+                return worker.partials;
+            }
+            int middle = (from + to) >>> 1;
+            Iterations left = new Iterations(ast, list, from, middle, grain, reductions, shared);
+            left.fork();
+            Map<String, Environment.PlcObject> right = new Iterations(ast, list, middle, to, grain, reductions, shared).compute();
+            Map<String, Environment.PlcObject> combined = left.join();
+            right.forEach((name, value) -> combined.merge(name, value, (a, b) -> evaluate(reductions.get(name), a, b)));
+            return combined;
+        }
+
+    }
+
+    /**
+     * Finds whether statements read or assign a variable. Function calls are
+     * treated as reads, since functions see the variables of their caller,
+     * and the counter is reloaded after the body in case they assign it.
+     */
+    private static final class Usage {
+
+        private final String name;
+        private boolean read = false;
+        private boolean assigned = false;
+
+        private Usage(String name) {
+            this.name = name;
+        }
+
+        private void visit(Ast.Statement ast) {
+            if (ast instanceof Ast.Statement.Expression) {
+                visit(((Ast.Statement.Expression) ast).getExpression());
+            } else if (ast instanceof Ast.Statement.Declaration) {
+                Ast.Statement.Declaration declaration = (Ast.Statement.Declaration) ast;
+                declaration.getValue().ifPresent(this::visit);
+                if (declaration.getName().equals(name)) { // shadows the counter
+                    read = assigned = true;
+                }
+            } else if (ast instanceof Ast.Statement.Assignment) {
+                Ast.Statement.Assignment assignment = (Ast.Statement.Assignment) ast;
+                if (assignment.getReceiver() instanceof Ast.Expression.Access) {
+                    Ast.Expression.Access receiver = (Ast.Expression.Access) assignment.getReceiver();
+                    receiver.getOffset().ifPresent(this::visit);
+                    if (receiver.getName().equals(name)) {
+                        assigned = true;
+                    }
+                }
+                visit(assignment.getValue());
+            } else if (ast instanceof Ast.Statement.If) {
+                Ast.Statement.If branch = (Ast.Statement.If) ast;
+                visit(branch.getCondition());
+                branch.getThenStatements().forEach(this::visit);
+                branch.getElseStatements().forEach(this::visit);
+            } else if (ast instanceof Ast.Statement.Switch) {
+                Ast.Statement.Switch select = (Ast.Statement.Switch) ast;
+                visit(select.getCondition());
+                for (Ast.Statement.Case c : select.getCases()) {
+                    c.getValue().ifPresent(this::visit);
+                    c.getStatements().forEach(this::visit);
+                }
+            } else if (ast instanceof Ast.Statement.While) {
+                visit(((Ast.Statement.While) ast).getCondition());
+                ((Ast.Statement.While) ast).getStatements().forEach(this::visit);
+            } else if (ast instanceof Ast.Statement.Return) {
+                visit(((Ast.Statement.Return) ast).getValue());
+            } else {
+                read = assigned = true;
+            }
+        }
+
+        private void visit(Ast.Expression ast) {
+            if (ast instanceof Ast.Expression.Access) {
+                Ast.Expression.Access access = (Ast.Expression.Access) ast;
+                access.getOffset().ifPresent(this::visit);
+                if (access.getName().equals(name)) {
+                    read = true;
+                }
+            } else if (ast instanceof Ast.Expression.Group) {
+                visit(((Ast.Expression.Group) ast).getExpression());
+            } else if (ast instanceof Ast.Expression.Binary) {
+                visit(((Ast.Expression.Binary) ast).getLeft());
+                visit(((Ast.Expression.Binary) ast).getRight());
+            } else if (ast instanceof Ast.Expression.PlcList) {
+                ((Ast.Expression.PlcList) ast).getValues().forEach(this::visit);
+            } else if (ast instanceof Ast.Expression.Function) { // may read or assign the variable
+                ((Ast.Expression.Function) ast).getArguments().forEach(this::visit);
+                read = true;
+            }
+        }
+
+    }
+
+    /**
+     * The profile of a loop, which holds the types and branches observed in
+     * one iteration once the loop is hot.
+     */
+    private static final class Loop {
+
+        private final boolean traceable;
+        private int iterations = 0;
+        private Map<Ast.Expression.Binary, Class<?>[]> types = null;
+        private Map<Ast.Statement.If, Boolean> branches = null;
+        private Trace trace = null;
+
+        private Loop(Ast.Statement.While ast) {
+            this.traceable = !declares(ast.getStatements());
+        }
+
+        /**
+         * Returns true if any block within the statements declares a variable,
+         * which would need a scope the trace does not create.
+         */
+        private static boolean declares(List<Ast.Statement> statements) {
+            for (Ast.Statement statement : statements) {
+                if (statement instanceof Ast.Statement.Declaration) {
+                    return true;
+                } else if (statement instanceof Ast.Statement.If) {
+                    Ast.Statement.If branch = (Ast.Statement.If) statement;
+                    if (declares(branch.getThenStatements()) || declares(branch.getElseStatements())) return true;
+                } else if (statement instanceof Ast.Statement.While) {
+                    if (declares(((Ast.Statement.While) statement).getStatements())) return true;
+                } else if (statement instanceof Ast.Statement.Switch) {
+                    for (Ast.Statement.Case c : ((Ast.Statement.Switch) statement).getCases()) {
+                        if (declares(c.getStatements())) return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+    }
+
+    /**
+     * A step of a trace, which evaluates an expression or executes a statement.
+     */
+    @FunctionalInterface
+    private interface Op {
+        Environment.PlcObject eval();
+    }
+
+    /**
+     * A function inlined into a trace, with its parameters bound to the
+     * arguments of the call being evaluated.
      */
-    private static class Return extends RuntimeException {
+    private static final class Inline {
+
+        private final Inline parent;
+        private final Closure closure;
+        private Environment.PlcObject[] arguments = null;
+
+        private Inline(Inline parent, Closure closure) {
+            this.parent = parent;
+            this.closure = closure;
+        }
 
-        private final Environment.PlcObject value;
+    }
+
+    /**
+     * A variable read or assigned by a trace, bound each time the trace runs
+     * to the variable of that name in the scope the loop runs in.
+     */
+    private static final class Slot {
+
+        private final Ast.Expression.Access ast;
+        private Environment.Variable variable = null;
+
+        private Slot(Ast.Expression.Access ast) {
+            this.ast = ast;
+        }
+
+    }
+
+    /**
+     * A loop condition and body compiled along the path and types recorded
+     * for them, once per loop. Variables are resolved each time the loop is
+     * entered, since the body declares none but the loop may run in a new
+     * scope each time, and functions whose body is a single {@code RETURN}
+     * are inlined. Anything else runs on the interpreter.
+     */
+    private final class Trace {
+
+        private static final int MAX_INLINE_DEPTH = 3;
+
+        private final Loop loop;
+        private final Map<String, Slot> slots = new LinkedHashMap<>();
+        private final Op condition;
+        private final Op body;
+        private final int statements;
+
+        private Trace(Ast.Statement.While ast, Loop loop) {
+            this.loop = loop;
+            this.statements = ast.getStatements().size();
+            this.condition = compile(ast.getCondition(), null);
+            this.body = block(ast.getStatements());
+        }
+
+        /**
+         * Runs the rest of the loop, binding the variables of the trace for
+         * the run and restoring them after, as a call in the body may enter
+         * the same loop again.
+         */
+        private Environment.PlcObject run() {
+            Environment.Variable[] previous = new Environment.Variable[slots.size()];
+            int i = 0;
+            for (Slot slot : slots.values()) {
+                previous[i++] = slot.variable;
+                slot.variable = lookup(slot.ast, null);
+            }
+            try {
+                while (requireType(Boolean.class, condition.eval())) {
+                    traceHits++;
+                    backEdge(statements);
+                    if (body.eval() == RETURNED) return RETURNED;
+                }
+                return Environment.NIL;
+            } finally {
+                i = 0;
+                for (Slot slot : slots.values()) {
+                    slot.variable = previous[i++];
+                }
+            }
+        }
+
+        private Op block(List<Ast.Statement> statements) {
+            Op[] ops = new Op[statements.size()];
+            for (int i = 0; i < ops.length; i++) {
+                ops[i] = compile(statements.get(i));
+            }
+            return () -> {
+                for (Op op : ops) {
+                    if (op.eval() == RETURNED) return RETURNED;
+                }
+                return Environment.NIL;
+            };
+        }
+
+        private Op compile(Ast.Statement ast) {
+            if (ast instanceof Ast.Statement.Expression) {
+                Op expression = compile(((Ast.Statement.Expression) ast).getExpression(), null);
+                return () -> {
+                    expression.eval();
+                    return Environment.NIL;
+                };
+            } else if (ast instanceof Ast.Statement.Assignment) {
+                Ast.Statement.Assignment assignment = (Ast.Statement.Assignment) ast;
+                if (assignment.getReceiver() instanceof Ast.Expression.Access && !((Ast.Expression.Access) assignment.getReceiver()).getOffset().isPresent()) {
+                    Slot slot = slot((Ast.Expression.Access) assignment.getReceiver());
+                    Op value = compile(assignment.getValue(), null);
+                    return () -> {
+                        Environment.Variable variable = slot.variable;
+                        if (variable == null || !variable.getMutable()) {
+                            return visit(ast);
+                        }
+                        variable.setValue(value.eval());
+                        return Environment.NIL;
+                    };
+                }
+            } else if (ast instanceof Ast.Statement.If && loop.branches.containsKey(ast)) {
+                Ast.Statement.If branch = (Ast.Statement.If) ast;
+                boolean taken = loop.branches.get(branch);
+                Op condition = compile(branch.getCondition(), null);
+                Op path = block(taken ? branch.getThenStatements() : branch.getElseStatements());
+                List<Ast.Statement> other = taken ? branch.getElseStatements() : branch.getThenStatements();
+                return () -> {
+                    if (requireType(Boolean.class, condition.eval()) == taken) {
+                        return path.eval();
+                    }
+                    guardFailures++;
+                    return execute(other);
+                };
+            }
+            return () -> visit(ast);
+        }
+
+        private Op compile(Ast.Expression ast, Inline inline) {
+            if (ast instanceof Ast.Expression.Literal) {
+                Environment.PlcObject object = ((Ast.Expression.Literal) ast).getObject();
+                return () -> object;
+            } else if (ast instanceof Ast.Expression.Group) {
+                return compile(((Ast.Expression.Group) ast).getExpression(), inline);
+            } else if (ast instanceof Ast.Expression.Access && !((Ast.Expression.Access) ast).getOffset().isPresent()) {
+                Ast.Expression.Access access = (Ast.Expression.Access) ast;
+                int index = inline != null ? inline.closure.function.getParameters().indexOf(access.getName()) : -1;
+                if (index >= 0) {
+                    return () -> inline.arguments[index];
+                } else if (inline == null) {
+                    Slot slot = slot(access);
+                    return () -> {
+                        Environment.Variable variable = slot.variable;
+                        return variable != null ? variable.getValue() : visit(access);
+                    };
+                }
+                Environment.Variable variable = lookup(access, inline);
+                if (variable != null) {
+                    return variable::getValue;
+                }
+            } else if (ast instanceof Ast.Expression.Binary) {
+                return compile((Ast.Expression.Binary) ast, inline);
+            } else if (ast instanceof Ast.Expression.Function) {
+                Op call = inline((Ast.Expression.Function) ast, inline);
+                if (call != null) {
+                    return call;
+                }
+            }
+            if (inline != null) { // the parameters of an inlined function are not in any scope
+                return null;
+            }
+            return () -> visit(ast);
+        }
+
+        private Op compile(Ast.Expression.Binary ast, Inline inline) {
+            Op left = compile(ast.getLeft(), inline);
+            Op right = compile(ast.getRight(), inline);
+            if (left == null || right == null) {
+                return null;
+            }
+            String operator = ast.getOperator();
+            switch (operator) {
+                case "&&":
+                    return () -> requireType(Boolean.class, left.eval()) ? Environment.create(requireType(Boolean.class, right.eval())) : Environment.FALSE;
+                case "||":
+                    return () -> requireType(Boolean.class, left.eval()) ? Environment.TRUE : Environment.create(requireType(Boolean.class, right.eval()));
+                case "==":
+                    return () -> Environment.create(Objects.equals(left.eval().getValue(), right.eval().getValue()));
+                case "!=":
+                    return () -> Environment.create(!Objects.equals(left.eval().getValue(), right.eval().getValue()));
+            }
+            Class<?>[] types = loop.types.get(ast);
+            if (types != null && types[0] == types[1]) {
+                if (types[0] == BigInteger.class) {
+                    switch (operator) {
+                        case "+": return guard(operator, left, right, BigInteger.class, (a, b) -> Environment.create(a.add(b)));
+                        case "-": return guard(operator, left, right, BigInteger.class, (a, b) -> Environment.create(a.subtract(b)));
+                        case "*": return guard(operator, left, right, BigInteger.class, (a, b) -> Environment.create(a.multiply(b)));
+                        case "<": return guard(operator, left, right, BigInteger.class, (a, b) -> Environment.create(a.compareTo(b) < 0));
+                        case "<=": return guard(operator, left, right, BigInteger.class, (a, b) -> Environment.create(a.compareTo(b) <= 0));
+                        case ">": return guard(operator, left, right, BigInteger.class, (a, b) -> Environment.create(a.compareTo(b) > 0));
+                        case ">=": return guard(operator, left, right, BigInteger.class, (a, b) -> Environment.create(a.compareTo(b) >= 0));
+                    }
+                } else if (types[0] == BigDecimal.class) {
+                    switch (operator) {
+                        case "+": return guard(operator, left, right, BigDecimal.class, (a, b) -> Environment.create(a.add(b)));
+                        case "-": return guard(operator, left, right, BigDecimal.class, (a, b) -> Environment.create(a.subtract(b)));
+                        case "*": return guard(operator, left, right, BigDecimal.class, (a, b) -> Environment.create(a.multiply(b)));
+                        case "<": return guard(operator, left, right, BigDecimal.class, (a, b) -> Environment.create(a.compareTo(b) < 0));
+                        case ">": return guard(operator, left, right, BigDecimal.class, (a, b) -> Environment.create(a.compareTo(b) > 0));
+                    }
+                } else if (types[0] == String.class && operator.equals("+")) {
+                    return guard(operator, left, right, String.class, (a, b) -> Environment.create(a + b));
+                }
+            }
+            return () -> allocate(evaluate(operator, left.eval(), right.eval()));
+        }
+
+        /**
+         * Specializes an operator to operands of one type, checking the type
+         * of each operand and falling back to the general operator otherwise.
+         */
+        private <T> Op guard(String operator, Op left, Op right, Class<T> type, BiFunction<T, T, Environment.PlcObject> specialized) {
+            return () -> {
+                Environment.PlcObject a = left.eval();
+                Environment.PlcObject b = right.eval();
+                if (type.isInstance(a.getValue()) && type.isInstance(b.getValue())) {
+                    return allocate(specialized.apply(type.cast(a.getValue()), type.cast(b.getValue())));
+                }
+                guardFailures++;
+                return allocate(evaluate(operator, a, b));
+            };
+        }
+
+        /**
+         * Inlines a call to a function whose body is a single {@code RETURN},
+         * guarded by the function still being the one which was inlined.
+         */
+        private Op inline(Ast.Expression.Function ast, Inline inline) {
+            int depth = 0;
+            for (Inline frame = inline; frame != null; frame = frame.parent) {
+                depth++;
+            }
+            Environment.Function function;
+            try {
+                function = resolve(ast);
+            } catch (RuntimeException e) {
+                return null;
+            }
+            if (depth >= MAX_INLINE_DEPTH || !(function.getInvoker() instanceof Closure)) {
+                return null;
+            }
+            Closure closure = (Closure) function.getInvoker();
+            List<Ast.Statement> statements = closure.function.getStatements();
+            if (closure.getInterpreter() != Interpreter.this || statements.size() != 1 || !(statements.get(0) instanceof Ast.Statement.Return)
+                    || closure.function.getParameters().size() != ast.getArguments().size()) {
+                return null;
+            }
+            Op[] arguments = new Op[ast.getArguments().size()];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = compile(ast.getArguments().get(i), inline);
+                if (arguments[i] == null) return null;
+            }
+            Inline callee = new Inline(inline, closure);
+            Op body = compile(((Ast.Statement.Return) statements.get(0)).getValue(), callee);
+            if (body == null) {
+                return null;
+            }
+            return () -> {
+                Environment.Function current = resolve(ast);
+                Environment.PlcObject[] values = new Environment.PlcObject[arguments.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = arguments[i].eval();
+                }
+                if (current.getInvoker() != closure) {
+                    guardFailures++;
+                    return current.invoke(values);
+                }
+                Environment.PlcObject[] previous = callee.arguments;
+                callee.arguments = values;
+                try {
+                    return body.eval();
+                } finally {
+                    callee.arguments = previous;
+                }
+            };
+        }
+
+        private Slot slot(Ast.Expression.Access ast) {
+            return slots.computeIfAbsent(ast.getName(), name -> new Slot(ast));
+        }
+
+        /**
+         * Resolves a variable from the scope the loop runs in, or from the
+         * captures of an inlined function, returning null if it is not defined.
+         */
+        private Environment.Variable lookup(Ast.Expression.Access ast, Inline inline) {
+            try {
+                if (inline == null) {
+                    return Interpreter.this.lookup(ast);
+                } else if (ast.getCapture() >= 0) {
+                    return inline.closure.capture(ast.getCapture(), ast.getName());
+                }
+                return null;
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+
+    }
+
+    /**
+     * The invoker of a pure function, which caches its results. Copies of the
+     * closure bound to other interpreters share the key of the original.
+     */
+    private static final class Memoized extends Environment.Invoker {
+
+        private final Closure closure;
+        private final MemoCache cache;
+        private final Object key;
+
+        private Memoized(Closure closure, MemoCache cache) {
+            this(closure, cache, closure);
+        }
+
+        private Memoized(Closure closure, MemoCache cache, Object key) {
+            this.closure = closure;
+            this.cache = cache;
+            this.key = key;
+        }
+
+        @Override
+        public Environment.PlcObject invoke(Environment.PlcObject[] arguments) {
+            Object[] values = values(arguments);
+            if (values == null) {
+                return closure.invoke(arguments);
+            }
+            Environment.PlcObject result = cache.get(key, values);
+            if (result == null) {
+                result = closure.invoke(arguments);
+                if (!(result.getValue() instanceof List)) {
+                    cache.put(key, values, result);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Returns the cached result of a call, or {@code null} if there is
+         * none, for a call in tail position which then runs the closure.
+         */
+        private Environment.PlcObject lookup(Environment.PlcObject[] arguments) {
+            Object[] values = values(arguments);
+            return values != null ? cache.get(key, values) : null;
+        }
+
+        /**
+         * Returns the values of the arguments, or {@code null} if any is a
+         * list and so cannot be cached.
+         */
+        private static Object[] values(Environment.PlcObject[] arguments) {
+            Object[] values = new Object[arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                values[i] = arguments[i].getValue();
+                if (values[i] instanceof List) {
+                    return null;
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public String toString() {
+            return "Memoized{" + closure + "}";
+        }
+
+    }
+
+    /**
+     * The invoker of a function defined in source. The body runs in a scope
+     * of the scope the function was defined in, binding the arguments of
+     * small calls directly as parameters, and captured variables are held
+     * in an array indexed by the {@link Resolver}.
+     */
+    private final class Closure extends Environment.Invoker {
+
+        private final Ast.Function function;
+        private final Scope definition;
+        private final Environment.Variable[] captures;
+        private Environment.Function defined = null;
+        private int invocations = 0;
+        private int backEdges = 0;
+        private boolean queued = false;
+
+        private Closure(Ast.Function function) {
+            this(function, scope);
+        }
+
+        private Closure(Ast.Function function, Scope definition) {
+            this.function = function;
+            this.definition = definition;
+            this.captures = new Environment.Variable[Resolver.captures(function).size()];
+        }
+
+        @Override
+        public Environment.PlcObject invoke(Environment.PlcObject[] arguments) {
+            Scope body = frame(arguments.length);
+            for (int i = 0; i < arguments.length; i++) {
+                bind(body, i, arguments[i]);
+            }
+            return call(body);
+        }
+
+        @Override
+        public Environment.PlcObject invoke() {
+            return call(frame(0));
+        }
+
+        @Override
+        public Environment.PlcObject invoke(Environment.PlcObject a) {
+            Scope body = frame(1);
+            bind(body, 0, a);
+            return call(body);
+        }
+
+        @Override
+        public Environment.PlcObject invoke(Environment.PlcObject a, Environment.PlcObject b) {
+            Scope body = frame(2);
+            bind(body, 0, a);
+            bind(body, 1, b);
+            return call(body);
+        }
+
+        @Override
+        public Environment.PlcObject invoke(Environment.PlcObject a, Environment.PlcObject b, Environment.PlcObject c) {
+            Scope body = frame(3);
+            bind(body, 0, a);
+            bind(body, 1, b);
+            bind(body, 2, c);
+            return call(body);
+        }
+
+        @Override
+        public Environment.PlcObject invoke(Environment.PlcObject a, Environment.PlcObject b, Environment.PlcObject c, Environment.PlcObject d) {
+            Scope body = frame(4);
+            bind(body, 0, a);
+            bind(body, 1, b);
+            bind(body, 2, c);
+            bind(body, 3, d);
+            return call(body);
+        }
+
+        private Scope frame(int arity) {
+            if (arity != function.getParameters().size()) {
+                throw new RuntimeException("Expected " + function.getParameters().size() + " arguments, received " + arity + ".");
+            }
+            return new Scope(definition);
+        }
+
+        /**
+         * Returns a captured variable, looking it up in the scope this function
+         * was defined in the first time it is used.
+         */
+        private Environment.Variable capture(int index, String name) {
+            Environment.Variable variable = captures[index];
+            if (variable == null) {
+                variable = definition.lookupVariable(name);
+                captures[index] = variable;
+            }
+            return variable;
+        }
+
+        private void bind(Scope body, int index, Environment.PlcObject value) {
+            body.defineVariable(function.getParameters().get(index), true, value);
+        }
+
+        private Interpreter getInterpreter() {
+            return Interpreter.this;
+        }
+
+        /**
+         * Runs the body of this function in the given frame. Tail calls made
+         * by the body replace the frame and loop here, so a chain of tail
+         * calls uses constant Java stack.
+         */
+        private Environment.PlcObject call(Scope body) {
+            Scope caller = scope;
+            Closure previous = active;
+            Closure closure = this;
+            depth++;
+            try {
+                while (true) {
+                    scope = body;
+                    active = closure;
+                    if (cancelled || budget != null) {
+                        charge(closure.function.getStatements().size(), 0);
+                    }
+                    if (compileThreshold > 0) {
+                        closure.invocations++;
+                        profile(closure);
+                    }
+                    if (execute(closure.function.getStatements()) != RETURNED) {
+                        return Environment.NIL;
+                    } else if (tailCall == null) {
+                        Environment.PlcObject value = returnValue;
+                        returnValue = null;
+                        return value;
+                    }
+                    closure = tailCall;
+                    body = tailScope;
+                    tailCall = null;
+                    tailScope = null;
+                }
+            }
+            finally { // restore scope
+                scope = caller;
+                active = previous;
+                depth--;
+            }
+        }
 
-        private Return(Environment.PlcObject value) {
-            this.value = value;
+        @Override
+        public String toString() {
+            return "Closure{" + function.getName() + "/" + function.getParameters().size() + "}";
         }
 
     }
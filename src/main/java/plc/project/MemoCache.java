@@ -0,0 +1,147 @@
+package plc.project;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A bounded cache of the results of pure functions, keyed by the function and
+ * the values of its arguments. Each entry is weighed by the approximate size
+ * of its arguments and result in words, and the least recently used entries
+ * are evicted once the total weight exceeds the capacity.
+ */
+public final class MemoCache {
+
+    private static final int ENTRY_WEIGHT = 4;
+
+    private final long capacity;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public MemoCache(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The capacity must be positive.");
+        }
+        this.capacity = capacity;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    /**
+     * Returns the cached result of calling the function with the arguments,
+     * or {@code null} if there is none.
+     */
+    synchronized Environment.PlcObject get(Object function, Object[] arguments) {
+        Entry entry = entries.get(new Key(function, arguments));
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.result;
+    }
+
+    /**
+     * Caches the result of calling the function with the arguments, unless
+     * the entry alone would exceed the capacity.
+     */
+    synchronized void put(Object function, Object[] arguments, Environment.PlcObject result) {
+        long size = ENTRY_WEIGHT + weigh(result.getValue());
+        for (Object argument : arguments) {
+            size += weigh(argument);
+        }
+        if (size > capacity) {
+            return;
+        }
+        Entry previous = entries.put(new Key(function, arguments), new Entry(result, size));
+        weight += size - (previous != null ? previous.weight : 0);
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (weight > capacity) {
+            weight -= iterator.next().weight;
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    private static long weigh(Object value) {
+        if (value instanceof BigInteger) {
+            return 1 + ((BigInteger) value).bitLength() / 64;
+        } else if (value instanceof BigDecimal) {
+            return 2 + ((BigDecimal) value).unscaledValue().bitLength() / 64;
+        } else if (value instanceof String) {
+            return 1 + ((String) value).length() / 4;
+        }
+        return 1;
+    }
+
+    private static final class Key {
+
+        private final Object function;
+        private final Object[] arguments;
+        private final int hash;
+
+        private Key(Object function, Object[] arguments) {
+            this.function = function;
+            this.arguments = arguments;
+            this.hash = 31 * System.identityHashCode(function) + Arrays.hashCode(arguments);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key &&
+                    function == ((Key) obj).function &&
+                    Arrays.equals(arguments, ((Key) obj).arguments);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+    }
+
+    private static final class Entry {
+
+        private final Environment.PlcObject result;
+        private final long weight;
+
+        private Entry(Environment.PlcObject result, long weight) {
+            this.result = result;
+            this.weight = weight;
+        }
+
+    }
+
+}
@@ -198,6 +198,7 @@ public final class Parser {
      *     'SWITCH' expression ('CASE' expression ':' block)* 'DEFAULT' block 'END' |
      *     'IF' expression 'DO' block ('ELSE' block)? 'END' |
      *     'WHILE' expression 'DO' block 'END' |
+     *     'PARALLEL'? 'FOR' identifier 'IN' expression 'DO' block 'END' |
      *     'RETURN' expression ';' |
      *     expression ('=' expression)? ';'
      */
@@ -212,6 +213,11 @@ public final class Parser {
             return parseReturnStatement();
         } else if (match("WHILE")){
             return parseWhileStatement();
+        } else if (match("FOR")){
+            return parseForStatement(false);
+        } else if (match("PARALLEL")){
+            if (!match("FOR")) throw errorHandle("Expected FOR");
+            return parseForStatement(true);
         }
         Ast.Expression st = parseExpression();
         if (match("=")) {
@@ -315,6 +321,25 @@ public final class Parser {
             } else throw errorHandle("Expected DO");
     }
 
+    /**
+     * Parses a for statement from the {@code statement} rule. This method
+     * should only be called if the next tokens start a for statement, aka
+     * {@code FOR} or {@code PARALLEL FOR}.
+     * 'PARALLEL'? 'FOR' identifier 'IN' expression 'DO' block 'END'
+     */
+    public Ast.Statement.For parseForStatement(boolean parallel) throws ParseException {
+            if (!match(Token.Type.IDENTIFIER)) throw errorHandle("Expected ID");
+            String name = tokens.get(-1).getLiteral();
+            if (!match("IN")) throw errorHandle("Expected IN");
+            Ast.Expression list = parseExpression();
+            if (match("DO")){
+                List<Ast.Statement> b = parseBlock();
+                if (match("END")){
+                    return new Ast.Statement.For(name, list, b, parallel);
+                } else throw errorHandle("Expected END");
+            } else throw errorHandle("Expected DO");
+    }
+
     /**
      * Parses a return statement from the {@code statement} rule. This method
      * should only be called if the next tokens start a return statement, aka
@@ -391,6 +416,7 @@ public final class Parser {
      * for expressions and includes literal values, grouping, variables, and
      * functions. It may be helpful to break these up into other methods but is
      * not strictly necessary.
+     * 'SPAWN' identifier '(' (expression (',' expression)*)? ')' | 'AWAIT' primary_expression
      */
     public Ast.Expression parsePrimaryExpression(){
         if (match("NIL")){
@@ -437,6 +463,12 @@ public final class Parser {
             Ast.Expression expr = parseExpression();
             if (match(")")) return new Ast.Expression.Group(expr);
             else throw errorHandle("Missing closing bracket");
+        } else if (match("SPAWN")){
+            Ast.Expression call = parsePrimaryExpression();
+            if (!(call instanceof Ast.Expression.Function)) throw errorHandle("Expected function call");
+            return new Ast.Expression.Spawn((Ast.Expression.Function) call);
+        } else if (match("AWAIT")){
+            return new Ast.Expression.Await(parsePrimaryExpression());
         } else if (match(Token.Type.IDENTIFIER)){
             String id = tokens.get(-1).getLiteral();
             //if (!match("(") || !match("[")) return new Ast.Expression.Access(Optional.empty(),id);
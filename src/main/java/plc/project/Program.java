@@ -0,0 +1,89 @@
+package plc.project;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A source which has been parsed, analyzed and resolved once, and can then be
+ * run any number of times, including by several threads at once. A program
+ * is immutable; each run is an {@link Execution} with its own globals.
+ */
+public final class Program {
+
+    private final Ast.Source ast;
+    private final List<String> globals;
+
+    private Program(Ast.Source ast) {
+        new Analyzer(new Scope(null)).visit(ast);
+        List<String> globals = new ArrayList<>();
+        for (Ast.Global global : ast.getGlobals()) {
+            globals.add(global.getName());
+        }
+        for (Ast.Function function : ast.getFunctions()) {
+            Resolver.resolve(function);
+        }
+        this.ast = ast;
+        this.globals = Collections.unmodifiableList(globals);
+    }
+
+    /**
+     * Compiles source code into a program, throwing a {@link ParseException}
+     * if it does not parse or a {@link RuntimeException} if it does not pass
+     * the {@link Analyzer}.
+     */
+    public static Program compile(String input) {
+        return of(new Parser(new Lexer(input).lex()).parseSource());
+    }
+
+    /**
+     * Compiles a parsed source into a program. The source belongs to the
+     * program afterwards, and must not be analyzed or run by anything else.
+     */
+    public static Program of(Ast.Source ast) {
+        return new Program(ast);
+    }
+
+    public Ast.Source getAst() {
+        return ast;
+    }
+
+    /**
+     * Returns the names of the globals in the order they are initialized.
+     */
+    public List<String> getGlobals() {
+        return globals;
+    }
+
+    /**
+     * Creates a new execution of this program, which has not run yet.
+     */
+    public Execution newExecution() {
+        return new Execution(this);
+    }
+
+    /**
+     * Runs the global initializers of this program once into a prototype,
+     * from which executions can be forked without running them again.
+     */
+    public Prototype newPrototype() {
+        return newPrototype(false);
+    }
+
+    /**
+     * Creates a prototype like {@link #newPrototype()}, deferring the pure
+     * initializers until a fork first reads their global if lazy is true,
+     * as by {@link Interpreter#setLazyGlobals(boolean)}.
+     */
+    public Prototype newPrototype(boolean lazyGlobals) {
+        return new Prototype(this, lazyGlobals);
+    }
+
+    /**
+     * Runs this program in a new execution, returning the result of main.
+     */
+    public Environment.PlcObject run() {
+        return newExecution().run();
+    }
+
+}
@@ -0,0 +1,46 @@
+package plc.project;
+
+/**
+ * The globals of a {@link Program} after their initializers have run once,
+ * frozen so that any number of executions can be forked from them. A fork
+ * starts in constant time without running the initializers again; it copies
+ * a global when it first uses it, and a list only when it first writes it,
+ * so globals a run does not mutate are never copied. Functions are still
+ * bound by each fork, as they belong to its interpreter.
+ *
+ * <p>With lazy globals, the pure initializers run when a fork first uses
+ * their global, once for all forks, on whichever thread gets there first.
+ */
+public final class Prototype {
+
+    private final Program program;
+    private final Scope globals;
+
+    Prototype(Program program, boolean lazyGlobals) {
+        Interpreter interpreter = new Interpreter(new Scope(null));
+        interpreter.setLazyGlobals(lazyGlobals);
+        interpreter.initialize(program.getAst().getGlobals());
+        this.program = program;
+        this.globals = interpreter.getScope();
+    }
+
+    public Program getProgram() {
+        return program;
+    }
+
+    /**
+     * Returns the value of a global of the prototype.
+     */
+    public Environment.PlcObject getGlobal(String name) {
+        return globals.lookupVariable(name).getValue();
+    }
+
+    /**
+     * Creates a new execution of the program starting from these globals,
+     * which has not run yet.
+     */
+    public Execution fork() {
+        return new Execution(program, globals);
+    }
+
+}
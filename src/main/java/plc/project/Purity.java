@@ -0,0 +1,205 @@
+package plc.project;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the functions of a program which are pure, meaning their result only
+ * depends on their arguments and calling them has no effects. A function is
+ * pure if it only captures immutable, non-list variables, never assigns an
+ * element of a list, and only calls pure functions of the same program.
+ * Builtins such as {@code print} are never pure, and recursive functions are
+ * pure unless something else makes them impure.
+ */
+final class Purity implements Ast.Visitor<Void> {
+
+    private final Scope scope;
+    private final Map<String, Ast.Function> functions;
+    private final Set<Ast.Function> callees = new LinkedHashSet<>();
+    private boolean pure = true;
+
+    private Purity(Scope scope, Map<String, Ast.Function> functions) {
+        this.scope = scope;
+        this.functions = functions;
+    }
+
+    /**
+     * Returns the pure functions among those given, with captured variables
+     * looked up in the scope the functions are defined in.
+     */
+    static Set<Ast.Function> analyze(List<Ast.Function> functions, Scope scope) {
+        Map<String, Ast.Function> signatures = new HashMap<>();
+        for (Ast.Function function : functions) {
+            signatures.put(function.getName() + "/" + function.getParameters().size(), function);
+        }
+        Map<Ast.Function, Set<Ast.Function>> calls = new IdentityHashMap<>();
+        Set<Ast.Function> pure = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Ast.Function function : functions) {
+            Purity purity = new Purity(scope, signatures);
+            purity.visit(function);
+            if (purity.pure) {
+                pure.add(function);
+                calls.put(function, purity.callees);
+            }
+        }
+        boolean changed = true;
+        while (changed) { // remove functions calling impure ones until none are left
+            changed = pure.removeIf(function -> !pure.containsAll(calls.get(function)));
+        }
+        return pure;
+    }
+
+    @Override
+    public Void visit(Ast.Source ast) {
+        throw new UnsupportedOperationException("Only functions are analyzed.");
+    }
+
+    @Override
+    public Void visit(Ast.Global ast) {
+        throw new UnsupportedOperationException("Only functions are analyzed.");
+    }
+
+    @Override
+    public Void visit(Ast.Function ast) {
+        for (String name : Resolver.captures(ast)) {
+            try {
+                Environment.Variable variable = scope.lookupVariable(name);
+                // a pending lazy global is not read, which would run its initializer, and
+                // cannot be a list, since only lists are declared with list literals and mutable
+                if (variable.getMutable() || !variable.isPending() && variable.getValue().getValue() instanceof List) {
+                    pure = false;
+                }
+            } catch (RuntimeException e) { // not defined yet, so it may be later
+                pure = false;
+            }
+        }
+        ast.getStatements().forEach(this::visit);
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.Expression ast) {
+        visit(ast.getExpression());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.Declaration ast) {
+        ast.getValue().ifPresent(this::visit);
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.Assignment ast) {
+        if (ast.getReceiver() instanceof Ast.Expression.Access && ((Ast.Expression.Access) ast.getReceiver()).getOffset().isPresent()) {
+            pure = false; // the list may be shared with the caller
+        }
+        visit(ast.getReceiver());
+        visit(ast.getValue());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.If ast) {
+        visit(ast.getCondition());
+        ast.getThenStatements().forEach(this::visit);
+        ast.getElseStatements().forEach(this::visit);
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.Switch ast) {
+        visit(ast.getCondition());
+        ast.getCases().forEach(this::visit);
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.Case ast) {
+        ast.getValue().ifPresent(this::visit);
+        ast.getStatements().forEach(this::visit);
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.While ast) {
+        visit(ast.getCondition());
+        ast.getStatements().forEach(this::visit);
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.For ast) {
+        visit(ast.getList());
+        ast.getStatements().forEach(this::visit);
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.Return ast) {
+        visit(ast.getValue());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Literal ast) {
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Group ast) {
+        visit(ast.getExpression());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Binary ast) {
+        visit(ast.getLeft());
+        visit(ast.getRight());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Access ast) {
+        ast.getOffset().ifPresent(this::visit);
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Function ast) {
+        Ast.Function callee = functions.get(ast.getName() + "/" + ast.getArguments().size());
+        if (callee == null) {
+            pure = false;
+        } else {
+            callees.add(callee);
+        }
+        ast.getArguments().forEach(this::visit);
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.PlcList ast) {
+        ast.getValues().forEach(this::visit);
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Spawn ast) {
+        pure = false; // every call starts a new task
+        visit(ast.getCall());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Await ast) {
+        pure = false; // the task may not have been started by this call
+        visit(ast.getTask());
+        return null;
+    }
+
+}
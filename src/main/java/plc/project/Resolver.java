@@ -0,0 +1,195 @@
+package plc.project;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves the variables of a function statically. Parameters and locals
+ * live in the scopes of the function itself, and every other variable is
+ * captured from the scope the function is defined in. Captures are numbered
+ * in order of first use, and each {@link Ast.Expression.Access} of one is
+ * given its index with {@link Ast.Expression.Access#setCapture(int)}. The
+ * names are recorded with {@link Ast.Function#setCaptures(List)}.
+ */
+final class Resolver implements Ast.Visitor<Void> {
+
+    private final Deque<Set<String>> scopes = new ArrayDeque<>();
+    private final Map<String, Integer> captures = new LinkedHashMap<>();
+
+    private Resolver() {}
+
+    /**
+     * Resolves the variables of a function, returning the names it captures
+     * in the order of their indices.
+     */
+    static List<String> resolve(Ast.Function function) {
+        Resolver resolver = new Resolver();
+        resolver.visit(function);
+        List<String> captures = Collections.unmodifiableList(new ArrayList<>(resolver.captures.keySet()));
+        function.setCaptures(captures);
+        return captures;
+    }
+
+    /**
+     * Returns the names a function captures, only resolving it if it has not
+     * been resolved already.
+     */
+    static List<String> captures(Ast.Function function) {
+        List<String> captures = function.getCaptures();
+        return captures != null ? captures : resolve(function);
+    }
+
+    @Override
+    public Void visit(Ast.Source ast) {
+        throw new UnsupportedOperationException("Only functions are resolved.");
+    }
+
+    @Override
+    public Void visit(Ast.Global ast) {
+        throw new UnsupportedOperationException("Only functions are resolved.");
+    }
+
+    @Override
+    public Void visit(Ast.Function ast) {
+        scopes.push(new HashSet<>(ast.getParameters()));
+        ast.getStatements().forEach(this::visit);
+        scopes.pop();
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.Expression ast) {
+        visit(ast.getExpression());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.Declaration ast) {
+        ast.getValue().ifPresent(this::visit);
+        scopes.peek().add(ast.getName());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.Assignment ast) {
+        visit(ast.getReceiver());
+        visit(ast.getValue());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.If ast) {
+        visit(ast.getCondition());
+        visit(ast.getThenStatements());
+        visit(ast.getElseStatements());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.Switch ast) {
+        visit(ast.getCondition());
+        ast.getCases().forEach(this::visit);
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.Case ast) {
+        ast.getValue().ifPresent(this::visit);
+        visit(ast.getStatements());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.While ast) {
+        visit(ast.getCondition());
+        visit(ast.getStatements());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.For ast) {
+        visit(ast.getList());
+        scopes.push(new HashSet<>(Collections.singleton(ast.getName())));
+        visit(ast.getStatements());
+        scopes.pop();
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Statement.Return ast) {
+        visit(ast.getValue());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Literal ast) {
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Group ast) {
+        visit(ast.getExpression());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Binary ast) {
+        visit(ast.getLeft());
+        visit(ast.getRight());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Access ast) {
+        ast.getOffset().ifPresent(this::visit);
+        for (Set<String> scope : scopes) {
+            if (scope.contains(ast.getName())) {
+                ast.setCapture(-1);
+                return null;
+            }
+        }
+        ast.setCapture(captures.computeIfAbsent(ast.getName(), name -> captures.size()));
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Function ast) {
+        ast.getArguments().forEach(this::visit);
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.PlcList ast) {
+        ast.getValues().forEach(this::visit);
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Spawn ast) {
+        visit(ast.getCall());
+        return null;
+    }
+
+    @Override
+    public Void visit(Ast.Expression.Await ast) {
+        visit(ast.getTask());
+        return null;
+    }
+
+    /**
+     * Resolves a block, which has its own scope for any variables it declares.
+     */
+    private void visit(List<Ast.Statement> statements) {
+        scopes.push(new HashSet<>());
+        statements.forEach(this::visit);
+        scopes.pop();
+    }
+
+}
@@ -2,20 +2,47 @@ package plc.project;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 public final class Scope {
 
     private final Scope parent;
-    private final Map<String, Environment.Variable> variables = new HashMap<>();
+    private Map<String, Environment.Variable> variables = new HashMap<>();
     private final Map<String, Environment.Function> functions = new HashMap<>();
+    private Scope prototype = null;
+    private Map<Environment.PlcList, Environment.PlcList> copies = null;
+
+    /**
+     * Incremented whenever a function is defined in this scope, which
+     * invalidates each {@link CachedFunction} resolved from this scope or one
+     * nested in it before then, but none resolved from other scopes.
+     */
+    private volatile int functionEpoch = 0;
 
     public Scope(Scope parent) {
         this.parent = parent;
     }
 
+    /**
+     * Makes this scope a copy-on-write fork of the variables of a prototype
+     * scope, which must not change afterwards. A variable of the prototype
+     * is copied into this scope when it is first looked up, sharing its
+     * value, and lists are only copied when they are first written. Forking
+     * is constant time, and any number of scopes may fork one prototype on
+     * different threads. The variables of a fork may also be looked up from
+     * several threads at once, as the workers of a {@code PARALLEL FOR} do.
+     */
+    void fork(Scope prototype) {
+        this.variables = new ConcurrentHashMap<>(variables);
+        this.prototype = prototype;
+        this.copies = new IdentityHashMap<>();
+    }
+
     public Scope getParent() {
         return parent;
     }
@@ -34,9 +61,26 @@ public final class Scope {
         }
     }
 
+    /**
+     * Defines a variable whose initializer runs when it is first read, under
+     * the given lock, unless the variable is assigned first.
+     */
+    Environment.Variable defineVariable(String name, String jvmName, Environment.Type type, boolean mutable, Supplier<Environment.PlcObject> initializer, Object lock) {
+        if (variables.containsKey(name)) {
+            throw new RuntimeException("The variable " + name + " is already defined in this scope.");
+        }
+        Environment.Variable variable = new Environment.Variable(name, jvmName, type, mutable, initializer, lock);
+        variables.put(name, variable);
+        return variable;
+    }
+
     public Environment.Variable lookupVariable(String name) {
         if (variables.containsKey(name)) {
             return variables.get(name);
+        } else if (prototype != null && prototype.variables.containsKey(name)) {
+            synchronized (copies) {
+                return variables.computeIfAbsent(name, n -> copy(prototype.variables.get(n)));
+            }
         } else if (parent != null) {
             return parent.lookupVariable(name);
         } else {
@@ -44,20 +88,66 @@ public final class Scope {
         }
     }
 
+    /**
+     * Copies a variable of the prototype. Immutable variables which do not
+     * hold a list can never change, so they are shared rather than copied.
+     */
+    private Environment.Variable copy(Environment.Variable variable) {
+        Environment.PlcObject value = variable.getValue();
+        if (value.getValue() instanceof Environment.PlcList) {
+            Environment.PlcList list = ((Environment.PlcList) value.getValue()).share(copies);
+            value = new Environment.PlcObject(value.getType(), value.getType().getScope(), list);
+        } else if (value.getValue() instanceof List) {
+            value = new Environment.PlcObject(value.getType(), value.getType().getScope(), new ArrayList<>((List<?>) value.getValue()));
+        } else if (!variable.getMutable()) {
+            return variable;
+        }
+        return new Environment.Variable(variable.getName(), variable.getJvmName(), variable.getType(), variable.getMutable(), value);
+    }
+
     public void defineFunction(String name, int arity, Function<List<Environment.PlcObject>, Environment.PlcObject> function) {
+        defineFunction(name, arity, Environment.Invoker.adapt(function));
+    }
+
+    public void defineFunction(String name, Environment.Invoker.Nullary function) {
+        defineFunction(name, 0, Environment.Invoker.of(function));
+    }
+
+    public void defineFunction(String name, Environment.Invoker.Unary function) {
+        defineFunction(name, 1, Environment.Invoker.of(function));
+    }
+
+    public void defineFunction(String name, Environment.Invoker.Binary function) {
+        defineFunction(name, 2, Environment.Invoker.of(function));
+    }
+
+    public void defineFunction(String name, Environment.Invoker.Ternary function) {
+        defineFunction(name, 3, Environment.Invoker.of(function));
+    }
+
+    public void defineFunction(String name, Environment.Invoker.Quaternary function) {
+        defineFunction(name, 4, Environment.Invoker.of(function));
+    }
+
+    public void defineFunction(String name, int arity, Environment.Invoker invoker) {
         List<Environment.Type> parameterTypes = new ArrayList<>();
         for (int i = 0; i < arity; i++) {
             parameterTypes.add(Environment.Type.ANY);
         }
-        defineFunction(name, name, parameterTypes, Environment.Type.ANY, function);
+        defineFunction(name, name, parameterTypes, Environment.Type.ANY, invoker);
     }
 
     public Environment.Function defineFunction(String name, String jvmName, List<Environment.Type> parameterTypes, Environment.Type returnType, java.util.function.Function<List<Environment.PlcObject>, Environment.PlcObject> function) {
+        return defineFunction(name, jvmName, parameterTypes, returnType, Environment.Invoker.adapt(function));
+    }
+
+    public Environment.Function defineFunction(String name, String jvmName, List<Environment.Type> parameterTypes, Environment.Type returnType, Environment.Invoker invoker) {
         if (functions.containsKey(name + "/" + parameterTypes.size())) {
             throw new RuntimeException("The function " + name + "/" + parameterTypes.size() + " is already defined in this scope.");
         } else {
-            Environment.Function func = new Environment.Function(name, jvmName, parameterTypes, returnType, function);
+            Environment.Function func = new Environment.Function(name, jvmName, parameterTypes, returnType, invoker);
             functions.put(func.getName() + "/" + func.getParameterTypes().size(), func);
+            functionEpoch++;
             return func;
         }
     }
@@ -72,6 +162,27 @@ public final class Scope {
         }
     }
 
+    /**
+     * Looks up a function like {@link #lookupFunction(String, int)}, returning
+     * the result with a guard which can be checked cheaply on later calls.
+     */
+    public CachedFunction cacheFunction(String name, int arity) {
+        int epoch = getFunctionEpoch();
+        return new CachedFunction(this, epoch, lookupFunction(name, arity));
+    }
+
+    /**
+     * Returns the number of functions defined in this scope and those it is
+     * nested in, which only changes when a lookup from here might.
+     */
+    private int getFunctionEpoch() {
+        int epoch = 0;
+        for (Scope scope = this; scope != null; scope = scope.parent) {
+            epoch += scope.functionEpoch;
+        }
+        return epoch;
+    }
+
     @Override
     public String toString() {
         return "Scope{" +
@@ -81,4 +192,35 @@ public final class Scope {
                 '}';
     }
 
+    /**
+     * A function resolved from a scope, which remains valid for lookups from
+     * that same scope until another function is defined in it or a scope it
+     * is nested in.
+     */
+    public static final class CachedFunction {
+
+        private final Scope scope;
+        private final int epoch;
+        private final Environment.Function function;
+
+        private CachedFunction(Scope scope, int epoch, Environment.Function function) {
+            this.scope = scope;
+            this.epoch = epoch;
+            this.function = function;
+        }
+
+        public Environment.Function getFunction() {
+            return function;
+        }
+
+        /**
+         * Returns true if looking the function up from the given scope would
+         * still resolve to the cached function.
+         */
+        public boolean isValid(Scope scope) {
+            return this.scope == scope && epoch == scope.getFunctionEpoch();
+        }
+
+    }
+
 }
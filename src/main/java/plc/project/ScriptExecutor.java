@@ -0,0 +1,248 @@
+package plc.project;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Runs {@link Program}s concurrently, each in its own {@link Execution} with
+ * isolated globals. Every run gets a thread of its own when the runtime has
+ * virtual threads, and otherwise runs on a fixed pool of platform threads,
+ * so many runs may be in flight without exhausting platform threads. The
+ * number of runs which are queued or running is bounded by the capacity,
+ * beyond which submissions are rejected.
+ */
+public final class ScriptExecutor implements AutoCloseable {
+
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final Semaphore permits;
+    private final int capacity;
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Creates an executor for up to {@code capacity} queued or running
+     * scripts, with as many platform threads as processors if virtual
+     * threads are not available.
+     */
+    public ScriptExecutor(int capacity) {
+        this(capacity, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ScriptExecutor(int capacity, int platformThreads) {
+        if (capacity <= 0 || platformThreads <= 0) {
+            throw new IllegalArgumentException("The capacity and number of threads must be positive.");
+        }
+        ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        this.virtual = executor != null;
+        if (executor == null) {
+            AtomicInteger count = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(platformThreads, runnable -> {
+                Thread thread = new Thread(runnable, "plc-script-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.executor = executor;
+        this.capacity = capacity;
+        this.permits = new Semaphore(capacity);
+    }
+
+    /**
+     * Returns {@code Executors.newVirtualThreadPerTaskExecutor()} if the
+     * runtime has virtual threads, and otherwise null.
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if scripts run on virtual threads.
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of scripts which are queued or running.
+     */
+    public int getInFlight() {
+        return capacity - permits.availablePermits();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Submits a program to run in a new execution. The future completes with
+     * the result of the run, or exceptionally with the exception it threw.
+     *
+     * @throws RejectedExecutionException if the executor is at capacity or
+     *         has been closed
+     */
+    public CompletableFuture<Result> submit(Program program) {
+        return submit(program, Budget.UNLIMITED);
+    }
+
+    /**
+     * Submits a program to run in a new execution with a budget. Cancelling
+     * the future cancels the execution.
+     *
+     * @throws RejectedExecutionException if the executor is at capacity or
+     *         has been closed
+     */
+    public CompletableFuture<Result> submit(Program program, Budget budget) {
+        return submit(program::newExecution, budget);
+    }
+
+    /**
+     * Submits a run forked from a prototype, which does not run the global
+     * initializers again, like {@link #submit(Program, Budget)}.
+     *
+     * @throws RejectedExecutionException if the executor is at capacity or
+     *         has been closed
+     */
+    public CompletableFuture<Result> submit(Prototype prototype, Budget budget) {
+        return submit(prototype::fork, budget);
+    }
+
+    private CompletableFuture<Result> submit(Supplier<Execution> executions, Budget budget) {
+        if (!permits.tryAcquire()) {
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException("The executor is running its capacity of " + capacity + " scripts.");
+        }
+        CompletableFuture<Result> future = new CompletableFuture<>();
+        Execution execution = executions.get();
+        execution.setBudget(budget);
+        future.whenComplete((result, failure) -> {
+            if (future.isCancelled()) {
+                execution.cancel();
+            }
+        });
+        long submitted = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                Result result = null;
+                Throwable failure = null;
+                try {
+                    result = run(execution, submitted);
+                } catch (Throwable e) {
+                    failure = e;
+                } finally { // before completing, so the counts include this run
+                    completed.incrementAndGet();
+                    permits.release();
+                }
+                if (failure == null) {
+                    future.complete(result);
+                } else {
+                    future.completeExceptionally(failure);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            rejected.incrementAndGet();
+            throw e;
+        }
+        return future;
+    }
+
+    private static Result run(Execution execution, long submitted) {
+        long started = System.nanoTime();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        execution.getInterpreter().setOutput(new PrintStream(output, true, StandardCharsets.UTF_8));
+        Environment.PlcObject value = execution.run();
+        long finished = System.nanoTime();
+        return new Result(value, output.toString(StandardCharsets.UTF_8), started - submitted, finished - started, execution.getInterpreter().getAllocatedBytes());
+    }
+
+    /**
+     * Stops accepting scripts and waits for those in flight to finish.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // keep waiting, as ExecutorService#close does
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The result of a single run, with everything it printed and how long it
+     * waited to start and took to run.
+     */
+    public static final class Result {
+
+        private final Environment.PlcObject value;
+        private final String output;
+        private final long queuedNanos;
+        private final long latencyNanos;
+        private final long allocatedBytes;
+
+        private Result(Environment.PlcObject value, String output, long queuedNanos, long latencyNanos, long allocatedBytes) {
+            this.value = value;
+            this.output = output;
+            this.queuedNanos = queuedNanos;
+            this.latencyNanos = latencyNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        public Environment.PlcObject getValue() {
+            return value;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+
+        public long getQueuedNanos() {
+            return queuedNanos;
+        }
+
+        public long getLatencyNanos() {
+            return latencyNanos;
+        }
+
+        /**
+         * Returns the approximate bytes the run allocated, which are only
+         * counted if it had a budget.
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{value=" + value.getValue() + ", output='" + output + "', queuedNanos=" + queuedNanos + ", latencyNanos=" + latencyNanos + ", allocatedBytes=" + allocatedBytes + "}";
+        }
+
+    }
+
+}
@@ -9,6 +9,8 @@ import java.lang.reflect.Array;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
@@ -381,6 +383,24 @@ public final class AnalyzerTests {
                                 )
                         ),
                         null
+                ),
+                Arguments.of("Duplicate Case Value",
+                        // SWITCH letter CASE 'y': print("yes"); CASE 'y': print("no"); DEFAULT END
+                        new Ast.Statement.Switch(
+                                new Ast.Expression.Access(Optional.empty(),"letter"),
+                                Arrays.asList(
+                                        new Ast.Statement.Case(
+                                                Optional.of(new Ast.Expression.Literal('y')),
+                                                Arrays.asList(new Ast.Statement.Expression(new Ast.Expression.Function("print", Arrays.asList(new Ast.Expression.Literal("yes")))))
+                                        ),
+                                        new Ast.Statement.Case(
+                                                Optional.of(new Ast.Expression.Literal('y')),
+                                                Arrays.asList(new Ast.Statement.Expression(new Ast.Expression.Function("print", Arrays.asList(new Ast.Expression.Literal("no")))))
+                                        ),
+                                        new Ast.Statement.Case(Optional.empty(), Arrays.asList())
+                                )
+                        ),
+                        null
                 )
         );
     }
@@ -527,6 +547,106 @@ public final class AnalyzerTests {
         );
     }
 
+    @ParameterizedTest(name = "{0}")
+    @MethodSource
+    public void testParallelFor(String test, String body, Map<String, String> reductions) throws ParseException {
+        Ast.Source ast = new Parser(new Lexer(String.join("\n",
+                "VAR sum: Integer = 1;",
+                "LIST xs: Integer = [1, 2, 3];",
+                "FUN bump(): Integer DO sum = sum + 1; RETURN sum; END",
+                "FUN main(): Integer DO",
+                "    PARALLEL FOR x IN xs DO " + body + " END",
+                "    RETURN sum;",
+                "END"
+        )).lex()).parseSource();
+        Analyzer analyzer = new Analyzer(new Scope(null));
+        if (reductions != null) {
+            analyzer.visit(ast);
+            Ast.Statement.For loop = (Ast.Statement.For) ast.getFunctions().get(1).getStatements().get(0);
+            Assertions.assertEquals(Optional.of(reductions), loop.getReductions());
+        } else {
+            Assertions.assertThrows(RuntimeException.class, () -> analyzer.visit(ast));
+        }
+    }
+
+    private static Stream<Arguments> testParallelFor() {
+        return Stream.of(
+                Arguments.of("Local", "LET y: Integer = x * 2; y = y + 1;", Collections.emptyMap()),
+                Arguments.of("Sum", "sum = sum + x * 2;", Collections.singletonMap("sum", "+")),
+                Arguments.of("Several Operands", "sum = sum * x * 2;", Collections.singletonMap("sum", "*")),
+                Arguments.of("Shared Variable", "sum = x;", null),
+                Arguments.of("Shared List", "xs[1] = x;", null),
+                Arguments.of("Subtraction", "sum = sum - x;", null),
+                Arguments.of("Mixed Operators", "sum = sum + x; sum = sum * x;", null),
+                Arguments.of("Reduction Read", "sum = sum + sum;", null),
+                Arguments.of("Return", "RETURN x;", null),
+                Arguments.of("Impure Call", "LET y: Integer = bump();", null)
+        );
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource
+    public void testSpawn(String test, String function, boolean success) throws ParseException {
+        Ast.Source ast = new Parser(new Lexer(String.join("\n",
+                "VAR count: Integer = 1;",
+                "VAL limit: Integer = 10;",
+                function,
+                "FUN main(): Integer DO",
+                "    LET task = SPAWN f(1);",
+                "    print(AWAIT task);",
+                "    RETURN 1;",
+                "END"
+        )).lex()).parseSource();
+        Analyzer analyzer = new Analyzer(new Scope(null));
+        if (success) {
+            analyzer.visit(ast);
+            Environment.Type type = ((Ast.Statement.Declaration) ast.getFunctions().get(1).getStatements().get(0)).getVariable().getType();
+            Assertions.assertEquals(Environment.Type.TASK.getJvmName(), type.getJvmName());
+            Assertions.assertEquals(ast.getFunctions().get(0).getFunction().getReturnType(), type.getResult());
+        } else {
+            Assertions.assertThrows(RuntimeException.class, () -> analyzer.visit(ast));
+        }
+    }
+
+    private static Stream<Arguments> testSpawn() {
+        return Stream.of(
+                Arguments.of("Immutable Global", "FUN f(x: Integer): Integer DO RETURN x + limit; END", true),
+                Arguments.of("Channel", "FUN f(x: Integer): Integer DO LET ch = channel(x); send(ch, x); RETURN x; END", true),
+                Arguments.of("Mutable Global", "FUN f(x: Integer): Integer DO RETURN x + count; END", false),
+                Arguments.of("Assigned Global", "FUN f(x: Integer) DO count = x; END", false),
+                Arguments.of("Callee", "FUN f(x: Integer): Integer DO RETURN g(x); END FUN g(x: Integer): Integer DO RETURN count; END", false)
+        );
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource
+    public void testAwait(String test, String body, boolean success) throws ParseException {
+        Ast.Source ast = new Parser(new Lexer(String.join("\n",
+                "FUN f(x: Integer): Integer DO RETURN x; END",
+                "FUN g(x: Integer) DO print(x); END",
+                "FUN main(): Integer DO",
+                body,
+                "END"
+        )).lex()).parseSource();
+        Analyzer analyzer = new Analyzer(new Scope(null));
+        if (success) {
+            analyzer.visit(ast);
+        } else {
+            Assertions.assertThrows(RuntimeException.class, () -> analyzer.visit(ast));
+        }
+    }
+
+    private static Stream<Arguments> testAwait() {
+        return Stream.of(
+                Arguments.of("Return", "LET task = SPAWN f(1); RETURN AWAIT task;", true),
+                Arguments.of("Binary", "LET task = SPAWN f(1); LET n = 1; RETURN n + AWAIT task;", true),
+                Arguments.of("Typed Declaration", "LET n: Integer = AWAIT SPAWN f(1); RETURN n;", true),
+                Arguments.of("Nil", "LET task = SPAWN g(1); AWAIT task; RETURN 1;", true),
+                Arguments.of("Mismatch", "LET task = SPAWN f(1); LET d: Decimal = AWAIT task; RETURN 1;", false),
+                Arguments.of("Declared Task", "LET task: Task = SPAWN f(1); RETURN AWAIT task;", false)
+        );
+    }
+
     /**
      * Helper function for tests. If {@param expected} is {@code null}, analysis
      * is expected to throw a {@link RuntimeException}.
@@ -0,0 +1,68 @@
+package plc.project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * Runs the interpreter tests against the {@link ClosureCompiler}.
+ */
+final class ClosureCompilerTests extends InterpreterTests {
+
+    @Override
+    Interpreter interpreter(Scope scope) {
+        return new ClosureCompiler(scope);
+    }
+
+    @Test
+    void testTypedSource() {
+        Ast.Source ast = sum();
+        new Analyzer(new Scope(null)).visit(ast);
+        ClosureCompiler compiler = new ClosureCompiler(new Scope(null), true);
+        Assertions.assertEquals(BigInteger.valueOf(45), compiler.visit(ast).getValue());
+    }
+
+    @Test
+    void testTypedSourceUnanalyzed() {
+        ClosureCompiler compiler = new ClosureCompiler(new Scope(null), true);
+        Assertions.assertThrows(RuntimeException.class, () -> compiler.visit(sum()));
+    }
+
+    /**
+     * FUN main(): Integer DO
+     *     LET i: Integer = 0;
+     *     LET total = 0;
+     *     WHILE i < 10 && TRUE DO total = total + i; i = i + 1; END
+     *     RETURN total;
+     * END
+     */
+    private static Ast.Source sum() {
+        return new Ast.Source(Arrays.asList(), Arrays.asList(
+                new Ast.Function("main", Arrays.asList(), Arrays.asList(), Optional.of("Integer"), Arrays.asList(
+                        new Ast.Statement.Declaration("i", Optional.of("Integer"), Optional.of(new Ast.Expression.Literal(BigInteger.ZERO))),
+                        new Ast.Statement.Declaration("total", Optional.of(new Ast.Expression.Literal(BigInteger.ZERO))),
+                        new Ast.Statement.While(
+                                new Ast.Expression.Binary("&&",
+                                        new Ast.Expression.Binary("<", new Ast.Expression.Access(Optional.empty(), "i"), new Ast.Expression.Literal(BigInteger.TEN)),
+                                        new Ast.Expression.Literal(true)
+                                ),
+                                Arrays.asList(
+                                        new Ast.Statement.Assignment(
+                                                new Ast.Expression.Access(Optional.empty(), "total"),
+                                                new Ast.Expression.Binary("+", new Ast.Expression.Access(Optional.empty(), "total"), new Ast.Expression.Access(Optional.empty(), "i"))
+                                        ),
+                                        new Ast.Statement.Assignment(
+                                                new Ast.Expression.Access(Optional.empty(), "i"),
+                                                new Ast.Expression.Binary("+", new Ast.Expression.Access(Optional.empty(), "i"), new Ast.Expression.Literal(BigInteger.ONE))
+                                        )
+                                )
+                        ),
+                        new Ast.Statement.Return(new Ast.Expression.Access(Optional.empty(), "total"))
+                ))
+        ));
+    }
+
+}
@@ -0,0 +1,179 @@
+package plc.project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+final class ContinuationInterpreterTests {
+
+    @ParameterizedTest
+    @MethodSource
+    void testSource(String test, Ast.Source ast, Object expected) {
+        test(ast, expected, new Scope(null));
+    }
+
+    private static Stream<Arguments> testSource() {
+        return Stream.of(
+                // FUN main() DO RETURN 0; END
+                Arguments.of("Main", new Ast.Source(
+                        Arrays.asList(),
+                        Arrays.asList(new Ast.Function("main", Arrays.asList(), Arrays.asList(
+                                new Ast.Statement.Return(new Ast.Expression.Literal(BigInteger.ZERO)))
+                        ))
+                ), BigInteger.ZERO),
+                // VAR x = 1; VAR y = 10; FUN main() DO x + y; END
+                Arguments.of("Globals & No Return", new Ast.Source(
+                        Arrays.asList(
+                                new Ast.Global("x", true, Optional.of(new Ast.Expression.Literal(BigInteger.ONE))),
+                                new Ast.Global("y", true, Optional.of(new Ast.Expression.Literal(BigInteger.TEN)))
+                        ),
+                        Arrays.asList(new Ast.Function("main", Arrays.asList(), Arrays.asList(
+                                new Ast.Statement.Expression(new Ast.Expression.Binary("+",
+                                        new Ast.Expression.Access(Optional.empty(), "x"),
+                                        new Ast.Expression.Access(Optional.empty(), "y")
+                                ))
+                        )))
+                ), Environment.NIL.getValue()),
+                // FUN main() DO LET i = 0; WHILE TRUE DO IF i == 5 DO RETURN i; END i = i + 1; END END
+                Arguments.of("Return From Loop", new Ast.Source(
+                        Arrays.asList(),
+                        Arrays.asList(new Ast.Function("main", Arrays.asList(), Arrays.asList(
+                                new Ast.Statement.Declaration("i", Optional.of(new Ast.Expression.Literal(BigInteger.ZERO))),
+                                new Ast.Statement.While(new Ast.Expression.Literal(true), Arrays.asList(
+                                        new Ast.Statement.If(
+                                                new Ast.Expression.Binary("==", new Ast.Expression.Access(Optional.empty(), "i"), new Ast.Expression.Literal(BigInteger.valueOf(5))),
+                                                Arrays.asList(new Ast.Statement.Return(new Ast.Expression.Access(Optional.empty(), "i"))),
+                                                Arrays.asList()
+                                        ),
+                                        new Ast.Statement.Assignment(
+                                                new Ast.Expression.Access(Optional.empty(), "i"),
+                                                new Ast.Expression.Binary("+", new Ast.Expression.Access(Optional.empty(), "i"), new Ast.Expression.Literal(BigInteger.ONE))
+                                        )
+                                ))
+                        )))
+                ), BigInteger.valueOf(5)),
+                // VAR x = 1; FUN f() DO RETURN x; END FUN main() DO LET x = 2; RETURN f(); END
+                Arguments.of("Lexical Scope", new Ast.Source(
+                        Arrays.asList(new Ast.Global("x", true, Optional.of(new Ast.Expression.Literal(BigInteger.ONE)))),
+                        Arrays.asList(
+                                new Ast.Function("f", Arrays.asList(), Arrays.asList(
+                                        new Ast.Statement.Return(new Ast.Expression.Access(Optional.empty(), "x"))
+                                )),
+                                new Ast.Function("main", Arrays.asList(), Arrays.asList(
+                                        new Ast.Statement.Declaration("x", Optional.of(new Ast.Expression.Literal(BigInteger.valueOf(2)))),
+                                        new Ast.Statement.Return(new Ast.Expression.Function("f", Arrays.asList()))
+                                ))
+                        )
+                ), BigInteger.ONE)
+        );
+    }
+
+    @Test
+    void testDeepRecursion() {
+        // FUN sum(n) DO IF n == 0 DO RETURN 0; END RETURN n + sum(n - 1); END
+        Scope scope = test(sum(), Environment.NIL.getValue(), new Scope(null));
+        Environment.PlcObject result = scope.lookupFunction("sum", 1).invoke(Environment.create(BigInteger.valueOf(100000)));
+        Assertions.assertEquals(BigInteger.valueOf(5000050000L), result.getValue());
+    }
+
+    @Test
+    void testMaxFrames() {
+        ContinuationInterpreter interpreter = new ContinuationInterpreter(new Scope(null), 100);
+        interpreter.execute(sum());
+        Environment.Function function = interpreter.getScope().lookupFunction("sum", 1);
+        Assertions.assertEquals(BigInteger.valueOf(4950), function.invoke(Environment.create(BigInteger.valueOf(99))).getValue());
+        Assertions.assertThrows(RuntimeException.class, () -> function.invoke(Environment.create(BigInteger.valueOf(100))));
+    }
+
+    @Test
+    void testSuspend() {
+        // VAR x = 0; FUN main() DO x = x + 1; x = x + 1; RETURN x; END
+        Ast.Source ast = new Ast.Source(
+                Arrays.asList(new Ast.Global("x", true, Optional.of(new Ast.Expression.Literal(BigInteger.ZERO)))),
+                Arrays.asList(new Ast.Function("main", Arrays.asList(), Arrays.asList(
+                        new Ast.Statement.Assignment(
+                                new Ast.Expression.Access(Optional.empty(), "x"),
+                                new Ast.Expression.Binary("+", new Ast.Expression.Access(Optional.empty(), "x"), new Ast.Expression.Literal(BigInteger.ONE))
+                        ),
+                        new Ast.Statement.Assignment(
+                                new Ast.Expression.Access(Optional.empty(), "x"),
+                                new Ast.Expression.Binary("+", new Ast.Expression.Access(Optional.empty(), "x"), new Ast.Expression.Literal(BigInteger.ONE))
+                        ),
+                        new Ast.Statement.Return(new Ast.Expression.Access(Optional.empty(), "x"))
+                )))
+        );
+        ContinuationInterpreter interpreter = new ContinuationInterpreter(new Scope(null));
+        interpreter.load(ast);
+        int steps = 0;
+        do {
+            interpreter.suspend();
+            steps++;
+        } while (!interpreter.run());
+        Assertions.assertEquals(4, steps); // one suspension before each statement
+        Assertions.assertEquals(BigInteger.valueOf(2), interpreter.getResult().getValue());
+    }
+
+    @Test
+    void testPrint() {
+        // print("Hello, World!");
+        PrintStream sysout = System.out;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(out));
+        try {
+            test(new Ast.Statement.Expression(
+                    new Ast.Expression.Function("print", Arrays.asList(new Ast.Expression.Literal("Hello, World!")))
+            ), Environment.NIL.getValue(), new Scope(null));
+            Assertions.assertEquals("Hello, World!" + System.lineSeparator(), out.toString());
+        } finally {
+            System.setOut(sysout);
+        }
+    }
+
+    @Test
+    void testOutput() {
+        // print(1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ContinuationInterpreter interpreter = new ContinuationInterpreter(new Scope(null));
+        interpreter.setOutput(new PrintStream(out));
+        interpreter.execute(new Ast.Statement.Expression(
+                new Ast.Expression.Function("print", Arrays.asList(new Ast.Expression.Literal(BigInteger.ONE)))
+        ));
+        Assertions.assertEquals("1" + System.lineSeparator(), out.toString());
+    }
+
+    private static Ast.Function sum() {
+        return new Ast.Function("sum", Arrays.asList("n"), Arrays.asList(
+                new Ast.Statement.If(
+                        new Ast.Expression.Binary("==", new Ast.Expression.Access(Optional.empty(), "n"), new Ast.Expression.Literal(BigInteger.ZERO)),
+                        Arrays.asList(new Ast.Statement.Return(new Ast.Expression.Literal(BigInteger.ZERO))),
+                        Arrays.asList()
+                ),
+                new Ast.Statement.Return(new Ast.Expression.Binary("+",
+                        new Ast.Expression.Access(Optional.empty(), "n"),
+                        new Ast.Expression.Function("sum", Arrays.asList(
+                                new Ast.Expression.Binary("-", new Ast.Expression.Access(Optional.empty(), "n"), new Ast.Expression.Literal(BigInteger.ONE))
+                        ))
+                ))
+        ));
+    }
+
+    private static Scope test(Ast ast, Object expected, Scope scope) {
+        ContinuationInterpreter interpreter = new ContinuationInterpreter(scope);
+        if (expected != null) {
+            Assertions.assertEquals(expected, interpreter.execute(ast).getValue());
+        } else {
+            Assertions.assertThrows(RuntimeException.class, () -> interpreter.execute(ast));
+        }
+        return interpreter.getScope();
+    }
+
+}
@@ -0,0 +1,122 @@
+package plc.project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+final class DependenceGraphTests {
+
+    /**
+     * FUN slow(x) DO WHILE x > 1 DO x = x - 1; END RETURN x; END
+     */
+    private static final Ast.Function SLOW = new Ast.Function("slow", Arrays.asList("x"), Arrays.asList(
+            new Ast.Statement.While(
+                    new Ast.Expression.Binary(">", access("x"), new Ast.Expression.Literal(BigInteger.ONE)),
+                    Arrays.asList(new Ast.Statement.Assignment(access("x"),
+                            new Ast.Expression.Binary("-", access("x"), new Ast.Expression.Literal(BigInteger.ONE))))
+            ),
+            new Ast.Statement.Return(access("x"))
+    ));
+
+    /**
+     * FUN id(x) DO RETURN x; END
+     */
+    private static final Ast.Function ID = new Ast.Function("id", Arrays.asList("x"), Arrays.asList(
+            new Ast.Statement.Return(access("x"))
+    ));
+
+    @ParameterizedTest
+    @MethodSource
+    void testSchedule(String test, List<Ast.Statement> statements, List<Integer> expected) {
+        List<Integer> sizes = graph(statements).schedule(256).stream()
+                .map(batch -> batch.getStatements().size())
+                .collect(Collectors.toList());
+        Assertions.assertEquals(expected, sizes);
+    }
+
+    private static Stream<Arguments> testSchedule() {
+        return Stream.of(
+                // LET a = slow(x); LET b = slow(x);
+                Arguments.of("Independent", Arrays.asList(
+                        declaration("a", call("slow", access("x"))),
+                        declaration("b", call("slow", access("x")))
+                ), Arrays.asList(2)),
+                // LET a = slow(x); LET b = slow(a);
+                Arguments.of("True Dependence", Arrays.asList(
+                        declaration("a", call("slow", access("x"))),
+                        declaration("b", call("slow", access("a")))
+                ), Arrays.asList(1, 1)),
+                // LET a = slow(x); x = slow(x);
+                Arguments.of("Anti Dependence", Arrays.asList(
+                        declaration("a", call("slow", access("x"))),
+                        new Ast.Statement.Assignment(access("x"), call("slow", access("x")))
+                ), Arrays.asList(2)),
+                // LET a = slow(x); print(x); LET b = slow(x);
+                Arguments.of("Impure", Arrays.asList(
+                        declaration("a", call("slow", access("x"))),
+                        new Ast.Statement.Expression(call("print", access("x"))),
+                        declaration("b", call("slow", access("x")))
+                ), Arrays.asList(1, 1, 1)),
+                // LET a = id(x); LET b = id(x);
+                Arguments.of("Cheap", Arrays.asList(
+                        declaration("a", call("id", access("x"))),
+                        declaration("b", call("id", access("x")))
+                ), Arrays.asList(1, 1)),
+                // LET a = slow(x); LET b = id(x); LET c = slow(x); LET d = slow(c);
+                Arguments.of("Mixed", Arrays.asList(
+                        declaration("a", call("slow", access("x"))),
+                        declaration("b", call("id", access("x"))),
+                        declaration("c", call("slow", access("x"))),
+                        declaration("d", call("slow", access("c")))
+                ), Arrays.asList(3, 1))
+        );
+    }
+
+    @Test
+    void testCost() {
+        DependenceGraph graph = graph(Arrays.asList(
+                declaration("a", call("slow", access("x"))),
+                declaration("b", call("id", access("x"))),
+                declaration("c", call("print", access("x")))
+        ));
+        Assertions.assertEquals(DependenceGraph.UNBOUNDED, graph.getCost(0));
+        Assertions.assertEquals(3 + 3, graph.getCost(1));
+        Assertions.assertEquals(3 + 1, graph.getCost(2));
+        Assertions.assertTrue(graph.isIndependent(1));
+        Assertions.assertFalse(graph.isIndependent(2));
+    }
+
+    private static DependenceGraph graph(List<Ast.Statement> statements) {
+        Map<String, Ast.Function> functions = new HashMap<>();
+        functions.put("slow/1", SLOW);
+        functions.put("id/1", ID);
+        Set<Ast.Function> pure = new HashSet<>(Arrays.asList(SLOW, ID));
+        return DependenceGraph.of(statements, functions, pure);
+    }
+
+    private static Ast.Statement declaration(String name, Ast.Expression value) {
+        return new Ast.Statement.Declaration(name, Optional.of(value));
+    }
+
+    private static Ast.Expression.Function call(String name, Ast.Expression... arguments) {
+        return new Ast.Expression.Function(name, Arrays.asList(arguments));
+    }
+
+    private static Ast.Expression.Access access(String name) {
+        return new Ast.Expression.Access(Optional.empty(), name);
+    }
+
+}
@@ -0,0 +1,30 @@
+package plc.project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Set;
+
+final class EffectsTests {
+
+    @Test
+    void testStatement() {
+        // IF x DO list[i] = f(y); LET z = 1; END
+        Ast.Statement ast = new Ast.Statement.If(new Ast.Expression.Access(Optional.empty(), "x"), Arrays.asList(
+                new Ast.Statement.Assignment(
+                        new Ast.Expression.Access(Optional.of(new Ast.Expression.Access(Optional.empty(), "i")), "list"),
+                        new Ast.Expression.Function("f", Arrays.asList(new Ast.Expression.Access(Optional.empty(), "y")))
+                ),
+                new Ast.Statement.Declaration("z", Optional.of(new Ast.Expression.Literal(BigInteger.ONE)))
+        ), Arrays.asList());
+        Effects effects = Effects.of(ast);
+        Assertions.assertEquals(Set.of("x", "i", "list", "y"), effects.getReads());
+        Assertions.assertEquals(Set.of("list", "z"), effects.getWrites());
+        Assertions.assertEquals(Set.of("f/1"), effects.getCalls());
+        Assertions.assertEquals(8, effects.getSize());
+    }
+
+}
@@ -194,6 +194,7 @@ public class GeneratorTests {
                                 "    case 'y':",
                                 "        System.out.println(\"yes\");",
                                 "        letter = 'n';",
+                                "        break;",
                                 "    default:",
                                 "        System.out.println(\"no\");",
                                 "}"
@@ -247,6 +248,17 @@ public class GeneratorTests {
         );
     }
 
+    @Test
+    void testSpawn() {
+        // AWAIT SPAWN square(x)
+        Ast.Expression.Access x = init(new Ast.Expression.Access(Optional.empty(), "x"), ast -> ast.setVariable(new Environment.Variable("x", "x", Environment.Type.INTEGER, true, Environment.NIL)));
+        Ast.Expression.Function call = init(new Ast.Expression.Function("square", Arrays.asList(x)), ast -> ast.setFunction(new Environment.Function("square", "square", Arrays.asList(Environment.Type.INTEGER), Environment.Type.INTEGER, args -> Environment.NIL)));
+        test(new Ast.Expression.Await(new Ast.Expression.Spawn(call)), "spawn(a$ -> square((int) a$[0]), x).join()");
+        // AWAIT SPAWN square(x), typed as Integer
+        Ast.Expression.Await typed = init(new Ast.Expression.Await(new Ast.Expression.Spawn(call)), ast -> ast.setType(Environment.Type.INTEGER));
+        test(typed, "((int) spawn(a$ -> square((int) a$[0]), x).join())");
+    }
+
     /**
      * Helper function for tests, using a StringWriter as the output stream.
      */
@@ -0,0 +1,618 @@
+package plc.project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Tests of the features only the {@link Interpreter} has, such as tiering,
+ * tracing, memoization and running work in parallel, which are kept apart
+ * from {@link InterpreterTests} so {@link ClosureCompilerTests} does not run
+ * them again.
+ */
+final class InterpreterFeatureTests {
+
+    @Test
+    void testTieredExecution() throws InterruptedException {
+        // FUN square(x) DO RETURN x * x; END
+        Interpreter interpreter = new Interpreter(new Scope(null));
+        interpreter.setCompileThreshold(10);
+        interpreter.visit(new Ast.Function("square", Arrays.asList("x"), Arrays.asList(
+                new Ast.Statement.Return(new Ast.Expression.Binary("*",
+                        new Ast.Expression.Access(Optional.empty(), "x"),
+                        new Ast.Expression.Access(Optional.empty(), "x")
+                ))
+        )));
+        Environment.Function function = interpreter.getScope().lookupFunction("square", 1);
+        Environment.Invoker interpreted = function.getInvoker();
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertEquals(BigInteger.valueOf(i * i), function.invoke(Environment.create(BigInteger.valueOf(i))).getValue());
+        }
+        for (int i = 0; i < 500 && function.getInvoker() == interpreted; i++) {
+            Thread.sleep(10); // compiled in the background
+        }
+        Assertions.assertNotSame(interpreted, function.getInvoker());
+        Assertions.assertEquals(BigInteger.valueOf(144), function.invoke(Environment.create(BigInteger.valueOf(12))).getValue());
+    }
+
+    @Test
+    void testTracedLoop() {
+        // FUN double(x) DO RETURN x + x; END
+        // VAR i = 0; VAR total = 0;
+        // WHILE i < 100 DO IF i < 50 DO total = total + double(i); ELSE total = total + 1; END i = i + 1; END
+        Interpreter interpreter = new Interpreter(new Scope(null));
+        interpreter.setTraceThreshold(10);
+        interpreter.visit(new Ast.Function("double", Arrays.asList("x"), Arrays.asList(
+                new Ast.Statement.Return(new Ast.Expression.Binary("+",
+                        new Ast.Expression.Access(Optional.empty(), "x"),
+                        new Ast.Expression.Access(Optional.empty(), "x")
+                ))
+        )));
+        interpreter.getScope().defineVariable("i", true, Environment.create(BigInteger.ZERO));
+        interpreter.getScope().defineVariable("total", true, Environment.create(BigInteger.ZERO));
+        interpreter.visit(new Ast.Statement.While(
+                new Ast.Expression.Binary("<", new Ast.Expression.Access(Optional.empty(), "i"), new Ast.Expression.Literal(BigInteger.valueOf(100))),
+                Arrays.asList(
+                        new Ast.Statement.If(
+                                new Ast.Expression.Binary("<", new Ast.Expression.Access(Optional.empty(), "i"), new Ast.Expression.Literal(BigInteger.valueOf(50))),
+                                Arrays.asList(new Ast.Statement.Assignment(
+                                        new Ast.Expression.Access(Optional.empty(), "total"),
+                                        new Ast.Expression.Binary("+",
+                                                new Ast.Expression.Access(Optional.empty(), "total"),
+                                                new Ast.Expression.Function("double", Arrays.asList(new Ast.Expression.Access(Optional.empty(), "i")))
+                                        )
+                                )),
+                                Arrays.asList(new Ast.Statement.Assignment(
+                                        new Ast.Expression.Access(Optional.empty(), "total"),
+                                        new Ast.Expression.Binary("+", new Ast.Expression.Access(Optional.empty(), "total"), new Ast.Expression.Literal(BigInteger.ONE))
+                                ))
+                        ),
+                        new Ast.Statement.Assignment(
+                                new Ast.Expression.Access(Optional.empty(), "i"),
+                                new Ast.Expression.Binary("+", new Ast.Expression.Access(Optional.empty(), "i"), new Ast.Expression.Literal(BigInteger.ONE))
+                        )
+                )
+        ));
+        Assertions.assertEquals(BigInteger.valueOf(2500), interpreter.getScope().lookupVariable("total").getValue().getValue());
+        Assertions.assertEquals(90, interpreter.getTraceHits()); // the tenth iteration is recorded
+        Assertions.assertEquals(50, interpreter.getGuardFailures()); // every iteration taking the else branch
+    }
+
+    @ParameterizedTest
+    @MethodSource
+    void testNestedTracedLoops(String test, String outer, BigInteger expected, long traces) {
+        // FUN main(): Integer DO LET i = 1; LET j = 1; LET total = 1; WHILE i < 21 DO <outer> WHILE j < 21 DO total = total + j; j = j + 1; END i = i + 1; END RETURN total; END
+        Program program = Program.compile(String.join("\n",
+                "FUN main(): Integer DO",
+                "    LET i = 1;",
+                "    LET j = 1;",
+                "    LET total = 1;",
+                "    WHILE i < 21 DO",
+                "        " + outer,
+                "        WHILE j < 21 DO",
+                "            total = total + j;",
+                "            j = j + 1;",
+                "        END",
+                "        i = i + 1;",
+                "    END",
+                "    RETURN total;",
+                "END"
+        ));
+        Execution execution = program.newExecution();
+        execution.getInterpreter().setTraceThreshold(5);
+        Assertions.assertEquals(expected, execution.run().getValue());
+        Assertions.assertEquals(traces, execution.getInterpreter().getTracesCompiled());
+    }
+
+    private static Stream<Arguments> testNestedTracedLoops() {
+        return Stream.of(
+                // j = 1; resets the inner loop in the same scope, so both loops are traced
+                Arguments.of("Same Scope", "j = 1;", BigInteger.valueOf(4201), 2L),
+                // LET j = 1; shadows j in a new scope each iteration, so only the inner loop is traced
+                Arguments.of("New Scope", "LET j = 1;", BigInteger.valueOf(4201), 1L)
+        );
+    }
+
+    @Test
+    void testMemoization() {
+        // FUN fib(n) DO IF n < 2 DO RETURN n; END RETURN fib(n - 1) + fib(n - 2); END
+        // FUN main() DO RETURN fib(90); END
+        MemoCache cache = new MemoCache(1000);
+        Interpreter interpreter = new Interpreter(new Scope(null));
+        interpreter.setMemoCache(cache);
+        Ast.Source ast = new Ast.Source(Arrays.asList(), Arrays.asList(
+                new Ast.Function("fib", Arrays.asList("n"), Arrays.asList(
+                        new Ast.Statement.If(
+                                new Ast.Expression.Binary("<", new Ast.Expression.Access(Optional.empty(), "n"), new Ast.Expression.Literal(BigInteger.valueOf(2))),
+                                Arrays.asList(new Ast.Statement.Return(new Ast.Expression.Access(Optional.empty(), "n"))),
+                                Arrays.asList()
+                        ),
+                        new Ast.Statement.Return(new Ast.Expression.Binary("+",
+                                new Ast.Expression.Function("fib", Arrays.asList(
+                                        new Ast.Expression.Binary("-", new Ast.Expression.Access(Optional.empty(), "n"), new Ast.Expression.Literal(BigInteger.ONE))
+                                )),
+                                new Ast.Expression.Function("fib", Arrays.asList(
+                                        new Ast.Expression.Binary("-", new Ast.Expression.Access(Optional.empty(), "n"), new Ast.Expression.Literal(BigInteger.valueOf(2)))
+                                ))
+                        ))
+                )),
+                new Ast.Function("main", Arrays.asList(), Arrays.asList(
+                        new Ast.Statement.Return(new Ast.Expression.Function("fib", Arrays.asList(new Ast.Expression.Literal(BigInteger.valueOf(90)))))
+                ))
+        ));
+        Assertions.assertEquals(new BigInteger("2880067194370816120"), interpreter.visit(ast).getValue());
+        Assertions.assertEquals(92, cache.getMisses()); // main, and each of fib(0) to fib(90) once
+        Assertions.assertEquals(88, cache.getHits()); // fib(n - 2) for n from 3 to 90
+        Assertions.assertEquals(0, cache.getEvictions());
+        MemoCache small = new MemoCache(60);
+        interpreter = new Interpreter(new Scope(null));
+        interpreter.setMemoCache(small);
+        Assertions.assertEquals(new BigInteger("2880067194370816120"), interpreter.visit(ast).getValue());
+        Assertions.assertTrue(small.getEvictions() > 0);
+        Assertions.assertTrue(small.getWeight() <= 60);
+    }
+
+    @Test
+    void testMemoizedTailCalls() {
+        // FUN count(n: Integer, total: Integer): Integer DO IF n < 1 DO RETURN total; END RETURN count(n - 1, total + 1); END
+        // FUN main(): Integer DO RETURN count(200000, 1); END
+        Execution execution = Program.compile(String.join("\n",
+                "FUN count(n: Integer, total: Integer): Integer DO",
+                "    IF n < 1 DO",
+                "        RETURN total;",
+                "    END",
+                "    RETURN count(n - 1, total + 1);",
+                "END",
+                "FUN main(): Integer DO",
+                "    RETURN count(200000, 1);",
+                "END"
+        )).newExecution();
+        MemoCache cache = new MemoCache(1000);
+        execution.getInterpreter().setMemoCache(cache);
+        Assertions.assertEquals(BigInteger.valueOf(200001), execution.run().getValue());
+        Assertions.assertEquals(200002, cache.getMisses()); // main and each call to count
+        Assertions.assertEquals(1, cache.size()); // main, whose call started the chain
+    }
+
+    @Test
+    void testLazyGlobals() {
+        Execution execution = Program.compile(String.join("\n",
+                "VAL base: Integer = 10;",
+                "VAL table: Integer = base * 3;",
+                "VAL unused: Integer = base + 1;",
+                "VAR total: Integer = base * 2;",
+                "VAR counter: Integer = 1;",
+                "VAL derived: Integer = counter + 1;",
+                "FUN main(): Integer DO",
+                "    total = table + derived;",
+                "    RETURN total;",
+                "END"
+        )).newExecution();
+        execution.getInterpreter().setLazyGlobals(true);
+        Assertions.assertEquals(BigInteger.valueOf(32), execution.run().getValue());
+        Scope globals = execution.getGlobals();
+        Assertions.assertTrue(globals.lookupVariable("unused").isPending());
+        Assertions.assertFalse(globals.lookupVariable("table").isPending());
+        Assertions.assertEquals(BigInteger.valueOf(11), globals.lookupVariable("unused").getValue().getValue());
+        Assertions.assertFalse(globals.lookupVariable("unused").isPending());
+    }
+
+    @Test
+    void testLazyGlobalsMemoized() {
+        // VAL base: Integer = 10; VAL used: Integer = base * 2; VAL unused: Integer = base + 1;
+        // FUN f(n: Integer): Integer DO RETURN n + unused; END FUN g(n: Integer): Integer DO RETURN n + used; END
+        // FUN main(): Integer DO LET x = g(1); RETURN x; END
+        Execution execution = Program.compile(String.join("\n",
+                "VAL base: Integer = 10;",
+                "VAL used: Integer = base * 2;",
+                "VAL unused: Integer = base + 1;",
+                "FUN f(n: Integer): Integer DO",
+                "    RETURN n + unused;",
+                "END",
+                "FUN g(n: Integer): Integer DO",
+                "    RETURN n + used;",
+                "END",
+                "FUN main(): Integer DO",
+                "    LET x = g(1);",
+                "    RETURN x;",
+                "END"
+        )).newExecution();
+        MemoCache cache = new MemoCache(1000);
+        execution.getInterpreter().setLazyGlobals(true);
+        execution.getInterpreter().setMemoCache(cache);
+        Assertions.assertEquals(BigInteger.valueOf(21), execution.run().getValue());
+        Assertions.assertTrue(execution.getGlobals().lookupVariable("unused").isPending());
+        Assertions.assertEquals(2, cache.size()); // main, and g(1) as g is pure though used was pending
+    }
+
+    @Test
+    void testLazyGlobalsFromTask() {
+        // VAL big: Integer = 3 ^ 200000; FUN f(): Integer DO RETURN big - big; END
+        // FUN main(): Integer DO LET task = SPAWN f(); LET i = 1; WHILE i < 20000 DO i = i + 1; END print(AWAIT task); RETURN i; END
+        Program program = Program.compile(String.join("\n",
+                "VAL big: Integer = 3 ^ 200000;",
+                "FUN f(): Integer DO",
+                "    RETURN big - big;",
+                "END",
+                "FUN main(): Integer DO",
+                "    LET task = SPAWN f();",
+                "    LET i = 1;",
+                "    WHILE i < 20000 DO",
+                "        i = i + 1;",
+                "    END",
+                "    print(AWAIT task);",
+                "    RETURN i;",
+                "END"
+        ));
+        for (int run = 1; run < 10; run++) {
+            Execution execution = program.newExecution();
+            execution.getInterpreter().setLazyGlobals(true);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            execution.getInterpreter().setOutput(new PrintStream(output, true));
+            Assertions.assertEquals(BigInteger.valueOf(20000), execution.run().getValue());
+            Assertions.assertEquals("0", output.toString().trim());
+        }
+    }
+
+    @Test
+    void testParallelGlobals() {
+        // LIST a: Integer = [1, 2, ..., 200]; LIST b: Integer = [a[1] * 1, a[1] * 2, ..., a[1] * 200];
+        // VAR p: Any = print(7); LIST c: Integer = [1, 2, ..., 200]; VAL d: Integer = b[199] + c[199];
+        String values = IntStream.rangeClosed(1, 200).mapToObj(Integer::toString).collect(Collectors.joining(", "));
+        String products = IntStream.rangeClosed(1, 200).mapToObj(i -> "a[1] * " + i).collect(Collectors.joining(", "));
+        Program program = Program.compile(String.join("\n",
+                "LIST a: Integer = [" + values + "];",
+                "LIST b: Integer = [" + products + "];",
+                "VAR p: Any = print(7);",
+                "LIST c: Integer = [" + values + "];",
+                "VAL d: Integer = b[199] + c[199];",
+                "FUN main(): Integer DO",
+                "    RETURN d;",
+                "END"
+        ));
+        AtomicInteger workers = new AtomicInteger();
+        ForkJoinPool pool = countingPool(workers);
+        try {
+            Execution execution = program.newExecution();
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            execution.getInterpreter().setOutput(new PrintStream(output, true));
+            execution.getInterpreter().setGlobalPool(pool);
+            Assertions.assertEquals(BigInteger.valueOf(600), execution.run().getValue());
+            Assertions.assertEquals("7", output.toString().trim());
+            Assertions.assertTrue(workers.get() > 0);
+            Assertions.assertEquals(BigInteger.valueOf(400), ((List<?>) execution.getGlobals().lookupVariable("b").getValue().getValue()).get(199));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testParallelFor() {
+        // LIST xs: Integer = [1, 2, ..., 1000]; VAR sum: Integer = 1;
+        // FUN square(n: Integer): Integer DO RETURN n * n; END
+        // FUN main(): Integer DO PARALLEL FOR x IN xs DO LET y: Integer = square(x); sum = sum + y; END RETURN sum; END
+        String values = IntStream.rangeClosed(1, 1000).mapToObj(Integer::toString).collect(Collectors.joining(", "));
+        Program program = Program.compile(String.join("\n",
+                "LIST xs: Integer = [" + values + "];",
+                "VAR sum: Integer = 1;",
+                "FUN square(n: Integer): Integer DO",
+                "    RETURN n * n;",
+                "END",
+                "FUN main(): Integer DO",
+                "    PARALLEL FOR x IN xs DO",
+                "        LET y: Integer = square(x);",
+                "        sum = sum + y;",
+                "    END",
+                "    RETURN sum;",
+                "END"
+        ));
+        AtomicInteger workers = new AtomicInteger();
+        ForkJoinPool pool = countingPool(workers);
+        try {
+            Execution execution = program.newExecution();
+            execution.getInterpreter().setLoopPool(pool);
+            Assertions.assertEquals(BigInteger.valueOf(333833501), execution.run().getValue());
+            Assertions.assertTrue(workers.get() > 0);
+            Execution budgeted = program.newExecution();
+            budgeted.setBudget(Budget.UNLIMITED.withMaxStatements(1_000_000));
+            Assertions.assertEquals(BigInteger.valueOf(333833501), budgeted.run().getValue());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testIndependentStatements() {
+        // FUN slow(n: Integer): Integer DO LET i = 1; LET total = 1; WHILE i < n DO total = total + i; i = i + 1; END RETURN total; END
+        // FUN main(): Integer DO LET a = slow(1000); LET b = slow(2000); LET c = a + b; a = slow(10); b = slow(20); RETURN a + b + c; END
+        Program program = Program.compile(String.join("\n",
+                "FUN slow(n: Integer): Integer DO",
+                "    LET i = 1;",
+                "    LET total = 1;",
+                "    WHILE i < n DO",
+                "        total = total + i;",
+                "        i = i + 1;",
+                "    END",
+                "    RETURN total;",
+                "END",
+                "FUN main(): Integer DO",
+                "    LET a = slow(1000);",
+                "    LET b = slow(2000);",
+                "    LET c = a + b;",
+                "    a = slow(10);",
+                "    b = slow(20);",
+                "    RETURN a + b + c;",
+                "END"
+        ));
+        AtomicInteger workers = new AtomicInteger();
+        ForkJoinPool pool = countingPool(workers);
+        try {
+            Execution execution = program.newExecution();
+            execution.getInterpreter().setStatementPool(pool);
+            Assertions.assertEquals(BigInteger.valueOf(2498739), execution.run().getValue());
+            Assertions.assertTrue(workers.get() > 0);
+            Assertions.assertEquals(BigInteger.valueOf(2498739), program.newExecution().run().getValue());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testIndependentStatementsMemoized() {
+        // FUN slow(n: Integer): Integer DO LET i = 1; LET total = 1; WHILE i < n DO total = total + i; i = i + 1; END RETURN total; END
+        // FUN main(): Integer DO LET a = slow(1000); LET b = slow(2000); LET c = a + slow(1000); RETURN b + c; END
+        Program program = Program.compile(String.join("\n",
+                "FUN slow(n: Integer): Integer DO",
+                "    LET i = 1;",
+                "    LET total = 1;",
+                "    WHILE i < n DO",
+                "        total = total + i;",
+                "        i = i + 1;",
+                "    END",
+                "    RETURN total;",
+                "END",
+                "FUN main(): Integer DO",
+                "    LET a = slow(1000);",
+                "    LET b = slow(2000);",
+                "    LET c = a + slow(1000);",
+                "    RETURN b + c;",
+                "END"
+        ));
+        MemoCache cache = new MemoCache(1000);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Execution execution = program.newExecution();
+            execution.getInterpreter().setStatementPool(pool);
+            execution.getInterpreter().setMemoCache(cache);
+            Assertions.assertEquals(BigInteger.valueOf(1999001 + 2 * 499501), execution.run().getValue());
+            Assertions.assertEquals(3, cache.size()); // main, and slow(1000) and slow(2000) from the workers
+            Assertions.assertEquals(1, cache.getHits());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testIndependentStatementFails() {
+        // FUN bad(n: Integer): Integer DO LET i = 1; WHILE i < n DO i = i + 1; END RETURN n / (i - n); END
+        // FUN spin(n: Integer): Integer DO LET i = n + 1; WHILE i > n DO i = i + 1; END RETURN i; END
+        // FUN main(): Integer DO LET a = bad(1000); LET b = spin(5); RETURN a + b; END
+        Program program = Program.compile(String.join("\n",
+                "FUN bad(n: Integer): Integer DO",
+                "    LET i = 1;",
+                "    WHILE i < n DO",
+                "        i = i + 1;",
+                "    END",
+                "    RETURN n / (i - n);",
+                "END",
+                "FUN spin(n: Integer): Integer DO",
+                "    LET i = n + 1;",
+                "    WHILE i > n DO",
+                "        i = i + 1;",
+                "    END",
+                "    RETURN i;",
+                "END",
+                "FUN main(): Integer DO",
+                "    LET a = bad(1000);",
+                "    LET b = spin(5);",
+                "    RETURN a + b;",
+                "END"
+        ));
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Execution execution = program.newExecution();
+            execution.getInterpreter().setStatementPool(pool);
+            RuntimeException exception = Assertions.assertTimeoutPreemptively(Duration.ofSeconds(10),
+                    () -> Assertions.assertThrows(RuntimeException.class, execution::run));
+            Assertions.assertEquals("Division by zero.", exception.getMessage());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void testSpawn() {
+        // FUN produce(ch: Channel, n: Integer) DO LET i = 1; WHILE i < n DO send(ch, i * i); i = i + 1; END END
+        // FUN main(): Integer DO LET ch = channel(2); LET task = SPAWN produce(ch, 6); ... print(receive(ch)) ...; AWAIT task; RETURN 1; END
+        Program program = Program.compile(String.join("\n",
+                "FUN produce(ch: Channel, n: Integer) DO",
+                "    LET i = 1;",
+                "    WHILE i < n DO",
+                "        send(ch, i * i);",
+                "        i = i + 1;",
+                "    END",
+                "END",
+                "FUN main(): Integer DO",
+                "    LET ch = channel(2);",
+                "    LET task = SPAWN produce(ch, 6);",
+                "    LET i = 1;",
+                "    WHILE i < 6 DO",
+                "        print(receive(ch));",
+                "        i = i + 1;",
+                "    END",
+                "    AWAIT task;",
+                "    RETURN 1;",
+                "END"
+        ));
+        Execution execution = program.newExecution();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        execution.getInterpreter().setOutput(new PrintStream(output, true));
+        Assertions.assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            Assertions.assertEquals(BigInteger.ONE, execution.run().getValue());
+        });
+        Assertions.assertEquals(Arrays.asList("1", "4", "9", "16", "25"), Arrays.asList(output.toString().trim().split("\\R")));
+    }
+
+    @Test
+    void testSpawnSharesBudget() {
+        // FUN spin(n: Integer): Integer DO LET i = 1; WHILE i < n DO i = i + 1; END RETURN i; END
+        // FUN main(): Integer DO LET a = SPAWN spin(400); ... LET d = SPAWN spin(400); print(AWAIT a); ... RETURN 1; END
+        Program program = Program.compile(String.join("\n",
+                "FUN spin(n: Integer): Integer DO",
+                "    LET i = 1;",
+                "    WHILE i < n DO",
+                "        i = i + 1;",
+                "    END",
+                "    RETURN i;",
+                "END",
+                "FUN main(): Integer DO",
+                "    LET a = SPAWN spin(400);",
+                "    LET b = SPAWN spin(400);",
+                "    LET c = SPAWN spin(400);",
+                "    LET d = SPAWN spin(400);",
+                "    print(AWAIT a);",
+                "    print(AWAIT b);",
+                "    print(AWAIT c);",
+                "    print(AWAIT d);",
+                "    RETURN 1;",
+                "END"
+        ));
+        Execution alone = Program.compile(String.join("\n",
+                "FUN spin(n: Integer): Integer DO",
+                "    LET i = 1;",
+                "    WHILE i < n DO",
+                "        i = i + 1;",
+                "    END",
+                "    RETURN i;",
+                "END",
+                "FUN main(): Integer DO",
+                "    RETURN spin(400);",
+                "END"
+        )).newExecution();
+        alone.setBudget(Budget.UNLIMITED.withMaxStatements(1000));
+        Assertions.assertEquals(BigInteger.valueOf(400), alone.run().getValue());
+        Execution execution = program.newExecution();
+        execution.setBudget(Budget.UNLIMITED.withMaxStatements(1000));
+        execution.getInterpreter().setOutput(new PrintStream(new ByteArrayOutputStream(), true));
+        BudgetExceededException exception = Assertions.assertThrows(BudgetExceededException.class, execution::run);
+        Assertions.assertEquals(BudgetExceededException.Reason.STATEMENTS, exception.getReason());
+    }
+
+    @ParameterizedTest
+    @MethodSource
+    void testSpawnStoppedWithRun(String test, String call) {
+        // FUN forever(n: Integer): Integer DO WHILE TRUE DO n = n + 1; END RETURN n; END
+        // FUN wait(ch: Channel): Any DO RETURN receive(ch); END
+        // VAR task: Any; FUN main(): Integer DO task = SPAWN <call>; RETURN 1; END
+        Program program = Program.compile(String.join("\n",
+                "VAR task: Any;",
+                "FUN forever(n: Integer): Integer DO",
+                "    WHILE TRUE DO",
+                "        n = n + 1;",
+                "    END",
+                "    RETURN n;",
+                "END",
+                "FUN wait(ch: Channel): Any DO",
+                "    RETURN receive(ch);",
+                "END",
+                "FUN main(): Integer DO",
+                "    task = SPAWN " + call + ";",
+                "    RETURN 1;",
+                "END"
+        ));
+        Execution execution = program.newExecution();
+        Assertions.assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            Assertions.assertEquals(BigInteger.ONE, execution.run().getValue());
+        });
+        Environment.Task task = (Environment.Task) execution.getGlobals().lookupVariable("task").getValue().getValue();
+        Assertions.assertTrue(task.isDone());
+    }
+
+    private static Stream<Arguments> testSpawnStoppedWithRun() {
+        return Stream.of(
+                Arguments.of("Loop", "forever(1)"),
+                Arguments.of("Channel", "wait(channel(1))")
+        );
+    }
+
+    @Test
+    void testNullBudget() {
+        // FUN main(): Integer DO RETURN 1; END
+        Execution execution = Program.compile("FUN main(): Integer DO RETURN 1; END").newExecution();
+        execution.setBudget(null);
+        Assertions.assertEquals(BigInteger.ONE, execution.run().getValue());
+    }
+
+    @Test
+    void testMemoryQuota() {
+        // WHILE TRUE DO text = text + text; END
+        Interpreter interpreter = new Interpreter(new Scope(null));
+        interpreter.getScope().defineVariable("text", true, Environment.create("text"));
+        interpreter.setBudget(Budget.UNLIMITED.withMaxMemory(1 << 20));
+        Ast.Statement.While ast = new Ast.Statement.While(new Ast.Expression.Literal(true), Arrays.asList(
+                new Ast.Statement.Assignment(
+                        new Ast.Expression.Access(Optional.empty(), "text"),
+                        new Ast.Expression.Binary("+",
+                                new Ast.Expression.Access(Optional.empty(), "text"),
+                                new Ast.Expression.Access(Optional.empty(), "text")
+                        )
+                )
+        ));
+        BudgetExceededException exception = Assertions.assertThrows(BudgetExceededException.class, () -> interpreter.visit(ast));
+        Assertions.assertEquals(BudgetExceededException.Reason.MEMORY, exception.getReason());
+        Assertions.assertTrue(interpreter.getAllocatedBytes() > 1 << 20);
+        String text = (String) interpreter.getScope().lookupVariable("text").getValue().getValue();
+        Assertions.assertTrue(text.length() < 1 << 20); // the last string was not assigned
+    }
+
+    @Test
+    void testCachedFunctionScopes() {
+        Scope parent = new Scope(null);
+        parent.defineFunction("function", 0, args -> Environment.create("parent"));
+        Scope scope = new Scope(parent);
+        Scope.CachedFunction cached = scope.cacheFunction("function", 0);
+        new Interpreter(new Scope(null)).getScope().defineFunction("other", 0, args -> Environment.NIL);
+        Assertions.assertTrue(cached.isValid(scope));
+        new Scope(scope).defineFunction("nested", 0, args -> Environment.NIL);
+        Assertions.assertTrue(cached.isValid(scope));
+        parent.defineFunction("shadowed", 0, args -> Environment.NIL);
+        Assertions.assertFalse(cached.isValid(scope));
+    }
+
+    /**
+     * Returns a pool of four threads which counts the worker threads it
+     * starts, so a test can check that work was done in parallel.
+     */
+    private static ForkJoinPool countingPool(AtomicInteger workers) {
+        return new ForkJoinPool(4, pool -> {
+            workers.incrementAndGet();
+            return ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        }, null, false);
+    }
+
+}
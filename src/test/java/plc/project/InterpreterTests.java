@@ -10,6 +10,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
@@ -17,7 +18,7 @@ import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
-final class InterpreterTests {
+class InterpreterTests {
 
     @ParameterizedTest
     @MethodSource
@@ -45,7 +46,20 @@ final class InterpreterTests {
                                         new Ast.Expression.Access(Optional.empty(), "x"),
                                         new Ast.Expression.Access(Optional.empty(), "y")                                ))
                         )))
-                ), Environment.NIL.getValue())
+                ), Environment.NIL.getValue()),
+                // VAR x = 1; FUN f() DO RETURN x; END FUN main() DO LET x = 2; RETURN f(); END
+                Arguments.of("Lexical Scope", new Ast.Source(
+                        Arrays.asList(new Ast.Global("x", true, Optional.of(new Ast.Expression.Literal(BigInteger.ONE)))),
+                        Arrays.asList(
+                                new Ast.Function("f", Arrays.asList(), Arrays.asList(
+                                        new Ast.Statement.Return(new Ast.Expression.Access(Optional.empty(), "x"))
+                                )),
+                                new Ast.Function("main", Arrays.asList(), Arrays.asList(
+                                        new Ast.Statement.Declaration("x", Optional.of(new Ast.Expression.Literal(BigInteger.valueOf(2)))),
+                                        new Ast.Statement.Return(new Ast.Expression.Function("f", Arrays.asList()))
+                                ))
+                        )
+                ), BigInteger.ONE)
         );
     }
 
@@ -113,6 +127,123 @@ final class InterpreterTests {
         );
     }
 
+    @Test
+    void testTailCall() {
+        // FUN count(n, total) DO IF n == 0 DO RETURN total; END RETURN count(n - 1, total + 1); END
+        Ast.Function ast = new Ast.Function("count", Arrays.asList("n", "total"), Arrays.asList(
+                new Ast.Statement.If(
+                        new Ast.Expression.Binary("==", new Ast.Expression.Access(Optional.empty(), "n"), new Ast.Expression.Literal(BigInteger.ZERO)),
+                        Arrays.asList(new Ast.Statement.Return(new Ast.Expression.Access(Optional.empty(), "total"))),
+                        Arrays.asList()
+                ),
+                new Ast.Statement.Return(new Ast.Expression.Function("count", Arrays.asList(
+                        new Ast.Expression.Binary("-", new Ast.Expression.Access(Optional.empty(), "n"), new Ast.Expression.Literal(BigInteger.ONE)),
+                        new Ast.Expression.Binary("+", new Ast.Expression.Access(Optional.empty(), "total"), new Ast.Expression.Literal(BigInteger.ONE))
+                )))
+        ));
+        Scope scope = test(ast, Environment.NIL.getValue(), new Scope(null));
+        Environment.PlcObject result = scope.lookupFunction("count", 2).invoke(Environment.create(BigInteger.valueOf(100000)), Environment.create(BigInteger.ZERO));
+        Assertions.assertEquals(BigInteger.valueOf(100000), result.getValue());
+    }
+
+    @Test
+    void testForStatement() {
+        // FOR x IN list DO sum = sum + x; END
+        Scope scope = new Scope(null);
+        scope.defineVariable("sum", true, Environment.create(BigInteger.ONE));
+        scope.defineVariable("list", false, Environment.create(Arrays.asList(BigInteger.ONE, BigInteger.TEN)));
+        test(new Ast.Statement.For("x",
+                new Ast.Expression.Access(Optional.empty(), "list"),
+                Arrays.asList(new Ast.Statement.Assignment(
+                        new Ast.Expression.Access(Optional.empty(), "sum"),
+                        new Ast.Expression.Binary("+",
+                                new Ast.Expression.Access(Optional.empty(), "sum"),
+                                new Ast.Expression.Access(Optional.empty(), "x")
+                        )
+                )),
+                false
+        ), Environment.NIL.getValue(), scope);
+        Assertions.assertEquals(BigInteger.valueOf(12), scope.lookupVariable("sum").getValue().getValue());
+    }
+
+    @Test
+    void testSpawnCopiesLists() {
+        // FUN first(xs: Integer): Integer DO xs[1] = 7; RETURN xs[1]; END
+        Interpreter interpreter = interpreter(new Scope(null));
+        interpreter.visit(new Ast.Function("first", Arrays.asList("xs"), Arrays.asList(
+                new Ast.Statement.Assignment(
+                        new Ast.Expression.Access(Optional.of(new Ast.Expression.Literal(BigInteger.ONE)), "xs"),
+                        new Ast.Expression.Literal(BigInteger.valueOf(7))
+                ),
+                new Ast.Statement.Return(new Ast.Expression.Access(Optional.of(new Ast.Expression.Literal(BigInteger.ONE)), "xs"))
+        )));
+        List<Object> list = Environment.PlcList.of(Environment.Type.INTEGER, Arrays.asList(BigInteger.ONE, BigInteger.TEN));
+        interpreter.getScope().defineVariable("list", true, Environment.create(list));
+        // AWAIT SPAWN first(list)
+        Environment.PlcObject result = interpreter.visit(new Ast.Expression.Await(new Ast.Expression.Spawn(
+                new Ast.Expression.Function("first", Arrays.asList(new Ast.Expression.Access(Optional.empty(), "list")))
+        )));
+        Assertions.assertEquals(BigInteger.valueOf(7), result.getValue());
+        Assertions.assertEquals(BigInteger.TEN, list.get(1));
+    }
+
+    @ParameterizedTest
+    @MethodSource
+    void testBudget(String test, Budget budget, BudgetExceededException.Reason reason) {
+        // FUN spin() DO WHILE TRUE DO tick(); END END
+        Interpreter interpreter = interpreter(new Scope(null));
+        interpreter.getScope().defineFunction("tick", 0, args -> Environment.NIL);
+        interpreter.visit(new Ast.Function("spin", Arrays.asList(), Arrays.asList(
+                new Ast.Statement.While(new Ast.Expression.Literal(true), Arrays.asList(
+                        new Ast.Statement.Expression(new Ast.Expression.Function("tick", Arrays.asList()))
+                ))
+        )));
+        interpreter.setBudget(budget);
+        Environment.Function function = interpreter.getScope().lookupFunction("spin", 0);
+        BudgetExceededException exception = Assertions.assertTimeoutPreemptively(Duration.ofSeconds(10),
+                () -> Assertions.assertThrows(BudgetExceededException.class, function::invoke));
+        Assertions.assertEquals(reason, exception.getReason());
+    }
+
+    @Test
+    void testNullBudget() {
+        Interpreter interpreter = interpreter(new Scope(null));
+        interpreter.setBudget(null);
+        Assertions.assertEquals(0, interpreter.getStatementCount());
+    }
+
+    private static Stream<Arguments> testBudget() {
+        return Stream.of(
+                Arguments.of("Statements", Budget.UNLIMITED.withMaxStatements(1000), BudgetExceededException.Reason.STATEMENTS),
+                Arguments.of("Back Edges", Budget.UNLIMITED.withMaxBackEdges(1000), BudgetExceededException.Reason.BACK_EDGES),
+                Arguments.of("Deadline", Budget.UNLIMITED.withTimeout(Duration.ofMillis(50)), BudgetExceededException.Reason.DEADLINE)
+        );
+    }
+
+    @Test
+    void testCancel() throws InterruptedException {
+        // FUN spin() DO WHILE TRUE DO END END
+        Interpreter interpreter = interpreter(new Scope(null));
+        interpreter.visit(new Ast.Function("spin", Arrays.asList(), Arrays.asList(
+                new Ast.Statement.While(new Ast.Expression.Literal(true), Arrays.asList())
+        )));
+        Environment.Function function = interpreter.getScope().lookupFunction("spin", 0);
+        BudgetExceededException[] exception = new BudgetExceededException[1];
+        Thread thread = new Thread(() -> {
+            try {
+                function.invoke();
+            } catch (BudgetExceededException e) {
+                exception[0] = e;
+            }
+        });
+        thread.start();
+        Thread.sleep(20);
+        interpreter.cancel();
+        thread.join(5000);
+        Assertions.assertFalse(thread.isAlive());
+        Assertions.assertEquals(BudgetExceededException.Reason.CANCELLED, exception[0].getReason());
+    }
+
     @Test
     void testExpressionStatement() {
         // print("Hello, World!");
@@ -208,6 +339,18 @@ final class InterpreterTests {
                                 Arrays.asList(new Ast.Statement.Assignment(new Ast.Expression.Access(Optional.empty(),"num"), new Ast.Expression.Literal(BigInteger.TEN)))
                         ),
                         BigInteger.TEN
+                ),
+                // IF TRUE DO LET x = 2; num = x; END
+                Arguments.of("Block Declaration",
+                        new Ast.Statement.If(
+                                new Ast.Expression.Literal(true),
+                                Arrays.asList(
+                                        new Ast.Statement.Declaration("x", Optional.of(new Ast.Expression.Literal(BigInteger.valueOf(2)))),
+                                        new Ast.Statement.Assignment(new Ast.Expression.Access(Optional.empty(),"num"), new Ast.Expression.Access(Optional.empty(),"x"))
+                                ),
+                                Arrays.asList()
+                        ),
+                        BigInteger.valueOf(2)
                 )
         );
     }
@@ -245,6 +388,37 @@ final class InterpreterTests {
         Assertions.assertEquals(new Character('n'), scope.lookupVariable("letter").getValue().getValue());
     }
 
+    @Test
+    void testConstantSwitchStatement() {
+        // SWITCH number CASE 1: print("one"); CASE 2: print("two"); DEFAULT: print("other"); END
+
+        List<Ast.Statement.Case> cases = Arrays.asList(
+                new Ast.Statement.Case(Optional.of(new Ast.Expression.Literal(BigInteger.ONE)), Arrays.asList(new Ast.Statement.Expression(new Ast.Expression.Function("print", Arrays.asList(new Ast.Expression.Literal("one")))))),
+                new Ast.Statement.Case(Optional.of(new Ast.Expression.Literal(BigInteger.valueOf(2))), Arrays.asList(new Ast.Statement.Expression(new Ast.Expression.Function("print", Arrays.asList(new Ast.Expression.Literal("two")))))),
+                new Ast.Statement.Case(Optional.empty(), Arrays.asList(new Ast.Statement.Expression(new Ast.Expression.Function("print", Arrays.asList(new Ast.Expression.Literal("other"))))))
+        );
+        Ast.Statement.Switch ast = new Ast.Statement.Switch(new Ast.Expression.Access(Optional.empty(), "number"), cases);
+
+        Scope analyzed = new Scope(null);
+        analyzed.defineVariable("number", "number", Environment.Type.INTEGER, true, Environment.NIL);
+        new Analyzer(analyzed).visit(ast);
+        Assertions.assertTrue(ast.getCaseTable().isPresent());
+
+        PrintStream sysout = System.out;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(out));
+        try {
+            for (int i = 1; i <= 3; i++) {
+                Scope scope = new Scope(null);
+                scope.defineVariable("number", true, Environment.create(BigInteger.valueOf(i)));
+                test(ast, Environment.NIL.getValue(), scope);
+            }
+            Assertions.assertEquals(String.join(System.lineSeparator(), "one", "two", "other", ""), out.toString());
+        } finally {
+            System.setOut(sysout);
+        }
+    }
+
     @Test
     void testWhileStatement() {
         // WHILE num < 10 DO num = num + 1; END
@@ -266,6 +440,71 @@ final class InterpreterTests {
         Assertions.assertEquals(BigInteger.TEN, scope.lookupVariable("num").getValue().getValue());
     }
 
+    @ParameterizedTest
+    @MethodSource
+    void testCountedLoop(String test, Ast.Statement.While ast, BigInteger num, BigInteger total) {
+        Scope scope = new Scope(null);
+        scope.defineVariable("num", true, Environment.create(BigInteger.ZERO));
+        scope.defineVariable("total", true, Environment.create(BigInteger.ZERO));
+        scope.defineFunction("skip", 0, args -> { // num = num + 5;
+            Environment.Variable variable = scope.lookupVariable("num");
+            variable.setValue(Environment.create(((BigInteger) variable.getValue().getValue()).add(BigInteger.valueOf(5))));
+            return Environment.NIL;
+        });
+        test(ast, Environment.NIL.getValue(), scope);
+        Assertions.assertEquals(num, scope.lookupVariable("num").getValue().getValue());
+        Assertions.assertEquals(total, scope.lookupVariable("total").getValue().getValue());
+    }
+
+    private static Stream<Arguments> testCountedLoop() {
+        return Stream.of(
+                // WHILE num < 10 DO total = total + 2; num = num + 1; END
+                Arguments.of("Unread Counter", countedLoop("<", BigInteger.TEN, "+",
+                        new Ast.Expression.Literal(BigInteger.valueOf(2))
+                ), BigInteger.TEN, BigInteger.valueOf(20)),
+                // WHILE num <= 10 DO total = total + num; num = num + 3; END
+                Arguments.of("Read Counter", countedLoop("<=", BigInteger.TEN, "+",
+                        new Ast.Expression.Access(Optional.empty(), "num")
+                ), BigInteger.valueOf(12), BigInteger.valueOf(18)),
+                // WHILE num > -10 DO total = total + num; num = num - 3; END
+                Arguments.of("Decrement", countedLoop(">", BigInteger.valueOf(-10), "-",
+                        new Ast.Expression.Access(Optional.empty(), "num")
+                ), BigInteger.valueOf(-12), BigInteger.valueOf(-18)),
+                // WHILE num < 20 DO skip(); num = num + 1; END
+                Arguments.of("Assigned By Call", new Ast.Statement.While(
+                        new Ast.Expression.Binary("<", new Ast.Expression.Access(Optional.empty(), "num"), new Ast.Expression.Literal(BigInteger.valueOf(20))),
+                        Arrays.asList(
+                                new Ast.Statement.Expression(new Ast.Expression.Function("skip", Arrays.asList())),
+                                new Ast.Statement.Assignment(
+                                        new Ast.Expression.Access(Optional.empty(), "num"),
+                                        new Ast.Expression.Binary("+", new Ast.Expression.Access(Optional.empty(), "num"), new Ast.Expression.Literal(BigInteger.ONE))
+                                )
+                        )
+                ), BigInteger.valueOf(24), BigInteger.ZERO)
+        );
+    }
+
+    /**
+     * WHILE num [comparison] bound DO total = total + [value]; num = num [operator] step; END,
+     * with a step of 1 when adding a literal and 3 otherwise.
+     */
+    private static Ast.Statement.While countedLoop(String comparison, BigInteger bound, String operator, Ast.Expression value) {
+        BigInteger step = value instanceof Ast.Expression.Literal ? BigInteger.ONE : BigInteger.valueOf(3);
+        return new Ast.Statement.While(
+                new Ast.Expression.Binary(comparison, new Ast.Expression.Access(Optional.empty(), "num"), new Ast.Expression.Literal(bound)),
+                Arrays.asList(
+                        new Ast.Statement.Assignment(
+                                new Ast.Expression.Access(Optional.empty(), "total"),
+                                new Ast.Expression.Binary("+", new Ast.Expression.Access(Optional.empty(), "total"), value)
+                        ),
+                        new Ast.Statement.Assignment(
+                                new Ast.Expression.Access(Optional.empty(), "num"),
+                                new Ast.Expression.Binary(operator, new Ast.Expression.Access(Optional.empty(), "num"), new Ast.Expression.Literal(step))
+                        )
+                )
+        );
+    }
+
     @ParameterizedTest
     @MethodSource
     void testLiteralExpression(String test, Ast ast, Object expected) {
@@ -377,6 +616,22 @@ final class InterpreterTests {
         );
     }
 
+    @Test
+    void testSharedValues() {
+        // 1 + 10 == 11
+        Ast.Expression.Binary ast = new Ast.Expression.Binary("==",
+                new Ast.Expression.Binary("+",
+                        new Ast.Expression.Literal(BigInteger.ONE),
+                        new Ast.Expression.Literal(BigInteger.TEN)
+                ),
+                new Ast.Expression.Literal(BigInteger.valueOf(11))
+        );
+        Interpreter interpreter = interpreter(new Scope(null));
+        Assertions.assertSame(Environment.TRUE, interpreter.visit(ast));
+        Assertions.assertSame(Environment.create(BigInteger.valueOf(11)), interpreter.visit(ast.getLeft()));
+        Assertions.assertSame(Environment.Type.INTEGER, interpreter.visit(ast.getLeft()).getType());
+    }
+
     @ParameterizedTest
     @MethodSource
     void testAccessExpression(String test, Ast ast, Object expected) {
@@ -406,6 +661,42 @@ final class InterpreterTests {
         test(new Ast.Expression.Access(Optional.of(new Ast.Expression.Literal(BigInteger.valueOf(1))), "list"), BigInteger.valueOf(5), scope);
     }
 
+    @Test
+    void testDynamicListAccessExpression() {
+        // list[index - 1]
+
+        List<Object> list = Arrays.asList(BigInteger.ONE, BigInteger.valueOf(5), BigInteger.TEN);
+
+        Scope scope = new Scope(null);
+        scope.defineVariable("list", true, Environment.create(list));
+        scope.defineVariable("index", true, Environment.create(BigInteger.valueOf(3)));
+        test(new Ast.Expression.Access(Optional.of(new Ast.Expression.Binary("-",
+                new Ast.Expression.Access(Optional.empty(), "index"),
+                new Ast.Expression.Literal(BigInteger.ONE)
+        )), "list"), BigInteger.TEN, scope);
+        test(new Ast.Expression.Access(Optional.of(new Ast.Expression.Access(Optional.empty(), "index")), "list"), null, scope);
+    }
+
+    @Test
+    void testTypedListAssignmentStatement() {
+        // LIST list: Integer = [1, 5, 10]; list[1] = 7;
+
+        Ast.Global global = new Ast.Global("list", "Integer", true, Optional.of(new Ast.Expression.PlcList(Arrays.asList(
+                new Ast.Expression.Literal(BigInteger.ONE),
+                new Ast.Expression.Literal(BigInteger.valueOf(5)),
+                new Ast.Expression.Literal(BigInteger.TEN)
+        ))));
+        Scope scope = test(global, Environment.NIL.getValue(), new Scope(null));
+        Object list = scope.lookupVariable("list").getValue().getValue();
+        test(new Ast.Statement.Assignment(
+                new Ast.Expression.Access(Optional.of(new Ast.Expression.Literal(BigInteger.ONE)), "list"),
+                new Ast.Expression.Literal(BigInteger.valueOf(7))
+        ), Environment.NIL.getValue(), scope);
+
+        Assertions.assertSame(list, scope.lookupVariable("list").getValue().getValue());
+        Assertions.assertEquals(Arrays.asList(BigInteger.ONE, BigInteger.valueOf(7), BigInteger.TEN), list);
+    }
+
     @ParameterizedTest
     @MethodSource
     void testFunctionExpression(String test, Ast ast, Object expected) {
@@ -429,6 +720,39 @@ final class InterpreterTests {
         );
     }
 
+    @Test
+    void testCachedFunctionExpression() {
+        // function(), before and after function is shadowed in the global scope
+        Scope scope = new Scope(null);
+        scope.defineFunction("function", 0, args -> Environment.create("parent"));
+        Interpreter interpreter = interpreter(scope);
+        Ast.Expression.Function ast = new Ast.Expression.Function("function", Arrays.asList());
+        Assertions.assertEquals("parent", interpreter.visit(ast).getValue());
+        Assertions.assertEquals("parent", interpreter.visit(ast).getValue());
+        interpreter.getScope().defineFunction("function", 0, args -> Environment.create("global"));
+        Assertions.assertEquals("global", interpreter.visit(ast).getValue());
+    }
+
+    @Test
+    void testFunctionArities() {
+        // FUN sum(a, b, c, d, e) DO RETURN a + b + c + d + e; END
+        Ast.Expression sum = new Ast.Expression.Access(Optional.empty(), "a");
+        for (String name : Arrays.asList("b", "c", "d", "e")) {
+            sum = new Ast.Expression.Binary("+", sum, new Ast.Expression.Access(Optional.empty(), name));
+        }
+        Scope scope = new Scope(null);
+        scope.defineFunction("pair", (a, b) -> Environment.create(a.getValue() + ", " + b.getValue()));
+        Interpreter interpreter = interpreter(scope);
+        interpreter.visit(new Ast.Function("sum", Arrays.asList("a", "b", "c", "d", "e"), Arrays.asList(new Ast.Statement.Return(sum))));
+
+        List<Ast.Expression> arguments = IntStream.rangeClosed(1, 5)
+                .mapToObj(i -> new Ast.Expression.Literal(BigInteger.valueOf(i)))
+                .collect(Collectors.toList());
+        Assertions.assertEquals(BigInteger.valueOf(15), interpreter.visit(new Ast.Expression.Function("sum", arguments)).getValue());
+        Assertions.assertEquals("1, 2", interpreter.visit(new Ast.Expression.Function("pair", arguments.subList(0, 2))).getValue());
+        Assertions.assertEquals("1, 2", scope.lookupFunction("pair", 2).invoke(Arrays.asList(Environment.create(BigInteger.ONE), Environment.create(BigInteger.valueOf(2)))).getValue());
+    }
+
     @Test
     void testPlcList() {
         // [1, 5, 10]
@@ -444,8 +768,16 @@ final class InterpreterTests {
         test(ast, expected, new Scope(null));
     }
 
-    private static Scope test(Ast ast, Object expected, Scope scope) {
-        Interpreter interpreter = new Interpreter(scope);
+    /**
+     * Creates the engine under test, which subclasses replace to run these
+     * tests against the other engines.
+     */
+    Interpreter interpreter(Scope scope) {
+        return new Interpreter(scope);
+    }
+
+    private Scope test(Ast ast, Object expected, Scope scope) {
+        Interpreter interpreter = interpreter(scope);
         if (expected != null) {
             Assertions.assertEquals(expected, interpreter.visit(ast).getValue());
         } else {
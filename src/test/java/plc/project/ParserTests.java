@@ -225,6 +225,110 @@ final class ParserTests {
         );
     }
 
+    @ParameterizedTest
+    @MethodSource
+    void testForStatement(String test, List<Token> tokens, Ast.Statement.For expected) {
+        test(tokens, expected, Parser::parseStatement);
+    }
+
+    private static Stream<Arguments> testForStatement() {
+        return Stream.of(
+                Arguments.of("For",
+                        Arrays.asList(
+                                //FOR x IN list DO stmt; END
+                                new Token(Token.Type.IDENTIFIER, "FOR", 0),
+                                new Token(Token.Type.IDENTIFIER, "x", 4),
+                                new Token(Token.Type.IDENTIFIER, "IN", 6),
+                                new Token(Token.Type.IDENTIFIER, "list", 9),
+                                new Token(Token.Type.IDENTIFIER, "DO", 14),
+                                new Token(Token.Type.IDENTIFIER, "stmt", 17),
+                                new Token(Token.Type.OPERATOR, ";", 21),
+                                new Token(Token.Type.IDENTIFIER, "END", 23)
+                        ),
+                        new Ast.Statement.For("x",
+                                new Ast.Expression.Access(Optional.empty(), "list"),
+                                Arrays.asList(new Ast.Statement.Expression(new Ast.Expression.Access(Optional.empty(), "stmt"))),
+                                false
+                        )
+                ),
+                Arguments.of("Parallel For",
+                        Arrays.asList(
+                                //PARALLEL FOR x IN list DO stmt; END
+                                new Token(Token.Type.IDENTIFIER, "PARALLEL", 0),
+                                new Token(Token.Type.IDENTIFIER, "FOR", 9),
+                                new Token(Token.Type.IDENTIFIER, "x", 13),
+                                new Token(Token.Type.IDENTIFIER, "IN", 15),
+                                new Token(Token.Type.IDENTIFIER, "list", 18),
+                                new Token(Token.Type.IDENTIFIER, "DO", 23),
+                                new Token(Token.Type.IDENTIFIER, "stmt", 26),
+                                new Token(Token.Type.OPERATOR, ";", 30),
+                                new Token(Token.Type.IDENTIFIER, "END", 32)
+                        ),
+                        new Ast.Statement.For("x",
+                                new Ast.Expression.Access(Optional.empty(), "list"),
+                                Arrays.asList(new Ast.Statement.Expression(new Ast.Expression.Access(Optional.empty(), "stmt"))),
+                                true
+                        )
+                ),
+                Arguments.of("Missing IN",
+                        Arrays.asList(
+                                //FOR x list DO stmt; END
+                                new Token(Token.Type.IDENTIFIER, "FOR", 0),
+                                new Token(Token.Type.IDENTIFIER, "x", 4),
+                                new Token(Token.Type.IDENTIFIER, "list", 6),
+                                new Token(Token.Type.IDENTIFIER, "DO", 11),
+                                new Token(Token.Type.IDENTIFIER, "stmt", 14),
+                                new Token(Token.Type.OPERATOR, ";", 18),
+                                new Token(Token.Type.IDENTIFIER, "END", 20)
+                        ),
+                        null
+                )
+        );
+    }
+
+    @ParameterizedTest
+    @MethodSource
+    void testSpawnExpression(String test, List<Token> tokens, Ast.Expression expected) {
+        test(tokens, expected, Parser::parseExpression);
+    }
+
+    private static Stream<Arguments> testSpawnExpression() {
+        return Stream.of(
+                Arguments.of("Spawn",
+                        Arrays.asList(
+                                //SPAWN name(expr)
+                                new Token(Token.Type.IDENTIFIER, "SPAWN", 0),
+                                new Token(Token.Type.IDENTIFIER, "name", 6),
+                                new Token(Token.Type.OPERATOR, "(", 10),
+                                new Token(Token.Type.IDENTIFIER, "expr", 11),
+                                new Token(Token.Type.OPERATOR, ")", 15)
+                        ),
+                        new Ast.Expression.Spawn(new Ast.Expression.Function("name", Arrays.asList(
+                                new Ast.Expression.Access(Optional.empty(), "expr")
+                        )))
+                ),
+                Arguments.of("Await Spawn",
+                        Arrays.asList(
+                                //AWAIT SPAWN name()
+                                new Token(Token.Type.IDENTIFIER, "AWAIT", 0),
+                                new Token(Token.Type.IDENTIFIER, "SPAWN", 6),
+                                new Token(Token.Type.IDENTIFIER, "name", 12),
+                                new Token(Token.Type.OPERATOR, "(", 16),
+                                new Token(Token.Type.OPERATOR, ")", 17)
+                        ),
+                        new Ast.Expression.Await(new Ast.Expression.Spawn(new Ast.Expression.Function("name", Arrays.asList())))
+                ),
+                Arguments.of("Spawn Variable",
+                        Arrays.asList(
+                                //SPAWN name
+                                new Token(Token.Type.IDENTIFIER, "SPAWN", 0),
+                                new Token(Token.Type.IDENTIFIER, "name", 6)
+                        ),
+                        null
+                )
+        );
+    }
+
     @ParameterizedTest
     @MethodSource
     void testReturnStatement(String test, List<Token> tokens, Ast.Statement.Return expected) {
@@ -0,0 +1,137 @@
+package plc.project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+final class ProgramTests {
+
+    private static final String SOURCE = String.join("\n",
+            "VAR count: Integer = 1;",
+            "VAL step: Integer = 2;",
+            "FUN add(n: Integer): Integer DO",
+            "    count = count + n;",
+            "    RETURN count;",
+            "END",
+            "FUN main(): Integer DO",
+            "    LET i = 1;",
+            "    WHILE i < 11 DO",
+            "        add(step);",
+            "        i = i + 1;",
+            "    END",
+            "    RETURN count;",
+            "END"
+    );
+
+    @Test
+    void testCompile() {
+        Program program = Program.compile(SOURCE);
+        Assertions.assertEquals(Arrays.asList("count", "step"), program.getGlobals());
+        Assertions.assertEquals(BigInteger.valueOf(21), program.run().getValue());
+        Assertions.assertEquals(BigInteger.valueOf(21), program.run().getValue()); // globals are not shared
+    }
+
+    @Test
+    void testCompileInvalid() {
+        // VAR count: Integer = "one"; FUN main(): Integer DO RETURN count; END
+        Assertions.assertThrows(RuntimeException.class, () -> Program.compile(
+                "VAR count: Integer = \"one\"; FUN main(): Integer DO RETURN count; END"
+        ));
+    }
+
+    @Test
+    void testExecution() {
+        Execution execution = Program.compile(SOURCE).newExecution();
+        Assertions.assertEquals(BigInteger.valueOf(21), execution.run().getValue());
+        Assertions.assertEquals(BigInteger.valueOf(21), execution.getGlobals().lookupVariable("count").getValue().getValue());
+        Assertions.assertThrows(IllegalStateException.class, execution::run);
+    }
+
+    @Test
+    void testConcurrentExecutions() throws Exception {
+        Program program = Program.compile(SOURCE);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Environment.PlcObject>> results = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                results.add(executor.submit(program::run));
+            }
+            for (Future<Environment.PlcObject> result : results) {
+                Assertions.assertEquals(BigInteger.valueOf(21), result.get().getValue());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testPrototype() {
+        Prototype prototype = Program.compile(SOURCE).newPrototype();
+        Execution first = prototype.fork();
+        Assertions.assertEquals(BigInteger.valueOf(21), first.run().getValue());
+        Assertions.assertEquals(BigInteger.valueOf(21), prototype.fork().run().getValue()); // writes are not shared
+        Assertions.assertEquals(BigInteger.ONE, prototype.getGlobal("count").getValue());
+        Assertions.assertEquals(BigInteger.valueOf(21), first.getGlobals().lookupVariable("count").getValue().getValue());
+    }
+
+    @Test
+    void testPrototypeList() {
+        Prototype prototype = Program.compile(String.join("\n",
+                "LIST list: Integer = [1, 5, 10];",
+                "FUN main(): Integer DO",
+                "    list[1] = list[1] + 2;",
+                "    RETURN list[1];",
+                "END"
+        )).newPrototype();
+        Execution first = prototype.fork();
+        Execution second = prototype.fork();
+        Assertions.assertEquals(BigInteger.valueOf(7), first.run().getValue());
+        Assertions.assertEquals(BigInteger.valueOf(7), second.run().getValue());
+        Assertions.assertEquals(Arrays.asList(BigInteger.ONE, BigInteger.valueOf(5), BigInteger.TEN), prototype.getGlobal("list").getValue());
+    }
+
+    @Test
+    void testLazyPrototype() throws Exception {
+        Prototype prototype = Program.compile(String.join("\n",
+                "VAL base: Integer = 10;",
+                "LIST table: Integer = [base, base * 2, base * 3];",
+                "FUN main(): Integer DO",
+                "    table[2] = table[2] + 1;",
+                "    RETURN table[2];",
+                "END"
+        )).newPrototype(true);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Environment.PlcObject>> results = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                results.add(executor.submit(() -> prototype.fork().run()));
+            }
+            for (Future<Environment.PlcObject> result : results) {
+                Assertions.assertEquals(BigInteger.valueOf(31), result.get().getValue());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assertions.assertEquals(BigInteger.valueOf(30), ((List<?>) prototype.getGlobal("table").getValue()).get(2));
+    }
+
+    @Test
+    void testShareList() {
+        Environment.PlcList inner = Environment.PlcList.of(Environment.Type.INTEGER, Arrays.asList(BigInteger.ONE));
+        Environment.PlcList outer = Environment.PlcList.of(Environment.Type.ANY, Arrays.asList(inner, inner));
+        Environment.PlcList copy = outer.share(new IdentityHashMap<>());
+        ((Environment.PlcList) copy.get(0)).update(0, BigInteger.TEN);
+        Assertions.assertSame(copy.get(0), copy.get(1)); // aliasing is preserved
+        Assertions.assertEquals(BigInteger.TEN, ((List<?>) copy.get(1)).get(0));
+        Assertions.assertEquals(BigInteger.ONE, inner.get(0));
+    }
+
+}
@@ -0,0 +1,88 @@
+package plc.project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+final class PurityTests {
+
+    @ParameterizedTest
+    @MethodSource
+    void testFunction(String test, Ast.Function function, boolean expected) {
+        Scope scope = new Scope(null);
+        scope.defineVariable("constant", false, Environment.create(BigInteger.ONE));
+        scope.defineVariable("variable", true, Environment.create(BigInteger.ONE));
+        scope.defineFunction("print", 1, args -> Environment.NIL);
+        List<Ast.Function> functions = Arrays.asList(function, helper());
+        Assertions.assertEquals(expected, Purity.analyze(functions, scope).contains(function));
+    }
+
+    private static Stream<Arguments> testFunction() {
+        return Stream.of(
+                // FUN f(x) DO RETURN x + constant; END
+                Arguments.of("Immutable Capture", function(
+                        new Ast.Statement.Return(new Ast.Expression.Binary("+",
+                                new Ast.Expression.Access(Optional.empty(), "x"),
+                                new Ast.Expression.Access(Optional.empty(), "constant")
+                        ))
+                ), true),
+                // FUN f(x) DO RETURN x + variable; END
+                Arguments.of("Mutable Capture", function(
+                        new Ast.Statement.Return(new Ast.Expression.Binary("+",
+                                new Ast.Expression.Access(Optional.empty(), "x"),
+                                new Ast.Expression.Access(Optional.empty(), "variable")
+                        ))
+                ), false),
+                // FUN f(x) DO print(x); END
+                Arguments.of("Print", function(
+                        new Ast.Statement.Expression(new Ast.Expression.Function("print", Arrays.asList(new Ast.Expression.Access(Optional.empty(), "x"))))
+                ), false),
+                // FUN f(x) DO x[0] = 1; END
+                Arguments.of("List Assignment", function(
+                        new Ast.Statement.Assignment(
+                                new Ast.Expression.Access(Optional.of(new Ast.Expression.Literal(BigInteger.ZERO)), "x"),
+                                new Ast.Expression.Literal(BigInteger.ONE)
+                        )
+                ), false),
+                // FUN f(x) DO LET y = x; y = y + 1; RETURN f(helper(y)); END
+                Arguments.of("Pure Calls", function(
+                        new Ast.Statement.Declaration("y", Optional.of(new Ast.Expression.Access(Optional.empty(), "x"))),
+                        new Ast.Statement.Assignment(
+                                new Ast.Expression.Access(Optional.empty(), "y"),
+                                new Ast.Expression.Binary("+", new Ast.Expression.Access(Optional.empty(), "y"), new Ast.Expression.Literal(BigInteger.ONE))
+                        ),
+                        new Ast.Statement.Return(new Ast.Expression.Function("f", Arrays.asList(
+                                new Ast.Expression.Function("helper", Arrays.asList(new Ast.Expression.Access(Optional.empty(), "y")))
+                        )))
+                ), true),
+                // FUN f(x) DO RETURN helper(x, x); END
+                Arguments.of("Undefined Call", function(
+                        new Ast.Statement.Return(new Ast.Expression.Function("helper", Arrays.asList(
+                                new Ast.Expression.Access(Optional.empty(), "x"),
+                                new Ast.Expression.Access(Optional.empty(), "x")
+                        )))
+                ), false)
+        );
+    }
+
+    private static Ast.Function function(Ast.Statement... statements) {
+        return new Ast.Function("f", Arrays.asList("x"), Arrays.asList(statements));
+    }
+
+    /**
+     * FUN helper(x) DO RETURN x; END
+     */
+    private static Ast.Function helper() {
+        return new Ast.Function("helper", Arrays.asList("x"), Arrays.asList(
+                new Ast.Statement.Return(new Ast.Expression.Access(Optional.empty(), "x"))
+        ));
+    }
+
+}
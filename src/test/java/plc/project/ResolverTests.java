@@ -0,0 +1,52 @@
+package plc.project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Optional;
+
+final class ResolverTests {
+
+    @Test
+    void testCaptures() {
+        // FUN f(a) DO
+        //     LET b = a + x;
+        //     IF y DO LET c = b; c = z + x; END
+        //     RETURN c;
+        // END
+        Ast.Expression.Access x = new Ast.Expression.Access(Optional.empty(), "x");
+        Ast.Expression.Access z = new Ast.Expression.Access(Optional.empty(), "z");
+        Ast.Expression.Access local = new Ast.Expression.Access(Optional.empty(), "c");
+        Ast.Expression.Access outside = new Ast.Expression.Access(Optional.empty(), "c");
+        Ast.Function function = new Ast.Function("f", Arrays.asList("a"), Arrays.asList(
+                new Ast.Statement.Declaration("b", Optional.of(new Ast.Expression.Binary("+",
+                        new Ast.Expression.Access(Optional.empty(), "a"),
+                        new Ast.Expression.Access(Optional.empty(), "x")
+                ))),
+                new Ast.Statement.If(new Ast.Expression.Access(Optional.empty(), "y"), Arrays.asList(
+                        new Ast.Statement.Declaration("c", Optional.of(new Ast.Expression.Access(Optional.empty(), "b"))),
+                        new Ast.Statement.Assignment(local, new Ast.Expression.Binary("+", z, x))
+                ), Arrays.asList()),
+                new Ast.Statement.Return(outside)
+        ));
+        Assertions.assertEquals(Arrays.asList("x", "y", "z", "c"), Resolver.resolve(function));
+        Assertions.assertEquals(0, x.getCapture());
+        Assertions.assertEquals(2, z.getCapture());
+        Assertions.assertEquals(-1, local.getCapture());
+        Assertions.assertEquals(3, outside.getCapture());
+    }
+
+    @Test
+    void testParameterShadows() {
+        // FUN f(x) DO RETURN x + 1; END
+        Ast.Expression.Access x = new Ast.Expression.Access(Optional.empty(), "x");
+        Ast.Function function = new Ast.Function("f", Arrays.asList("x"), Arrays.asList(
+                new Ast.Statement.Return(new Ast.Expression.Binary("+", x, new Ast.Expression.Literal(BigInteger.ONE)))
+        ));
+        Assertions.assertEquals(Arrays.asList(), Resolver.resolve(function));
+        Assertions.assertEquals(-1, x.getCapture());
+    }
+
+}
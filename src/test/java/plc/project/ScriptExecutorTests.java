@@ -0,0 +1,84 @@
+package plc.project;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+final class ScriptExecutorTests {
+
+    @Test
+    void testSubmit() throws Exception {
+        // VAR count: Integer = 1; FUN main(): Integer DO count = count + 1; print(count); RETURN count; END
+        Program program = Program.compile(String.join("\n",
+                "VAR count: Integer = 1;",
+                "FUN main(): Integer DO",
+                "    count = count + 1;",
+                "    print(count);",
+                "    RETURN count;",
+                "END"
+        ));
+        try (ScriptExecutor executor = new ScriptExecutor(1000)) {
+            List<CompletableFuture<ScriptExecutor.Result>> results = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                results.add(executor.submit(program));
+            }
+            for (CompletableFuture<ScriptExecutor.Result> future : results) {
+                ScriptExecutor.Result result = future.get();
+                Assertions.assertEquals(BigInteger.valueOf(2), result.getValue().getValue());
+                Assertions.assertEquals("2" + System.lineSeparator(), result.getOutput());
+                Assertions.assertTrue(result.getLatencyNanos() > 0);
+            }
+            Assertions.assertEquals(1000, executor.getCompleted());
+            Assertions.assertEquals(0, executor.getInFlight());
+        }
+    }
+
+    @Test
+    void testFailure() {
+        // FUN main(): Integer DO RETURN 1 / (1 - 1); END
+        Program program = Program.compile("FUN main(): Integer DO RETURN 1 / (1 - 1); END");
+        try (ScriptExecutor executor = new ScriptExecutor(1)) {
+            CompletableFuture<ScriptExecutor.Result> result = executor.submit(program);
+            Assertions.assertThrows(ExecutionException.class, result::get);
+        }
+    }
+
+    @Test
+    void testCapacity() throws Exception {
+        // FUN main(): Integer DO LET i = 1; WHILE i < 2000000 DO i = i + 1; END RETURN i; END
+        Program program = Program.compile("FUN main(): Integer DO LET i = 1; WHILE i < 2000000 DO i = i + 1; END RETURN i; END");
+        try (ScriptExecutor executor = new ScriptExecutor(1)) {
+            CompletableFuture<ScriptExecutor.Result> result = executor.submit(program);
+            Assertions.assertThrows(RejectedExecutionException.class, () -> executor.submit(program));
+            Assertions.assertEquals(1, executor.getRejected());
+            Assertions.assertEquals(BigInteger.valueOf(2000000), result.get().getValue().getValue());
+            Assertions.assertEquals(BigInteger.valueOf(2000000), executor.submit(program).get().getValue().getValue());
+        }
+    }
+
+    @Test
+    void testBudget() throws Exception {
+        // FUN main(): Integer DO WHILE TRUE DO END RETURN 1; END
+        Program program = Program.compile("FUN main(): Integer DO WHILE TRUE DO END RETURN 1; END");
+        try (ScriptExecutor executor = new ScriptExecutor(2)) {
+            CompletableFuture<ScriptExecutor.Result> limited = executor.submit(program, Budget.UNLIMITED.withTimeout(Duration.ofMillis(20)));
+            ExecutionException exception = Assertions.assertThrows(ExecutionException.class, limited::get);
+            Assertions.assertEquals(BudgetExceededException.Reason.DEADLINE, ((BudgetExceededException) exception.getCause()).getReason());
+            CompletableFuture<ScriptExecutor.Result> cancelled = executor.submit(program);
+            Thread.sleep(20);
+            cancelled.cancel(true);
+            for (int i = 0; i < 500 && executor.getInFlight() > 0; i++) {
+                Thread.sleep(10); // the run stops at its next back edge
+            }
+            Assertions.assertEquals(0, executor.getInFlight());
+        }
+    }
+
+}